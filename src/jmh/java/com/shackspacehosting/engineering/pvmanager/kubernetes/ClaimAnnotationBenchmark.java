@@ -0,0 +1,80 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.*;
+
+/**
+ * The annotation handling every claim goes through on its way to a new volume.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClaimAnnotationBenchmark {
+	private Map<String, String> claimAnnotations;
+	private Map<String, String> mappedAnnotations;
+	private List<String> blockedAnnotations;
+	private String pvNameFormat;
+
+	@Setup
+	public void setup() {
+		claimAnnotations = new HashMap<>();
+		claimAnnotations.put(ANNOTATION_KUBERNETES_STORAGE_PROVISIONER, ANNOTATION_STORAGE_PROVISIONER_NAME);
+		claimAnnotations.put(ANNOTATION_KUBERNETES_STORAGE_CLASS, "basic");
+		claimAnnotations.put(ANNOTATION_COMPRESSION_MODE, "lz4");
+		claimAnnotations.put(ANNOTATION_RECLAIM_POLICY, ANNOTATION_RECLAIM_POLICY_RETAIN);
+		claimAnnotations.put(ANNOTATION_BLOCKSIZE, "128k");
+		claimAnnotations.put(ANNOTATION_ATIME, "off");
+		claimAnnotations.put("kubectl.kubernetes.io/last-applied-configuration", "{\"apiVersion\":\"v1\",\"kind\":\"PersistentVolumeClaim\"}");
+		claimAnnotations.put("pv.kubernetes.io/bind-completed", "yes");
+
+		mappedAnnotations = ObjectNameMapper.mapKubernetesToPVManagerPVCAnnotations("tenant-0042", "data-postgres-0", claimAnnotations);
+		mappedAnnotations.put(ANNOTATION_PVMANAGER_PVTAG, "3f2c1a9e");
+		mappedAnnotations.put(ANNOTATION_CLONEREF, "nfs.example.com:/tank/pv/source");
+		mappedAnnotations.put(ANNOTATION_CLONESNAPSHOT, "tank/pv/source@clone");
+
+		blockedAnnotations = new ArrayList<>();
+		blockedAnnotations.add(ANNOTATION_RECLAIM_POLICY);
+		blockedAnnotations.add(ANNOTATION_COMPRESSION_MODE);
+		blockedAnnotations.add(ANNOTATION_CHECKSUM_MODE);
+		blockedAnnotations.add(ANNOTATION_SYNC);
+
+		pvNameFormat = "basic-{" + ANNOTATION_PVMANAGER_PVCNAMESPACE + "}-{" + ANNOTATION_PVMANAGER_PVCNAME + "}-{" + ANNOTATION_PVMANAGER_PVTAG + "}";
+	}
+
+	@Benchmark
+	public Map<String, String> mapClaimAnnotations() {
+		return ObjectNameMapper.mapKubernetesToPVManagerPVCAnnotations("tenant-0042", "data-postgres-0", claimAnnotations);
+	}
+
+	@Benchmark
+	public Map<String, String> removeInternalAndBlockedAnnotations() {
+		Map<String, String> annotations = new HashMap<>(mappedAnnotations);
+		removeInternalAnnotations(annotations);
+		removeBlockedAnnotations(annotations, blockedAnnotations);
+		return annotations;
+	}
+
+	@Benchmark
+	public String replaceTokens() {
+		return replaceTokensInString(mappedAnnotations, pvNameFormat);
+	}
+}
@@ -0,0 +1,112 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import com.google.common.reflect.TypeToken;
+import io.kubernetes.client.JSON;
+import io.kubernetes.client.proto.Meta;
+import io.kubernetes.client.proto.Resource;
+import io.kubernetes.client.proto.V1;
+import io.kubernetes.client.util.Watch;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.*;
+
+/**
+ * Decodes a recorded stream of claim watch events in both wire formats and builds the notification each event is
+ * queued as, which is the work a watcher does for every claim during a relist.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClaimDecodingBenchmark {
+	@Param({"1000"})
+	public int events;
+
+	private final JSON json = new JSON();
+	private final Type eventType = new TypeToken<Watch.Response<io.kubernetes.client.models.V1PersistentVolumeClaim>>(){}.getType();
+
+	private byte[] jsonStream;
+	private byte[] protobufStream;
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuilder jsonEvents = new StringBuilder();
+		ByteArrayOutputStream protobufEvents = new ByteArrayOutputStream();
+		for(int i = 0; i < events; i++) {
+			V1.PersistentVolumeClaim claim = V1.PersistentVolumeClaim.newBuilder()
+					.setMetadata(Meta.ObjectMeta.newBuilder()
+							.setName("data-" + i)
+							.setNamespace("tenant-" + (i % 50))
+							.setUid("6f1b0c4e-0000-4000-8000-" + String.format("%012d", i))
+							.setResourceVersion(Integer.toString(100000 + i))
+							.putAnnotations(ANNOTATION_KUBERNETES_STORAGE_CLASS, "basic")
+							.putAnnotations(ANNOTATION_COMPRESSION_MODE, "lz4")
+							.putLabels("app", "postgres"))
+					.setSpec(V1.PersistentVolumeClaimSpec.newBuilder()
+							.addAccessModes("ReadWriteOnce")
+							.setResources(V1.ResourceRequirements.newBuilder()
+									.putRequests("storage", Resource.Quantity.newBuilder().setString("10Gi").build())))
+					.setStatus(V1.PersistentVolumeClaimStatus.newBuilder().setPhase("Pending"))
+					.build();
+
+			byte[] object = claim.toByteArray();
+			ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+			envelope.write(new byte[] { 'k', '8', 's', 0 });
+			io.kubernetes.client.proto.Runtime.Unknown.newBuilder()
+					.setRaw(com.google.protobuf.ByteString.copyFrom(object))
+					.build().writeTo(envelope);
+			byte[] event = Meta.WatchEvent.newBuilder()
+					.setType("ADDED")
+					.setObject(io.kubernetes.client.proto.Runtime.RawExtension.newBuilder()
+							.setRaw(com.google.protobuf.ByteString.copyFrom(envelope.toByteArray())))
+					.build().toByteArray();
+			Buffer frame = new Buffer();
+			frame.writeInt(event.length);
+			frame.write(event);
+			protobufEvents.write(frame.readByteArray());
+
+			jsonEvents.append("{\"type\":\"ADDED\",\"object\":").append(json.serialize(KubernetesProtobufCodec.toClaim(claim))).append("}\n");
+		}
+		jsonStream = jsonEvents.toString().getBytes(StandardCharsets.UTF_8);
+		protobufStream = protobufEvents.toByteArray();
+	}
+
+	@Benchmark
+	public void decodeJson(Blackhole blackhole) throws IOException {
+		Buffer source = new Buffer().write(jsonStream);
+		while(!source.exhausted()) {
+			Watch.Response<io.kubernetes.client.models.V1PersistentVolumeClaim> event = json.deserialize(source.readUtf8LineStrict(), eventType);
+			blackhole.consume(PVCChangeNotification.fromClaim(event.type, event.object));
+		}
+	}
+
+	@Benchmark
+	public void decodeProtobuf(Blackhole blackhole) throws IOException {
+		Buffer source = new Buffer().write(protobufStream);
+		while(!source.exhausted()) {
+			int length = source.readInt();
+			Meta.WatchEvent event = Meta.WatchEvent.parseFrom(source.readByteArray(length));
+			blackhole.consume(PVCChangeNotification.fromClaim(event.getType(), KubernetesProtobufCodec.decodeClaim(event.getObject().getRaw().toByteArray())));
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import ch.qos.logback.classic.Level;
+import com.shackspacehosting.engineering.pvmanager.KeyedWorkerPool;
+import com.shackspacehosting.engineering.pvmanager.storage.IStorageManagementProvider;
+import com.shackspacehosting.engineering.pvmanager.storage.StorageControllerConfiguration;
+import com.shackspacehosting.engineering.pvmanager.storage.StorageProvider;
+import io.kubernetes.client.models.V1PersistentVolumeClaimSpec;
+import io.kubernetes.client.models.V1PersistentVolumeSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.*;
+
+/**
+ * How long a claim notification takes from being queued to reaching its storage provider's createPersistentVolume,
+ * with the consumer blocking on the queue and with it polling and sleeping for -p pollSleepMs=...  The provider is a
+ * stub that signals the benchmark and then fails the create, so nothing ever talks to an api server.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClaimNotificationLatencyBenchmark {
+	final private static String STORAGE_CLASS = "bench";
+
+	@Param({"true", "false"})
+	public boolean blocking;
+
+	@Param({"500"})
+	public int pollSleepMs;
+
+	private PVClaimManagerService service;
+	private File configFile;
+	private final SynchronousQueue<Long> created = new SynchronousQueue<>();
+
+	/**
+	 * Tells the benchmark it was called, then fails so the claim goes no further.
+	 */
+	private class StubProvider implements IStorageManagementProvider {
+		@Override
+		public V1PersistentVolumeSpec createPersistentVolume(Map<String, String> annotations, long sizeInBytes) throws Exception {
+			created.put(System.nanoTime());
+			throw new IllegalStateException("Benchmark provider never creates anything");
+		}
+
+		@Override
+		public void removePersistentVolume(Map<String, String> annotations) {
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		// Every claim ends in a failed create, which would otherwise be logged with its stack trace
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(PVClaimManagerService.class)).setLevel(Level.OFF);
+
+		configFile = File.createTempFile("storage", ".yml");
+		Files.write(configFile.toPath(), ("---\ndefaultStorageClass: " + STORAGE_CLASS + "\nblockedAnnotations: []\nstorageProviders: []\n").getBytes(StandardCharsets.UTF_8));
+		StorageControllerConfiguration configuration = new StorageControllerConfiguration(configFile.getPath());
+
+		StorageProvider storageProvider = new StorageProvider();
+		storageProvider.setStorageClass(STORAGE_CLASS);
+		storageProvider.setPvNameFormat(storageProvider.getDefaultPvNameFormat());
+		storageProvider.setBlockedAnnotations(new ArrayList<>());
+		storageProvider.setWorkerPool(new KeyedWorkerPool(STORAGE_CLASS, StorageControllerConfiguration.CONFIG_PROVISIONING_THREADS_DEFAULT));
+		storageProvider.setManagementProvider(new StubProvider());
+		Map<String, StorageProvider> providers = new HashMap<>();
+		providers.put(STORAGE_CLASS, storageProvider);
+		configuration.setStorageProviders(providers);
+
+		KubernetesApiClientManager apiClientManager = new KubernetesApiClientManager("http://127.0.0.1:1", "", "bench", false, 0, false, 1, 1000);
+		service = new PVClaimManagerService();
+		service.startClaimNotificationConsumer(configuration, apiClientManager, blocking, 5000, pollSleepMs);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		service.destroy();
+		configFile.delete();
+	}
+
+	private static PVCChangeNotification claim() {
+		String uid = UUID.randomUUID().toString();
+		Map<String, String> annotations = new HashMap<>();
+		annotations.put(ANNOTATION_KUBERNETES_STORAGE_PROVISIONER, ANNOTATION_STORAGE_PROVISIONER_NAME);
+		return new PVCChangeNotification("bench", "claim-" + uid, new V1PersistentVolumeClaimSpec(), new HashMap<>(), annotations,
+				BigDecimal.valueOf(1L << 30), "Pending", "ADDED", uid);
+	}
+
+	/**
+	 * @return how long it took, the sample time includes the benchmark's own handoff as well
+	 */
+	@Benchmark
+	public long queuedToCreate() throws InterruptedException {
+		long queued = System.nanoTime();
+		service.getClaimQueue().add(claim());
+		return created.take() - queued;
+	}
+}
@@ -0,0 +1,135 @@
+package com.shackspacehosting.engineering.pvmanager.storage.providers;
+
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An embedded SSH server standing in for a storage appliance.  Commands run in a real sh, with a simulated zfs, and
+ * sudo and chmod that do nothing but run the command or succeed, ahead of everything else on the path.  Datasets only
+ * exist in a state directory that lives in memory when /dev/shm is there.
+ *
+ * Every zfs command that changes something can be slowed down by a fixed latency, and made to fail some percentage of
+ * the time.
+ */
+public class FakeZfsSshServer implements AutoCloseable {
+	final public static String USERNAME = "pvmanager";
+	final public static String TOKEN = "fake-zfs";
+	final public static long AVAILABLE_BYTES = 1L << 40;
+
+	final private String rootPath;
+	final private Path directory;
+	final private Path stateDirectory;
+	final private Path binDirectory;
+	final private SshServer sshd;
+
+	/**
+	 * @param rootPath the dataset volumes are made under, it exists from the start
+	 * @param latencyMs how long each zfs command takes
+	 * @param failurePercent how often creates, snapshots, clones and destroys fail
+	 */
+	public FakeZfsSshServer(String rootPath, long latencyMs, int failurePercent) throws IOException {
+		this.rootPath = rootPath;
+		Path shm = Paths.get("/dev/shm");
+		this.directory = Files.isDirectory(shm) ? Files.createTempDirectory(shm, "fake-zfs") : Files.createTempDirectory("fake-zfs");
+		this.stateDirectory = Files.createDirectory(directory.resolve("state"));
+		this.binDirectory = Files.createDirectory(directory.resolve("bin"));
+
+		String script;
+		try (InputStream in = FakeZfsSshServer.class.getResourceAsStream("fake-zfs.sh")) {
+			if(in == null) {
+				throw new IOException("fake-zfs.sh is missing from the classpath");
+			}
+			script = new String(readAll(in), StandardCharsets.UTF_8);
+		}
+		writeExecutable("zfs", "#!/bin/sh\n" +
+				"STATE='" + stateDirectory + "'\n" +
+				"LATENCY=" + String.format("%d.%03d", latencyMs / 1000, latencyMs % 1000) + "\n" +
+				"FAILURE_PERCENT=" + failurePercent + "\n" +
+				"AVAILABLE=" + AVAILABLE_BYTES + "\n" +
+				script);
+		writeExecutable("sudo", "#!/bin/sh\nexec \"$@\"\n");
+		writeExecutable("chmod", "#!/bin/sh\nexit 0\n");
+
+		Files.write(stateDirectory.resolve(rootPath.replace('/', '%')),
+				("name=" + rootPath + "\ntype=filesystem\nused=0\navail=" + AVAILABLE_BYTES + "\norigin=-\n").getBytes(StandardCharsets.UTF_8));
+
+		final String path = "PATH='" + binDirectory + "':\"$PATH\"; export PATH; ";
+		sshd = SshServer.setUpDefaultServer();
+		sshd.setHost("127.0.0.1");
+		sshd.setPort(0);
+		sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+		sshd.setPasswordAuthenticator((username, password, session) -> USERNAME.equals(username) && TOKEN.equals(password));
+		sshd.setCommandFactory(command -> new ProcessShellFactory(new String[] { "/bin/sh", "-c", path + command }).create());
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private void writeExecutable(String name, String content) throws IOException {
+		Path file = binDirectory.resolve(name);
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+		Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rwxr-xr-x"));
+	}
+
+	public void start() throws IOException {
+		sshd.start();
+	}
+
+	public String getHostname() {
+		return "127.0.0.1";
+	}
+
+	public int getPort() {
+		return sshd.getPort();
+	}
+
+	public String getRootPath() {
+		return rootPath;
+	}
+
+	public boolean exists(String dataset) {
+		return Files.exists(stateDirectory.resolve(dataset.replace('/', '%').replace('@', '#')));
+	}
+
+	/**
+	 * @return every dataset and snapshot, the root included
+	 */
+	public List<String> getDatasets() throws IOException {
+		List<String> datasets = new ArrayList<>();
+		try (Stream<Path> files = Files.list(stateDirectory)) {
+			files.map(file -> file.getFileName().toString())
+					.filter(name -> name.indexOf('.') == -1)
+					.forEach(name -> datasets.add(name.replace('%', '/').replace('#', '@')));
+		}
+		return datasets;
+	}
+
+	@Override
+	public void close() throws IOException {
+		sshd.stop(true);
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+}
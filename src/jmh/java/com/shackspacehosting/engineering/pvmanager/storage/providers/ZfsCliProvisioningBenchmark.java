@@ -0,0 +1,139 @@
+package com.shackspacehosting.engineering.pvmanager.storage.providers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.shackspacehosting.engineering.pvmanager.storage.StorageProvider;
+import io.kubernetes.client.models.V1PersistentVolumeSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.ANNOTATION_VOLUME_UUID;
+import static com.shackspacehosting.engineering.pvmanager.storage.providers.ZfsCliStorageProvider.*;
+
+/**
+ * Provisions volumes through ZfsCliStorageProvider against FakeZfsSshServer, from as many threads as a busy storage
+ * class has workers.  Sample time mode gives the tail latencies, throughput mode the volumes per second.  Vary the SSH
+ * concurrency with -p sessions=... -p channelsPerSession=..., the way commands are sent with -p mode=..., the spares
+ * kept ready with -p warmPoolSize=... and the simulated appliance with -p latencyMs=... -p failurePercent=...
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class ZfsCliProvisioningBenchmark {
+	final private static String ROOT_PATH = "tank/persistentvolumes/bench";
+	final private static long SIZE_IN_BYTES = 1L << 30;
+
+	@Param({"1", "4"})
+	public int sessions;
+
+	@Param({"1", "8"})
+	public int channelsPerSession;
+
+	/**
+	 * commands runs each zfs command on its own channel, compound runs each operation as one script, agent pipelines
+	 * commands through long lived shells and batched runs the scripts for different volumes together.
+	 */
+	@Param({"commands", "compound", "agent", "batched"})
+	public String mode;
+
+	/**
+	 * Spares made ahead of time, setup waits for the pool to fill before measuring.
+	 */
+	@Param({"0"})
+	public int warmPoolSize;
+
+	@Param({"20"})
+	public long latencyMs;
+
+	@Param({"0"})
+	public int failurePercent;
+
+	private FakeZfsSshServer server;
+	private ZfsCliStorageProvider provider;
+
+	@Setup
+	public void setup() throws Exception {
+		server = new FakeZfsSshServer(ROOT_PATH, latencyMs, failurePercent);
+		server.start();
+
+		ObjectMapper mapper = new ObjectMapper();
+		ObjectNode cfgNode = mapper.createObjectNode();
+		ObjectNode ssh = cfgNode.putObject(CONFIG_SSH);
+		ssh.put(CONFIG_SSH_HOSTNAME, server.getHostname());
+		ssh.put(CONFIG_SSH_PORT, server.getPort());
+		ssh.put(CONFIG_SSH_IDENTITY, FakeZfsSshServer.USERNAME);
+		ssh.put(CONFIG_SSH_TOKEN, FakeZfsSshServer.TOKEN);
+		ssh.put(CONFIG_SSH_BECOMEROOT, true);
+		ssh.put(CONFIG_SSH_SESSIONS, sessions);
+		ssh.put(CONFIG_SSH_CHANNELSPERSESSION, channelsPerSession);
+		ssh.put(CONFIG_SSH_AGENTMODE, "agent".equals(mode));
+		ssh.put(CONFIG_SSH_AGENTS, sessions * channelsPerSession);
+		ObjectNode nfs = cfgNode.putObject(CONFIG_NFS);
+		nfs.put(CONFIG_NFS_HOSTNAME, "nfs.bench.local");
+		nfs.put(CONFIG_NFS_EXPORTROOT, "/exports/bench");
+		ObjectNode zfs = cfgNode.putObject(CONFIG_ZFS);
+		zfs.put(CONFIG_ZFS_ROOTPATH, ROOT_PATH);
+		zfs.put(CONFIG_ZFS_UNIXMODE, "0777");
+		zfs.put(CONFIG_ZFS_COMPOUNDSCRIPTS, "compound".equals(mode));
+		zfs.put(CONFIG_ZFS_BATCHWINDOWMS, "batched".equals(mode) ? 5 : 0);
+
+		StorageProvider storageProvider = new StorageProvider();
+		storageProvider.setStorageClass("bench");
+		storageProvider.setCommandTimeoutSeconds(60);
+		storageProvider.setOperationTimeoutSeconds(120);
+		storageProvider.setWarmPoolSize(warmPoolSize);
+		provider = new ZfsCliStorageProvider(storageProvider, cfgNode);
+		while(provider.getWarmPool() != null && provider.getWarmPool().size() < warmPoolSize) {
+			Thread.sleep(10);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		provider.close();
+		server.close();
+	}
+
+	private static Map<String, String> annotations() {
+		Map<String, String> annotations = new HashMap<>();
+		String uuid = UUID.randomUUID().toString();
+		annotations.put(ANNOTATION_VOLUME_UUID, uuid);
+		annotations.put(ANNOTATION_PVMANAGER_PVREF, "bench-" + uuid);
+		return annotations;
+	}
+
+	@Benchmark
+	public V1PersistentVolumeSpec create() throws Exception {
+		return provider.createPersistentVolume(annotations(), SIZE_IN_BYTES);
+	}
+
+	@Benchmark
+	public V1PersistentVolumeSpec createAndRemove() throws Exception {
+		Map<String, String> annotations = annotations();
+		V1PersistentVolumeSpec spec = provider.createPersistentVolume(annotations, SIZE_IN_BYTES);
+		if(spec != null) {
+			provider.removePersistentVolume(annotations);
+		}
+		return spec;
+	}
+}
@@ -0,0 +1,233 @@
+# A stand-in for the zfs command, just enough of it for ZfsCliStorageProvider.  Every dataset and snapshot is a file
+# of name=value properties in $STATE, FakeZfsSshServer puts that in memory when it can.  Files are replaced with mv so
+# concurrent readers never see half a dataset.
+#
+# FakeZfsSshServer writes STATE, LATENCY (seconds, may be fractional), FAILURE_PERCENT and AVAILABLE above this line.
+
+key() {
+	printf '%s' "$1" | tr '/@' '%#'
+}
+
+file() {
+	printf '%s/%s' "$STATE" "$(key "$1")"
+}
+
+latency() {
+	[ "$LATENCY" = "0" ] || sleep "$LATENCY"
+}
+
+inject() {
+	[ "$FAILURE_PERCENT" -gt 0 ] || return 0
+	r=$(od -An -N2 -tu2 /dev/urandom | tr -d ' ')
+	if [ $((r % 100)) -lt "$FAILURE_PERCENT" ]; then
+		echo "cannot $1 '$2': injected failure" >&2
+		exit 1
+	fi
+}
+
+property() {
+	v=$(grep "^$2=" "$1" 2>/dev/null | head -n 1 | cut -d= -f2-)
+	printf '%s' "${v:--}"
+}
+
+write() {
+	# $1 is the dataset, the properties come in on stdin
+	f=$(file "$1")
+	cat > "$f.$$" && mv "$f.$$" "$f"
+}
+
+list() {
+	fields=name
+	depth=
+	type=all
+	header=yes
+	while [ $# -gt 1 ]; do
+		case "$1" in
+			-H) header=; shift ;;
+			-p|-r) shift ;;
+			-d) depth=$2; shift 2 ;;
+			-t) type=$2; shift 2 ;;
+			-o) fields=$2; shift 2 ;;
+			*) echo "fake zfs list: unsupported option: $1" >&2; exit 2 ;;
+		esac
+	done
+	root=$1
+	if [ ! -f "$(file "$root")" ]; then
+		echo "cannot open '$root': dataset does not exist" >&2
+		exit 1
+	fi
+	if [ -n "$header" ]; then
+		echo "$fields" | tr 'a-z,' 'A-Z\t'
+	fi
+	prefix=$(key "$root")
+	for f in "$STATE/$prefix" "$STATE/$prefix"%*; do
+		[ -f "$f" ] || continue
+		rest=${f#"$STATE/$prefix"}
+		case "$rest" in
+			*.*) continue ;;
+		esac
+		if [ "$depth" = "1" ]; then
+			case "${rest#%}" in
+				*%*) continue ;;
+			esac
+		fi
+		kind=$(property "$f" type)
+		[ "$type" = "all" ] || [ "$type" = "$kind" ] || continue
+		line=
+		for field in $(echo "$fields" | tr ',' ' '); do
+			line="$line$(property "$f" "$field")	"
+		done
+		printf '%s\n' "${line%	}"
+	done
+}
+
+cmd=$1
+shift
+case "$cmd" in
+	list)
+		latency
+		list "$@"
+		exit 0
+		;;
+	program)
+		# Only the channel programs ZfsCliStorageProvider sends are understood
+		code=$(cat "$2")
+		shift 2
+		case "$code" in
+			"return 0") exit 0 ;;
+			*zfs.sync.snapshot*) exec "$0" snapshot -o "pvmanager:pvref=$2" "$1" ;;
+		esac
+		echo "fake zfs: unsupported channel program" >&2
+		exit 1
+		;;
+	create|snapshot|clone|destroy|rename|set) ;;
+	*)
+		echo "fake zfs: unsupported command: $cmd" >&2
+		exit 2
+		;;
+esac
+
+props=
+parents=
+while [ $# -gt 0 ]; do
+	case "$1" in
+		-o) props="$props$2
+"; shift 2 ;;
+		-p) parents=yes; shift ;;
+		-*) shift ;;
+		*) break ;;
+	esac
+done
+
+latency
+case "$cmd" in
+	create)
+		name=$1
+		inject create "$name"
+		if [ -f "$(file "$name")" ]; then
+			[ -n "$parents" ] && exit 0
+			echo "cannot create '$name': dataset already exists" >&2
+			exit 1
+		fi
+		if [ ! -f "$(file "${name%/*}")" ]; then
+			echo "cannot create '$name': parent does not exist" >&2
+			exit 1
+		fi
+		printf 'name=%s\ntype=filesystem\nused=0\navail=%s\norigin=-\n%s' "$name" "$AVAILABLE" "$props" | write "$name"
+		;;
+	snapshot)
+		name=$1
+		inject snapshot "$name"
+		if [ ! -f "$(file "${name%@*}")" ]; then
+			echo "cannot open '${name%@*}': dataset does not exist" >&2
+			exit 1
+		fi
+		if [ -f "$(file "$name")" ]; then
+			echo "cannot create snapshot '$name': dataset already exists" >&2
+			exit 1
+		fi
+		printf 'name=%s\ntype=snapshot\nused=0\navail=-\norigin=-\n%s' "$name" "$props" | write "$name"
+		;;
+	clone)
+		snapshot=$1
+		name=$2
+		inject clone "$name"
+		if [ ! -f "$(file "$snapshot")" ]; then
+			echo "cannot open '$snapshot': dataset does not exist" >&2
+			exit 1
+		fi
+		if [ -f "$(file "$name")" ]; then
+			echo "cannot create '$name': dataset already exists" >&2
+			exit 1
+		fi
+		printf 'name=%s\ntype=filesystem\nused=0\navail=%s\norigin=%s\n%s' "$name" "$AVAILABLE" "$snapshot" "$props" | write "$name"
+		;;
+	destroy)
+		name=$1
+		inject destroy "$name"
+		f=$(file "$name")
+		if [ ! -f "$f" ]; then
+			echo "cannot open '$name': dataset does not exist" >&2
+			exit 1
+		fi
+		if grep -q -x -F "origin=$name" "$STATE"/* 2>/dev/null; then
+			echo "cannot destroy '$name': snapshot has dependent clones" >&2
+			exit 1
+		fi
+		for child in "$f"%* "$f"#*; do
+			if [ -f "$child" ]; then
+				echo "cannot destroy '$name': filesystem has children" >&2
+				exit 1
+			fi
+		done
+		rm -f "$f"
+		;;
+	rename)
+		name=$1
+		target=$2
+		inject rename "$name"
+		f=$(file "$name")
+		if [ ! -f "$f" ]; then
+			echo "cannot open '$name': dataset does not exist" >&2
+			exit 1
+		fi
+		if [ -f "$(file "$target")" ]; then
+			echo "cannot rename to '$target': dataset already exists" >&2
+			exit 1
+		fi
+		if [ ! -f "$(file "${target%/*}")" ]; then
+			echo "cannot rename to '$target': parent does not exist" >&2
+			exit 1
+		fi
+		# Children and snapshots move along with the dataset
+		t=$(file "$target")
+		for child in "$f" "$f"%* "$f"#*; do
+			[ -f "$child" ] || continue
+			rest=${child#"$f"}
+			sed "s|^name=$name|name=$target|" "$child" > "$t$rest.$$" && mv "$t$rest.$$" "$t$rest" && rm -f "$child"
+		done
+		# Clones of its snapshots see the new name, as origin is looked up rather than stored
+		grep -l "^origin=$name@" "$STATE"/* 2>/dev/null | while read -r other; do
+			sed "s|^origin=$name@|origin=$target@|" "$other" > "$other.$$" && mv "$other.$$" "$other"
+		done
+		;;
+	set)
+		# Every argument but the last is a property=value
+		for name in "$@"; do :; done
+		inject set "$name"
+		f=$(file "$name")
+		if [ ! -f "$f" ]; then
+			echo "cannot open '$name': dataset does not exist" >&2
+			exit 1
+		fi
+		filter=
+		while [ $# -gt 1 ]; do
+			filter="$filter -e ^${1%%=*}="
+			props="$props$1
+"
+			shift
+		done
+		{ grep -v $filter "$f"; printf '%s' "$props"; } | write "$name"
+		;;
+esac
+exit 0
@@ -0,0 +1,92 @@
+package com.shackspacehosting.engineering.pvmanager;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Collects the output of a remote command in a fixed amount of memory.  Once it's full the oldest bytes are dropped,
+ * the end of the output is what explains a failure.  Writes never block, so this is safe to hand to the JSch session
+ * thread directly.
+ */
+public class BoundedOutputBuffer extends OutputStream {
+	final private byte[] buffer;
+	private int start = 0;
+	private int length = 0;
+	private long dropped = 0;
+
+	public BoundedOutputBuffer(int capacity) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("Output buffer capacity must be at least one byte: " + capacity);
+		}
+		this.buffer = new byte[capacity];
+	}
+
+	@Override
+	public synchronized void write(int b) {
+		if(length == buffer.length) {
+			start = (start + 1) % buffer.length;
+			length--;
+			dropped++;
+		}
+		buffer[(start + length) % buffer.length] = (byte) b;
+		length++;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		if(len > buffer.length) {
+			// Only the tail of this write survives anyway
+			dropped += length + len - buffer.length;
+			off += len - buffer.length;
+			len = buffer.length;
+			start = 0;
+			length = 0;
+		}
+		int overflow = length + len - buffer.length;
+		if(overflow > 0) {
+			start = (start + overflow) % buffer.length;
+			length -= overflow;
+			dropped += overflow;
+		}
+		int end = (start + length) % buffer.length;
+		int first = Math.min(len, buffer.length - end);
+		System.arraycopy(b, off, buffer, end, first);
+		System.arraycopy(b, off + first, buffer, 0, len - first);
+		length += len;
+	}
+
+	/**
+	 * @return the number of bytes that were dropped to make room for newer output
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized int size() {
+		return length;
+	}
+
+	public synchronized byte[] toByteArray() {
+		byte[] bytes = new byte[length];
+		int first = Math.min(length, buffer.length - start);
+		System.arraycopy(buffer, start, bytes, 0, first);
+		System.arraycopy(buffer, 0, bytes, first, length - first);
+		return bytes;
+	}
+
+	/**
+	 * Decodes what's left of the output, noting how much of it was dropped.
+	 */
+	public synchronized String toString(Charset charset) {
+		byte[] bytes = toByteArray();
+		int offset = 0;
+		if(dropped > 0 && "UTF-8".equals(charset.name())) {
+			// Don't start decoding in the middle of a multi-byte character
+			while(offset < bytes.length && (bytes[offset] & 0xc0) == 0x80) {
+				offset++;
+			}
+		}
+		String output = new String(bytes, offset, bytes.length - offset, charset);
+		return dropped > 0 ? "[" + (dropped + offset) + " bytes of output dropped]\n" + output : output;
+	}
+}
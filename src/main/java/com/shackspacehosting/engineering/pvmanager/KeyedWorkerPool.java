@@ -0,0 +1,329 @@
+package com.shackspacehosting.engineering.pvmanager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs tasks on a fixed number of single threaded lanes.  Every task submitted with the same key lands on the same
+ * lane, so work for one object is always done in the order it was submitted while work for different objects runs in
+ * parallel.  The number of lanes is the most work this pool will ever be running at once, asynchronous work included.
+ *
+ * Work submitted with a merge function is coalesced: while a value for a key is still waiting for its lane, newer
+ * values for that key are merged into it instead of being queued behind it.
+ *
+ * Asynchronous work only holds its lane while it is being started, but its key stays busy and it holds one of the
+ * pool's permits until the work completes.  Later work for a busy key is set aside, still coalescing, and the lane gets
+ * on with work for other keys meanwhile.  Once every permit is held, new work waits in its lane for one to be
+ * returned, only continuations of the work already running go ahead of it.
+ */
+public class KeyedWorkerPool implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(KeyedWorkerPool.class);
+
+	final private String name;
+	final private Lane[] lanes;
+	final private AtomicLong coalescedCount = new AtomicLong();
+	// One for each piece of work running, from when it starts until its stage completes
+	final private Semaphore permits;
+
+	public KeyedWorkerPool(String name, int size) {
+		if(size < 1) {
+			throw new IllegalArgumentException("Worker pool " + name + " must have at least one thread: " + size);
+		}
+		this.name = name;
+		this.permits = new Semaphore(size);
+		this.lanes = new Lane[size];
+		for(int i = 0; i < size; i++) {
+			lanes[i] = new Lane(name + "-worker-" + i);
+			lanes[i].start();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getSize() {
+		return lanes.length;
+	}
+
+	/**
+	 * @return the number of submitted values that were merged into a value already waiting for the same key
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public void execute(String key, Runnable task) {
+		execute(key, task, null, Runnable::run);
+	}
+
+	public <T> void execute(String key, T value, BinaryOperator<T> merger, Consumer<T> handler) {
+		lanes[laneFor(key)].submit(new Pending<>(key, value, merger, v -> {
+			handler.accept(v);
+			return null;
+		}, false));
+	}
+
+	/**
+	 * Like execute, except the handler only starts the work, and nothing else submitted for the key runs until the
+	 * stage it returns has completed.  The work counts against the size of the pool until then.
+	 */
+	public <T> void executeAsync(String key, T value, BinaryOperator<T> merger, Function<T, CompletionStage<?>> handler) {
+		lanes[laneFor(key)].submit(new Pending<>(key, value, merger, handler, false));
+	}
+
+	/**
+	 * @return an executor that runs tasks on the key's lane ahead of anything waiting there, for finishing off
+	 * asynchronous work while its key is still busy
+	 */
+	public Executor continuationExecutor(String key) {
+		final Lane lane = lanes[laneFor(key)];
+		return task -> lane.submit(new Pending<Runnable>(key, task, null, runnable -> {
+			runnable.run();
+			return null;
+		}, true));
+	}
+
+	// A permit came back, any lane could be waiting for it
+	private void returnPermit() {
+		permits.release();
+		for(Lane lane : lanes) {
+			lane.wake();
+		}
+	}
+
+	int laneFor(String key) {
+		if(key == null) {
+			return 0;
+		}
+		return (key.hashCode() & 0x7fffffff) % lanes.length;
+	}
+
+	/**
+	 * Drops all the work that hasn't started, and waits for the work that has, asynchronous work included, to finish.
+	 * The pool can be used again afterwards.
+	 *
+	 * @return false if some of it was still running when the timeout ran out
+	 */
+	public boolean drain(long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		for(Lane lane : lanes) {
+			lane.discard();
+		}
+		for(Lane lane : lanes) {
+			if(!lane.awaitIdle(deadline)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		for(Lane lane : lanes) {
+			lane.shutdown();
+		}
+		try {
+			for(Lane lane : lanes) {
+				lane.join(TimeUnit.SECONDS.toMillis(30));
+			}
+		} catch (InterruptedException e) {
+			LOG.warn("Interrupted waiting for worker pool " + name + " to stop");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Pending<T> {
+		final String key;
+		T value;
+		final BinaryOperator<T> merger;
+		// Returns the stage the work completes with, or null if it was all done by the time it returned
+		final Function<T, CompletionStage<?>> handler;
+		final boolean continuation;
+
+		Pending(String key, T value, BinaryOperator<T> merger, Function<T, CompletionStage<?>> handler, boolean continuation) {
+			this.key = key;
+			this.value = value;
+			this.merger = merger;
+			this.handler = handler;
+			this.continuation = continuation;
+		}
+
+		CompletionStage<?> run() {
+			return handler.apply(value);
+		}
+	}
+
+	private class Lane extends Thread {
+		final private ArrayDeque<Pending<?>> queue = new ArrayDeque<>();
+		// Only values that can still be merged, keyed by object
+		final private Map<String, Pending<?>> waiting = new HashMap<>();
+		// Keys with asynchronous work that hasn't completed, with the work set aside until it has
+		final private Map<String, ArrayDeque<Pending<?>>> busy = new HashMap<>();
+		private boolean stopped = false;
+		private boolean running = false;
+
+		Lane(String threadName) {
+			super(threadName);
+			setDaemon(true);
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized <T> void submit(Pending<T> submitted) {
+			if(stopped) {
+				if(submitted.continuation) {
+					LOG.warn("Worker pool " + name + " was closed before it could finish off work for " + submitted.key + ", dropping it");
+				}
+				return;
+			}
+			if(submitted.continuation) {
+				queue.addFirst(submitted);
+				notifyAll();
+				return;
+			}
+			if(submitted.merger != null) {
+				Pending<T> pending = (Pending<T>) waiting.get(submitted.key);
+				if(pending != null) {
+					pending.value = pending.merger.apply(pending.value, submitted.value);
+					coalescedCount.incrementAndGet();
+					LOG.trace("Coalesced waiting work for " + submitted.key + " in worker pool " + name);
+					return;
+				}
+				waiting.put(submitted.key, submitted);
+			}
+			queue.addLast(submitted);
+			notifyAll();
+		}
+
+		synchronized Pending<?> next() throws InterruptedException {
+			while(true) {
+				while(queue.isEmpty() && !stopped) {
+					wait();
+				}
+				if(stopped) {
+					return null;
+				}
+				Pending<?> pending = queue.peekFirst();
+				if(!pending.continuation && busy.containsKey(pending.key)) {
+					// It stays in waiting, so newer values are still merged into it
+					queue.removeFirst();
+					busy.get(pending.key).addLast(pending);
+					continue;
+				}
+				if(!pending.continuation && !permits.tryAcquire()) {
+					// The pool is as busy as it's allowed to be, a continuation or a returned permit wakes us
+					wait();
+					continue;
+				}
+				queue.removeFirst();
+				if(waiting.get(pending.key) == pending) {
+					waiting.remove(pending.key);
+				}
+				running = true;
+				return pending;
+			}
+		}
+
+		synchronized void wake() {
+			notifyAll();
+		}
+
+		synchronized void ran() {
+			running = false;
+			notifyAll();
+		}
+
+		synchronized void started(String key) {
+			busy.put(key, new ArrayDeque<>());
+		}
+
+		synchronized void finished(String key) {
+			ArrayDeque<Pending<?>> setAside = busy.remove(key);
+			if(setAside != null && !stopped) {
+				Iterator<Pending<?>> it = setAside.descendingIterator();
+				while(it.hasNext()) {
+					queue.addFirst(it.next());
+				}
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Drops everything that hasn't started, except for continuations of work that has.
+		 */
+		synchronized void discard() {
+			queue.removeIf(pending -> !pending.continuation);
+			waiting.clear();
+			for(ArrayDeque<Pending<?>> setAside : busy.values()) {
+				setAside.clear();
+			}
+		}
+
+		synchronized boolean awaitIdle(long deadline) throws InterruptedException {
+			while(running || !busy.isEmpty() || !queue.isEmpty()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+			return true;
+		}
+
+		synchronized void shutdown() {
+			stopped = true;
+			queue.clear();
+			waiting.clear();
+			busy.clear();
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				final Pending<?> pending;
+				try {
+					pending = next();
+				} catch(InterruptedException e) {
+					return;
+				}
+				if(pending == null) {
+					return;
+				}
+				CompletionStage<?> stage = null;
+				try {
+					stage = pending.run();
+					if(stage != null) {
+						started(pending.key);
+						stage.whenComplete((result, e) -> {
+							finished(pending.key);
+							if(!pending.continuation) {
+								returnPermit();
+							}
+						});
+					}
+				} catch(Exception e) {
+					LOG.error("Unhandled exception in worker pool " + name + " for " + pending.key, e);
+				} finally {
+					ran();
+					if(stage == null && !pending.continuation) {
+						returnPermit();
+					}
+				}
+			}
+		}
+	}
+}
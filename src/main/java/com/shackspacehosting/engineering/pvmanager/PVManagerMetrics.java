@@ -0,0 +1,167 @@
+package com.shackspacehosting.engineering.pvmanager;
+
+import com.shackspacehosting.engineering.pvmanager.storage.DatasetInventory;
+import com.shackspacehosting.engineering.pvmanager.storage.DeferredDestroyReaper;
+import com.shackspacehosting.engineering.pvmanager.storage.StorageBackend;
+import com.shackspacehosting.engineering.pvmanager.storage.WarmDatasetPool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Names and helpers for the meters pvmanager publishes.  Everything is registered with the micrometer global registry,
+ * which spring boot hooks up to its own registries, so storage providers can record metrics without being spring beans.
+ * The prometheus registry exposes all of them on the actuator /prometheus endpoint.
+ */
+public class PVManagerMetrics {
+	final public static String QUEUE_DEPTH = "pvmanager.queue.depth";
+	final public static String NOTIFICATION_QUEUED = "pvmanager.notification.queued";
+	final public static String NOTIFICATION_PENDING = "pvmanager.notification.pending";
+	final public static String NOTIFICATIONS_COALESCED = "pvmanager.notifications.coalesced";
+	final public static String WATCH_EVENTS = "pvmanager.watch.events";
+	final public static String WATCH_RESTARTS = "pvmanager.watch.restarts";
+	final public static String WATCH_RELISTS = "pvmanager.watch.relists";
+	final public static String PROVIDER_OPERATION = "pvmanager.provider.operation";
+	final public static String INVENTORY_DATASETS = "pvmanager.inventory.datasets";
+	final public static String INVENTORY_USED = "pvmanager.inventory.used.bytes";
+	final public static String INVENTORY_AVAILABLE = "pvmanager.inventory.available.bytes";
+	final public static String INVENTORY_QUOTA = "pvmanager.inventory.quota.bytes";
+	final public static String INVENTORY_ORPHANS = "pvmanager.inventory.orphans";
+	final public static String WARM_POOL_SPARES = "pvmanager.warmpool.spares";
+	final public static String TRASH_BACKLOG = "pvmanager.trash.backlog";
+	final public static String BACKEND_OUTSTANDING = "pvmanager.backend.outstanding";
+
+	final public static String TAG_QUEUE = "queue";
+	final public static String TAG_RESOURCE = "resource";
+	final public static String TAG_TYPE = "type";
+	final public static String TAG_REASON = "reason";
+	final public static String TAG_OPERATION = "operation";
+	final public static String TAG_STORAGE_CLASS = "storageClass";
+	final public static String TAG_BACKEND = "backend";
+	final public static String TAG_OUTCOME = "outcome";
+
+	final public static String OUTCOME_SUCCESS = "success";
+	final public static String OUTCOME_FAILURE = "failure";
+
+	public static void registerQueueDepth(String queue, Collection<?> collection) {
+		Gauge.builder(QUEUE_DEPTH, collection, Collection::size)
+				.tag(TAG_QUEUE, queue)
+				.description("Notifications waiting to be dequeued")
+				.register(Metrics.globalRegistry);
+	}
+
+	/**
+	 * Gauges only hold a weak reference to what they measure, source has to be something that lives as long as we do.
+	 */
+	public static <T> void registerCoalescedCount(T source, ToDoubleFunction<T> count) {
+		Gauge.builder(NOTIFICATIONS_COALESCED, source, count)
+				.description("Notifications merged into one already waiting for the same claim or volume")
+				.register(Metrics.globalRegistry);
+	}
+
+	/**
+	 * Records how long ago a notification was created by a watcher, either when it leaves the queue or when a worker
+	 * finally starts processing it.
+	 */
+	public static void recordNotificationAge(String meter, String queue, long createdAtMillis) {
+		Timer.builder(meter)
+				.tag(TAG_QUEUE, queue)
+				.publishPercentileHistogram()
+				.register(Metrics.globalRegistry)
+				.record(Math.max(0, System.currentTimeMillis() - createdAtMillis), TimeUnit.MILLISECONDS);
+	}
+
+	public static void countWatchEvent(String resource, String type) {
+		Counter.builder(WATCH_EVENTS)
+				.tag(TAG_RESOURCE, resource)
+				.tag(TAG_TYPE, type)
+				.register(Metrics.globalRegistry)
+				.increment();
+	}
+
+	public static void countWatchRestart(String resource, String reason) {
+		Counter.builder(WATCH_RESTARTS)
+				.tag(TAG_RESOURCE, resource)
+				.tag(TAG_REASON, reason)
+				.register(Metrics.globalRegistry)
+				.increment();
+	}
+
+	public static void countRelist(String resource) {
+		Counter.builder(WATCH_RELISTS)
+				.tag(TAG_RESOURCE, resource)
+				.register(Metrics.globalRegistry)
+				.increment();
+	}
+
+	public static void registerInventory(String storageClass, String backend, DatasetInventory inventory) {
+		Gauge.builder(INVENTORY_DATASETS, inventory, DatasetInventory::size)
+				.tag(TAG_STORAGE_CLASS, storageClass)
+				.tag(TAG_BACKEND, backend)
+				.description("Volumes found on the storage backend")
+				.register(Metrics.globalRegistry);
+		Gauge.builder(INVENTORY_USED, inventory, DatasetInventory::getUsedBytes)
+				.tag(TAG_STORAGE_CLASS, storageClass)
+				.tag(TAG_BACKEND, backend)
+				.description("Space used under the storage backend root")
+				.register(Metrics.globalRegistry);
+		Gauge.builder(INVENTORY_AVAILABLE, inventory, DatasetInventory::getAvailableBytes)
+				.tag(TAG_STORAGE_CLASS, storageClass)
+				.tag(TAG_BACKEND, backend)
+				.description("Space left under the storage backend root")
+				.register(Metrics.globalRegistry);
+		Gauge.builder(INVENTORY_QUOTA, inventory, DatasetInventory::getQuotaBytes)
+				.tag(TAG_STORAGE_CLASS, storageClass)
+				.tag(TAG_BACKEND, backend)
+				.description("Sum of the quotas of every volume on the storage backend")
+				.register(Metrics.globalRegistry);
+	}
+
+	public static void registerOrphanCount(String storageClass, String backend, AtomicInteger orphans) {
+		Gauge.builder(INVENTORY_ORPHANS, orphans, AtomicInteger::get)
+				.tag(TAG_STORAGE_CLASS, storageClass)
+				.tag(TAG_BACKEND, backend)
+				.description("Volumes on the storage backend no persistent volume refers to")
+				.register(Metrics.globalRegistry);
+	}
+
+	public static void registerWarmPool(String storageClass, String backend, WarmDatasetPool pool) {
+		Gauge.builder(WARM_POOL_SPARES, pool, WarmDatasetPool::size)
+				.tag(TAG_STORAGE_CLASS, storageClass)
+				.tag(TAG_BACKEND, backend)
+				.description("Spare datasets ready to be handed to claims")
+				.register(Metrics.globalRegistry);
+	}
+
+	public static void registerTrashBacklog(String storageClass, String backend, DeferredDestroyReaper reaper) {
+		Gauge.builder(TRASH_BACKLOG, reaper, DeferredDestroyReaper::getBacklog)
+				.tag(TAG_STORAGE_CLASS, storageClass)
+				.tag(TAG_BACKEND, backend)
+				.description("Removed volumes waiting in the trash to be destroyed")
+				.register(Metrics.globalRegistry);
+	}
+
+	public static void registerBackend(String storageClass, StorageBackend backend) {
+		Gauge.builder(BACKEND_OUTSTANDING, backend, StorageBackend::getOutstanding)
+				.tag(TAG_STORAGE_CLASS, storageClass)
+				.tag(TAG_BACKEND, backend.getName())
+				.description("Creates and removes running against the storage backend")
+				.register(Metrics.globalRegistry);
+	}
+
+	public static void recordProviderOperation(String operation, String storageClass, long startNanos, boolean success) {
+		Timer.builder(PROVIDER_OPERATION)
+				.tag(TAG_OPERATION, operation)
+				.tag(TAG_STORAGE_CLASS, storageClass == null ? "" : storageClass)
+				.tag(TAG_OUTCOME, success ? OUTCOME_SUCCESS : OUTCOME_FAILURE)
+				.publishPercentileHistogram()
+				.register(Metrics.globalRegistry)
+				.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,329 @@
+package com.shackspacehosting.engineering.pvmanager;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs commands through one long lived shell on a single exec channel instead of opening a channel, and a shell, for
+ * every command.  Requests are written to the shell's stdin as an id line followed by a command line, the shell runs
+ * them one after another and ends each one's output with a marker line carrying the id and exit status.  Ids are
+ * random, so output can't end a request early by printing something that looks like a marker.
+ *
+ * Any number of requests can be written before the first one finishes, they're answered in the order they were sent.
+ * If the shell dies, or the running command times out and the shell is killed to stop it, only that command fails:
+ * the ones queued behind it never started and are sent again to a new shell.
+ */
+public class RemoteCommandAgent implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(RemoteCommandAgent.class);
+
+	final private static String MARKER = "@@PVM-END";
+	// Commands run in a subshell so an exit or cd can't touch the agent, and get /dev/null as stdin so they can't read
+	// the requests queued behind them
+	final private static String AGENT_SCRIPT = "while IFS= read -r id && IFS= read -r cmd; do " +
+			"(eval \"$cmd\") </dev/null 2>&1; printf \"\\n" + MARKER + " %s %d\\n\" \"$id\" $?; done";
+
+	final private SSHSessionPool pool;
+	final private String shellPrefix;
+	final private ScheduledExecutorService watchdog;
+	final private int outputLimit;
+
+	final private ArrayDeque<Request> pending = new ArrayDeque<>();
+	private Shell shell = null;
+	private boolean closed = false;
+
+	/**
+	 * @param shellPrefix what the agent shell is started with, "sudo " runs every command as root without paying for
+	 *                    sudo on each of them
+	 */
+	public RemoteCommandAgent(SSHSessionPool pool, String shellPrefix, ScheduledExecutorService watchdog, int outputLimit) {
+		this.pool = pool;
+		this.shellPrefix = shellPrefix == null ? "" : shellPrefix;
+		this.watchdog = watchdog;
+		this.outputLimit = outputLimit;
+	}
+
+	public static class Result {
+		final private int exitStatus;
+		final private String output;
+
+		Result(int exitStatus, String output) {
+			this.exitStatus = exitStatus;
+			this.output = output;
+		}
+
+		public int getExitStatus() {
+			return exitStatus;
+		}
+
+		/**
+		 * @return stdout and stderr of the command, interleaved as it wrote them
+		 */
+		public String getOutput() {
+			return output;
+		}
+	}
+
+	private static class Request {
+		final String id = UUID.randomUUID().toString();
+		final String command;
+		final long timeoutMs;
+		final CompletableFuture<Result> result = new CompletableFuture<>();
+		BoundedOutputBuffer output;
+		boolean newlinePending;
+		boolean timedOut;
+		ScheduledFuture<?> timeout;
+
+		Request(String command, long timeoutMs) {
+			this.command = command;
+			this.timeoutMs = timeoutMs;
+		}
+	}
+
+	/**
+	 * @return the number of requests sent that haven't been answered yet
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Queues a command, its result completes once the shell has run every command queued before it and then this one.
+	 *
+	 * @param timeoutMs how long the command may run once the shell gets to it, 0 is forever
+	 */
+	public synchronized CompletableFuture<Result> submit(String command, long timeoutMs) {
+		Request request = new Request(command, timeoutMs);
+		if(command.indexOf('\n') != -1 || command.indexOf('\r') != -1) {
+			request.result.completeExceptionally(new IllegalArgumentException("Agent commands must be a single line: " + command));
+			return request.result;
+		}
+		if(closed) {
+			request.result.completeExceptionally(new IOException("Remote command agent is closed"));
+			return request.result;
+		}
+		pending.addLast(request);
+		try {
+			if(shell == null) {
+				startShell();
+			} else {
+				shell.send(request);
+			}
+			if(pending.peekFirst() == request) {
+				startTimeout(request);
+			}
+		} catch(JSchException | IOException e) {
+			if(shell != null) {
+				shellDied(shell, e);
+			} else {
+				// Couldn't start a shell at all, so nothing queued has run
+				List<Request> abandoned = new ArrayList<>(pending);
+				pending.clear();
+				for(Request queued : abandoned) {
+					queued.result.completeExceptionally(e);
+				}
+			}
+		}
+		return request.result;
+	}
+
+	// Sends everything still pending to a new shell
+	private void startShell() throws JSchException, IOException {
+		shell = new Shell();
+		for(Request request : pending) {
+			shell.send(request);
+		}
+	}
+
+	private void startTimeout(Request request) {
+		request.output = new BoundedOutputBuffer(outputLimit);
+		request.newlinePending = false;
+		if(request.timeoutMs > 0) {
+			final Shell running = shell;
+			request.timeout = watchdog.schedule(() -> {
+				synchronized (RemoteCommandAgent.this) {
+					if(shell == running && pending.peekFirst() == request) {
+						// The only way to stop the command is to take the whole shell down with it
+						request.timedOut = true;
+						running.kill();
+					}
+				}
+			}, request.timeoutMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void onOutput(Shell from, String line) {
+		Request request = pending.peekFirst();
+		if(shell != from || request == null) {
+			return;
+		}
+		if(line.startsWith(MARKER + " " + request.id + " ")) {
+			pending.removeFirst();
+			if(request.timeout != null) {
+				request.timeout.cancel(false);
+			}
+			int exitStatus;
+			try {
+				exitStatus = Integer.parseInt(line.substring(MARKER.length() + request.id.length() + 2).trim());
+			} catch(NumberFormatException e) {
+				exitStatus = -1;
+			}
+			request.result.complete(new Result(exitStatus, request.output.toString(StandardCharsets.UTF_8)));
+			Request next = pending.peekFirst();
+			if(next != null) {
+				startTimeout(next);
+			}
+			return;
+		}
+		// Output is stored a line behind so the newline the marker printf adds is never part of it
+		if(request.newlinePending) {
+			request.output.write('\n');
+		}
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		request.output.write(bytes, 0, bytes.length);
+		request.newlinePending = true;
+	}
+
+	private synchronized void shellDied(Shell died, Exception cause) {
+		if(died == null || shell != died) {
+			return;
+		}
+		died.release(!closed && cause != null);
+		shell = null;
+
+		Request running = pending.pollFirst();
+		if(running != null) {
+			if(running.timeout != null) {
+				running.timeout.cancel(false);
+			}
+			if(running.timedOut) {
+				running.result.completeExceptionally(new SSHCommandTimeoutException(running.command, running.timeoutMs,
+						running.output == null ? null : running.output.toString(StandardCharsets.UTF_8)));
+			} else if(cause != null) {
+				running.result.completeExceptionally(cause);
+			} else {
+				running.result.completeExceptionally(new IOException("Remote command agent exited while running: " + running.command));
+			}
+		}
+		if(closed || pending.isEmpty()) {
+			return;
+		}
+
+		LOG.warn("Remote command agent on " + pool.getName() + " died, resending " + pending.size() + " queued commands to a new one");
+		try {
+			startShell();
+			startTimeout(pending.peekFirst());
+		} catch(JSchException | IOException e) {
+			// Nothing got to run, fail them all rather than spin trying to start shells
+			Shell failed = shell;
+			shell = null;
+			if(failed != null) {
+				failed.release(true);
+			}
+			List<Request> abandoned = new ArrayList<>(pending);
+			pending.clear();
+			for(Request request : abandoned) {
+				request.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		Shell running;
+		List<Request> abandoned;
+		synchronized (this) {
+			closed = true;
+			running = shell;
+			shell = null;
+			abandoned = new ArrayList<>(pending);
+			pending.clear();
+		}
+		if(running != null) {
+			running.kill();
+			running.release(false);
+		}
+		for(Request request : abandoned) {
+			request.result.completeExceptionally(new IOException("Remote command agent was closed"));
+		}
+	}
+
+	/**
+	 * One agent shell process and the channel it runs on.
+	 */
+	private class Shell {
+		final private SSHSessionPool.Lease lease;
+		final private ChannelExec channel;
+		final private OutputStream stdin;
+		private boolean released = false;
+
+		Shell() throws JSchException, IOException {
+			lease = pool.borrow();
+			try {
+				channel = (ChannelExec) lease.getSession().openChannel("exec");
+				channel.setCommand(shellPrefix + "sh -c '" + AGENT_SCRIPT + "'");
+				channel.setErrStream(new BoundedOutputBuffer(outputLimit), true);
+				stdin = channel.getOutputStream();
+				InputStream stdout = channel.getInputStream();
+				channel.connect();
+
+				Thread reader = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Exception cause = null;
+						try {
+							BufferedReader lines = new BufferedReader(new InputStreamReader(stdout, StandardCharsets.UTF_8));
+							String line;
+							while((line = lines.readLine()) != null) {
+								onOutput(Shell.this, line);
+							}
+						} catch(IOException e) {
+							cause = e;
+						}
+						shellDied(Shell.this, cause);
+					}
+				}, "ssh-agent-" + pool.getName());
+				reader.setDaemon(true);
+				reader.start();
+			} catch(JSchException | IOException e) {
+				lease.release(true);
+				throw e;
+			}
+		}
+
+		void send(Request request) throws IOException {
+			stdin.write((request.id + "\n" + request.command + "\n").getBytes(StandardCharsets.UTF_8));
+			stdin.flush();
+		}
+
+		void kill() {
+			channel.disconnect();
+		}
+
+		synchronized void release(boolean failed) {
+			if(released) {
+				return;
+			}
+			released = true;
+			channel.disconnect();
+			// A shell that exits on its own is fine, one that errored may have been on a broken session
+			lease.release(failed);
+		}
+	}
+}
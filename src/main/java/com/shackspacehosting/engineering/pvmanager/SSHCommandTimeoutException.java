@@ -0,0 +1,46 @@
+package com.shackspacehosting.engineering.pvmanager;
+
+import java.io.IOException;
+
+/**
+ * A remote command ran past its deadline and its channel was closed.  The session it ran on is still good, but the
+ * command itself may still be running on the remote host.
+ */
+public class SSHCommandTimeoutException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	final private String command;
+	final private long timeoutMs;
+	final private String output;
+
+	public SSHCommandTimeoutException(String command, long timeoutMs) {
+		this(command, timeoutMs, null);
+	}
+
+	public SSHCommandTimeoutException(String command, long timeoutMs, String output) {
+		this("Remote command did not finish within " + timeoutMs + "ms: " + command, command, timeoutMs, output);
+	}
+
+	public SSHCommandTimeoutException(String message, String command, long timeoutMs, String output) {
+		super(message);
+		this.command = command;
+		this.timeoutMs = timeoutMs;
+		this.output = output;
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public long getTimeoutMs() {
+		return timeoutMs;
+	}
+
+	/**
+	 * @return what the command printed before it timed out, as much of it as the output limit kept, or null if that
+	 * wasn't collected
+	 */
+	public String getOutput() {
+		return output;
+	}
+}
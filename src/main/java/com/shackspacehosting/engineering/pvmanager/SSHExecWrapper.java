@@ -4,8 +4,21 @@ import com.jcraft.jsch.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 /**
  * Created by dwimsey on 10/4/17.
@@ -13,94 +26,424 @@ import java.io.InputStream;
 public class SSHExecWrapper {
 	private static final Logger LOG = LoggerFactory.getLogger(SSHExecWrapper.class);
 
+	final public static int SESSIONS_DEFAULT = 2;
+	final public static int CHANNELS_PER_SESSION_DEFAULT = 4;
+	final public static int OUTPUT_LIMIT_DEFAULT = 1048576;
+	final private static int READ_BUFFER_SIZE = 8192;
+	final private static long EXIT_STATUS_POLL_MS = 5;
+	final private static int CALLBACK_THREADS = 4;
+
+	// Closes the channels of commands that run past their deadline
+	final private static ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "ssh-command-watchdog");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Opens the channels of asynchronous commands and completes their futures, so nothing chained to them ever runs on
+	// the watchdog or a JSch session thread
+	final private static ExecutorService callbacks = Executors.newFixedThreadPool(CALLBACK_THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "ssh-command-callback");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	private String sshHostname;
 	private int sshPort;
 	private String sshUsername;
 	private String sshKeyfile;
 	private String sshKeySecret;
-	private Session session = null;
+	private int sessions;
+	private int channelsPerSession;
+	private int outputLimit = OUTPUT_LIMIT_DEFAULT;
+	private long commandTimeoutMs = 0;
+	private SSHSessionPool pool = null;
+	private RemoteCommandAgent[] agents = null;
+	private String agentShellPrefix = "";
 
 	public SSHExecWrapper(String sshHostname, int sshPort, String sshUsername, String sshKeyfile, String sshKeySecret) {
+		this(sshHostname, sshPort, sshUsername, sshKeyfile, sshKeySecret, SESSIONS_DEFAULT, CHANNELS_PER_SESSION_DEFAULT);
+	}
+
+	public SSHExecWrapper(String sshHostname, int sshPort, String sshUsername, String sshKeyfile, String sshKeySecret, int sessions, int channelsPerSession) {
 		this.sshHostname = sshHostname;
 		this.sshPort = sshPort;
 		this.sshUsername = sshUsername;
 		this.sshKeyfile = sshKeyfile;
 		this.sshKeySecret = sshKeySecret;
+		this.sessions = sessions;
+		this.channelsPerSession = channelsPerSession;
+	}
+
+	public int getOutputLimit() {
+		return outputLimit;
 	}
 
+	public void setOutputLimit(int outputLimit) {
+		this.outputLimit = outputLimit;
+	}
 
-	public void connect() throws JSchException {
-		JSch jsch = new JSch();
-		try {
-			if(sshKeyfile != null && sshKeySecret != null) {
-				jsch.addIdentity(sshKeyfile, sshKeySecret);
-			} else if(sshKeyfile != null && sshKeySecret == null) {
-				jsch.addIdentity(sshKeyfile);
-			}
-		} catch (JSchException e) {
-			LOG.error("SSH identity configuration error: {}", e);
-			throw e;
+	/**
+	 * @return how long exec and execLines let a command run when they aren't given a timeout, 0 is forever
+	 */
+	public long getCommandTimeoutMs() {
+		return commandTimeoutMs;
+	}
+
+	public void setCommandTimeoutMs(long commandTimeoutMs) {
+		this.commandTimeoutMs = commandTimeoutMs;
+	}
+
+	public boolean isAgentMode() {
+		return agents != null;
+	}
+
+	/**
+	 * Runs exec commands through long lived agent shells instead of a new channel per command, see RemoteCommandAgent.
+	 * Each agent holds one channel of the session pool for as long as this wrapper is connected.
+	 *
+	 * @param agentCount how many commands can run at once
+	 * @param shellPrefix what each agent shell is started with, commands run by an agent started with "sudo " don't
+	 *                    need sudo themselves
+	 */
+	public synchronized void setAgentMode(int agentCount, String shellPrefix) {
+		if(agentCount < 1) {
+			throw new IllegalArgumentException("Agent mode needs at least one agent: " + agentCount);
+		}
+		if(agents != null || pool != null) {
+			throw new IllegalStateException("Agent mode must be configured before connecting");
 		}
+		agents = new RemoteCommandAgent[agentCount];
+		agentShellPrefix = shellPrefix;
+	}
 
-		session = jsch.getSession(sshUsername, sshHostname, sshPort);
-		if(sshKeyfile == null && sshKeySecret != null) {
-			session.setPassword(sshKeySecret);
+	/**
+	 * Joins the shared session pool for this host, the sessions themselves are connected in the background.
+	 */
+	public synchronized void connect() {
+		if(pool == null) {
+			pool = SSHSessionPool.acquire(sshHostname, sshPort, sshUsername, sshKeyfile, sshKeySecret, sessions, channelsPerSession);
+			if(agents != null) {
+				for(int i = 0; i < agents.length; i++) {
+					agents[i] = new RemoteCommandAgent(pool, agentShellPrefix, watchdog, outputLimit);
+				}
+			}
 		}
-		session.setConfig("StrictHostKeyChecking", "no");
-		try {
-			session.connect(30000);
-		} catch(JSchException e) {
-			session = null;
-			throw e;
+	}
+
+	private synchronized SSHSessionPool getPool() {
+		if(pool == null) {
+			this.connect();
 		}
+		return pool;
 	}
 
+	/**
+	 * Runs a command, appending what it wrote to stdout and then what it wrote to stderr to outputBuffer.  Each stream
+	 * keeps at most the last outputLimit bytes.
+	 */
 	public int exec(String command, StringBuilder outputBuffer) throws JSchException, IOException {
-		if(session == null) {
-			this.connect();
+		return exec(command, outputBuffer, commandTimeoutMs);
+	}
+
+	/**
+	 * @param timeoutMs how long the command may run before its channel is closed and SSHCommandTimeoutException is
+	 *                  thrown, 0 is forever
+	 */
+	public int exec(String command, StringBuilder outputBuffer, long timeoutMs) throws JSchException, IOException {
+		if(agents != null) {
+			RemoteCommandAgent.Result result = execAgent(command, timeoutMs);
+			outputBuffer.append(result.getOutput());
+			return result.getExitStatus();
+		}
+		BoundedOutputBuffer stdout = new BoundedOutputBuffer(outputLimit);
+		BoundedOutputBuffer stderr = new BoundedOutputBuffer(outputLimit);
+		int exitStatus = exec(command, commandOutput -> {
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
+			int count;
+			while((count = commandOutput.read(buffer)) != -1) {
+				stdout.write(buffer, 0, count);
+			}
+		}, stderr, timeoutMs);
+		outputBuffer.append(stdout.toString(StandardCharsets.UTF_8));
+		outputBuffer.append(stderr.toString(StandardCharsets.UTF_8));
+		return exitStatus;
+	}
+
+	private RemoteCommandAgent leastBusyAgent() {
+		getPool();
+		RemoteCommandAgent agent = agents[0];
+		for(RemoteCommandAgent candidate : agents) {
+			if(candidate.getPending() < agent.getPending()) {
+				agent = candidate;
+			}
 		}
+		return agent;
+	}
 
+	private RemoteCommandAgent.Result execAgent(String command, long timeoutMs) throws JSchException, IOException {
 		try {
-			Channel channel;
+			return leastBusyAgent().submit(command, timeoutMs).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for remote command: " + command, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof JSchException) {
+				throw (JSchException) cause;
+			} else if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException("Remote command failed: " + command, cause);
+		}
+	}
 
-			channel = session.openChannel("exec");
+	public static class Result {
+		final private int exitStatus;
+		final private String output;
 
-			((ChannelExec) channel).setCommand(command);
-			InputStream commandOutput = channel.getInputStream();
-			InputStream commandErrOutput = ((ChannelExec) channel).getErrStream();
+		Result(int exitStatus, String output) {
+			this.exitStatus = exitStatus;
+			this.output = output;
+		}
+
+		public int getExitStatus() {
+			return exitStatus;
+		}
+
+		/**
+		 * @return what the command wrote to stdout and then stderr, or both interleaved in agent mode
+		 */
+		public String getOutput() {
+			return output;
+		}
+	}
+
+	public CompletableFuture<Result> execAsync(String command) {
+		return execAsync(command, commandTimeoutMs);
+	}
+
+	/**
+	 * Runs a command without a thread waiting on it.  Output is collected by the JSch session thread and the channel is
+	 * checked for its exit status by the watchdog, the future is always completed on one of a few callback threads.
+	 * Fails with SSHCommandTimeoutException the same way exec throws it.
+	 */
+	public CompletableFuture<Result> execAsync(String command, long timeoutMs) {
+		CompletableFuture<Result> result = new CompletableFuture<>();
+		if(agents != null) {
+			leastBusyAgent().submit(command, timeoutMs).whenCompleteAsync((agentResult, e) -> {
+				if(e != null) {
+					result.completeExceptionally(e);
+				} else {
+					result.complete(new Result(agentResult.getExitStatus(), agentResult.getOutput()));
+				}
+			}, callbacks);
+			return result;
+		}
+		getPool().borrowAsync().whenCompleteAsync((lease, e) -> {
+			if(e != null) {
+				result.completeExceptionally(e);
+			} else {
+				new AsyncCommand(lease, command, timeoutMs, result).start();
+			}
+		}, callbacks);
+		return result;
+	}
+
+	private class AsyncCommand {
+		final private SSHSessionPool.Lease lease;
+		final private String command;
+		final private long timeoutMs;
+		final private CompletableFuture<Result> result;
+		final private BoundedOutputBuffer stdout = new BoundedOutputBuffer(outputLimit);
+		final private BoundedOutputBuffer stderr = new BoundedOutputBuffer(outputLimit);
+		final private AtomicBoolean finished = new AtomicBoolean(false);
+		final private AtomicBoolean timedOut = new AtomicBoolean(false);
+		private ChannelExec channel = null;
+		private ScheduledFuture<?> poll = null;
+		private ScheduledFuture<?> timeout = null;
+
+		AsyncCommand(SSHSessionPool.Lease lease, String command, long timeoutMs, CompletableFuture<Result> result) {
+			this.lease = lease;
+			this.command = command;
+			this.timeoutMs = timeoutMs;
+			this.result = result;
+		}
+
+		synchronized void start() {
 			try {
+				channel = (ChannelExec) lease.getSession().openChannel("exec");
+				channel.setCommand(command);
+				// Both streams are written by the session thread as output arrives and never block it
+				channel.setOutputStream(stdout, true);
+				channel.setErrStream(stderr, true);
 				channel.connect();
 			} catch(JSchException e) {
-				channel.connect();
+				finish(null, e, true);
+				return;
 			}
-			int readByte = commandOutput.read();
+			if(timeoutMs > 0) {
+				timeout = watchdog.schedule(this::timeout, timeoutMs, TimeUnit.MILLISECONDS);
+			}
+			poll = watchdog.scheduleWithFixedDelay(() -> {
+				if(channel.isClosed() && !timedOut.get()) {
+					callbacks.execute(() -> finish(new Result(channel.getExitStatus(),
+							stdout.toString(StandardCharsets.UTF_8) + stderr.toString(StandardCharsets.UTF_8)), null, false));
+				}
+			}, EXIT_STATUS_POLL_MS, EXIT_STATUS_POLL_MS, TimeUnit.MILLISECONDS);
+		}
 
-			while (readByte != 0xffffffff) {
-				outputBuffer.append((char) readByte);
-				readByte = commandOutput.read();
+		private void timeout() {
+			if(finished.get()) {
+				return;
 			}
+			timedOut.set(true);
+			try {
+				channel.sendSignal("KILL");
+			} catch(Exception e) {
+				LOG.trace("Could not signal timed out remote command: " + e);
+			}
+			channel.disconnect();
+			// The session is fine, only the command was stuck
+			callbacks.execute(() -> finish(null, new SSHCommandTimeoutException(command, timeoutMs,
+					stdout.toString(StandardCharsets.UTF_8) + stderr.toString(StandardCharsets.UTF_8)), false));
+		}
 
-			readByte = commandErrOutput.read();
+		private synchronized void finish(Result value, Throwable error, boolean failed) {
+			if(!finished.compareAndSet(false, true)) {
+				return;
+			}
+			if(poll != null) {
+				poll.cancel(false);
+			}
+			if(timeout != null) {
+				timeout.cancel(false);
+			}
+			if(channel != null) {
+				channel.disconnect();
+			}
+			lease.release(failed);
+			if(error != null) {
+				result.completeExceptionally(error);
+			} else {
+				result.complete(value);
+			}
+		}
+	}
 
-			while (readByte != 0xffffffff) {
-				outputBuffer.append((char) readByte);
-				readByte = commandErrOutput.read();
+	/**
+	 * Runs a command, handing each line it writes to stdout to lineConsumer as it arrives instead of buffering all of
+	 * it.  stderr is appended to errorBuffer, bounded the same way exec bounds it.  This always uses its own channel,
+	 * even in agent mode.
+	 */
+	public int execLines(String command, Consumer<String> lineConsumer, StringBuilder errorBuffer) throws JSchException, IOException {
+		return execLines(command, lineConsumer, errorBuffer, commandTimeoutMs);
+	}
+
+	public int execLines(String command, Consumer<String> lineConsumer, StringBuilder errorBuffer, long timeoutMs) throws JSchException, IOException {
+		BoundedOutputBuffer stderr = new BoundedOutputBuffer(outputLimit);
+		int exitStatus = exec(command, commandOutput -> {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(commandOutput, StandardCharsets.UTF_8), READ_BUFFER_SIZE);
+			String line;
+			while((line = reader.readLine()) != null) {
+				lineConsumer.accept(line);
 			}
+		}, stderr, timeoutMs);
+		errorBuffer.append(stderr.toString(StandardCharsets.UTF_8));
+		return exitStatus;
+	}
 
-			channel.disconnect();
+	private interface OutputReader {
+		void read(InputStream commandOutput) throws IOException;
+	}
+
+	private int exec(String command, OutputReader stdoutReader, OutputStream stderr, long timeoutMs) throws JSchException, IOException {
+		SSHSessionPool.Lease lease = getPool().borrow();
+		boolean failed = false;
+		ChannelExec channel = null;
+		AtomicBoolean timedOut = new AtomicBoolean(false);
+		ScheduledFuture<?> timeout = null;
+		try {
+			channel = (ChannelExec) lease.getSession().openChannel("exec");
+
+			channel.setCommand(command);
+			// JSch writes stderr here from the session thread as it arrives, so a command that fills its stderr window
+			// can't stall while we're still reading stdout
+			channel.setErrStream(stderr, true);
+			InputStream commandOutput = channel.getInputStream();
+			if(timeoutMs > 0) {
+				final ChannelExec timedChannel = channel;
+				timeout = watchdog.schedule(() -> {
+					timedOut.set(true);
+					try {
+						// Most sshd's ignore this, but it's the only way we have to stop the command itself
+						timedChannel.sendSignal("KILL");
+					} catch(Exception e) {
+						LOG.trace("Could not signal timed out remote command: " + e);
+					}
+					// Closing the channel ends our reads, whatever the command does
+					timedChannel.disconnect();
+				}, timeoutMs, TimeUnit.MILLISECONDS);
+			}
+			try {
+				channel.connect();
+			} catch(JSchException e) {
+				if(timedOut.get()) {
+					throw new SSHCommandTimeoutException(command, timeoutMs);
+				}
+				channel.connect();
+			}
+			try {
+				stdoutReader.read(commandOutput);
+			} catch(IOException e) {
+				if(timedOut.get()) {
+					throw new SSHCommandTimeoutException(command, timeoutMs);
+				}
+				throw e;
+			}
+
+			// The exit status can arrive after the end of the output
+			while(!channel.isClosed()) {
+				try {
+					Thread.sleep(EXIT_STATUS_POLL_MS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for exit status of remote command");
+				}
+			}
+			if(timedOut.get()) {
+				throw new SSHCommandTimeoutException(command, timeoutMs);
+			}
 			return channel.getExitStatus();
-		} catch (Exception e) {
-			disconnect();
-			session = null;
+		} catch (SSHCommandTimeoutException e) {
+			// The session is fine, only the command was stuck
+			throw e;
+		} catch (JSchException | IOException e) {
+			failed = true;
 			throw e;
+		} finally {
+			if(timeout != null) {
+				timeout.cancel(false);
+			}
+			if(channel != null) {
+				channel.disconnect();
+			}
+			lease.release(failed);
 		}
 	}
 
-	public void disconnect() {
-		if (session != null) {
-			if (session.isConnected()) {
-				session.disconnect();
+	public synchronized void disconnect() {
+		if (pool != null) {
+			if(agents != null) {
+				for(int i = 0; i < agents.length; i++) {
+					if(agents[i] != null) {
+						agents[i].close();
+						agents[i] = null;
+					}
+				}
 			}
+			pool.close();
+			pool = null;
 		}
 	}
 }
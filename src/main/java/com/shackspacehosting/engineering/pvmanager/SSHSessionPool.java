@@ -0,0 +1,442 @@
+package com.shackspacehosting.engineering.pvmanager;
+
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A fixed number of SSH sessions to one host, each of which runs several exec channels at once.  Pools are shared by
+ * everything that connects to the same host with the same credentials, so storage classes backed by the same ZFS
+ * head don't each open their own sessions to it.
+ *
+ * Sessions are connected and replaced by a background thread.  A session that fails is retired: it stops being handed
+ * out, commands already running on it are left to finish, and once they have it is disconnected and a new one is
+ * connected in its place.  Commands only ever wait on a connect when there is no working session left at all.
+ *
+ * Channels are handed out first come first served, whether the borrower waits for one or asks for a future.
+ */
+public class SSHSessionPool implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(SSHSessionPool.class);
+
+	final public static int CONNECT_TIMEOUT_MS = 30000;
+	final private static int SERVER_ALIVE_INTERVAL_MS = 15000;
+	final private static int SERVER_ALIVE_COUNT_MAX = 2;
+	final private static long RECONNECT_BACKOFF_MS = 1000;
+	final private static long RECONNECT_BACKOFF_MAX_MS = 30000;
+	// How often the reconnect thread checks for sessions that died while idle
+	final private static long HEALTH_CHECK_MS = 1000;
+
+	final private static Map<String, SSHSessionPool> pools = new HashMap<>();
+
+	final private String key;
+	final private String name;
+	final private String sshHostname;
+	final private int sshPort;
+	final private String sshUsername;
+	final private String sshKeyfile;
+	final private String sshKeySecret;
+	final private int channelsPerSession;
+	final private Slot[] slots;
+	final private Thread reconnectThread;
+	final private ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+
+	private int references = 0;
+	private boolean closed = false;
+
+	/**
+	 * Returns the pool for this host and identity, creating it if nobody is using one yet.  Every call must be matched
+	 * by a call to close() on the returned pool.
+	 *
+	 * @throws IllegalArgumentException if the pool is already open with a different number of sessions or channels
+	 */
+	public static SSHSessionPool acquire(String sshHostname, int sshPort, String sshUsername, String sshKeyfile, String sshKeySecret,
+										 int sessions, int channelsPerSession) {
+		// The secret is part of the identity too, but only a digest of it is kept around in the key
+		String key = sshUsername + "@" + sshHostname + ":" + sshPort + "/" + sshKeyfile + "#" + digest(sshKeySecret);
+		synchronized (pools) {
+			SSHSessionPool pool = pools.get(key);
+			if(pool == null) {
+				pool = new SSHSessionPool(key, sshHostname, sshPort, sshUsername, sshKeyfile, sshKeySecret, sessions, channelsPerSession);
+				pools.put(key, pool);
+			} else if(pool.slots.length != sessions || pool.channelsPerSession != channelsPerSession) {
+				throw new IllegalArgumentException("SSH session pool for " + pool.name + " is already open with " + pool.slots.length + " sessions of " +
+						pool.channelsPerSession + " channels, every storage provider using it must ask for the same, not " + sessions +
+						" sessions of " + channelsPerSession + " channels");
+			}
+			pool.references++;
+			return pool;
+		}
+	}
+
+	private static String digest(String secret) {
+		if(secret == null) {
+			return "";
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(hash.length * 2);
+			for(byte b : hash) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private SSHSessionPool(String key, String sshHostname, int sshPort, String sshUsername, String sshKeyfile, String sshKeySecret,
+						   int sessions, int channelsPerSession) {
+		if(sessions < 1 || channelsPerSession < 1) {
+			throw new IllegalArgumentException("SSH session pool for " + sshHostname + " needs at least one session and one channel per session: " + sessions + "/" + channelsPerSession);
+		}
+		this.key = key;
+		this.name = sshUsername + "@" + sshHostname + ":" + sshPort;
+		this.sshHostname = sshHostname;
+		this.sshPort = sshPort;
+		this.sshUsername = sshUsername;
+		this.sshKeyfile = sshKeyfile;
+		this.sshKeySecret = sshKeySecret;
+		this.channelsPerSession = channelsPerSession;
+		this.slots = new Slot[sessions];
+		for(int i = 0; i < sessions; i++) {
+			slots[i] = new Slot(i);
+		}
+
+		reconnectThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				maintainSessions();
+			}
+		}, "ssh-pool-" + sshHostname);
+		reconnectThread.setDaemon(true);
+		reconnectThread.start();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getSessions() {
+		return slots.length;
+	}
+
+	public int getChannelsPerSession() {
+		return channelsPerSession;
+	}
+
+	/**
+	 * Reserves a channel on the least busy working session, waiting for one to free up or be connected if there isn't
+	 * one.  The lease must be released once the channel is closed.
+	 */
+	public Lease borrow() throws JSchException {
+		CompletableFuture<Lease> lease = borrowAsync();
+		try {
+			return lease.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if(!lease.cancel(false)) {
+				// Too late, it was already handed to us
+				lease.thenAccept(l -> l.release(false));
+			}
+			throw new JSchException("Interrupted waiting for an SSH session to " + name, e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof JSchException) {
+				throw (JSchException) e.getCause();
+			}
+			throw new JSchException("Could not get an SSH session to " + name, e.getCause());
+		}
+	}
+
+	/**
+	 * Like borrow(), without tying up a thread while waiting.  The future is completed on whichever thread frees up a
+	 * channel or connects a session, so anything chained to it should be quick or hand off to another thread.
+	 */
+	public CompletableFuture<Lease> borrowAsync() {
+		CompletableFuture<Lease> lease = new CompletableFuture<>();
+		List<Runnable> completions;
+		synchronized (this) {
+			waiters.addLast(new Waiter(lease, System.currentTimeMillis() + CONNECT_TIMEOUT_MS));
+			completions = dispatch();
+		}
+		completions.forEach(Runnable::run);
+		return lease;
+	}
+
+	private static class Waiter {
+		final CompletableFuture<Lease> lease;
+		final long deadline;
+
+		Waiter(CompletableFuture<Lease> lease, long deadline) {
+			this.lease = lease;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Hands free channels to waiters in the order they asked, and fails the ones that have waited too long.  Called
+	 * with the pool locked, the returned completions have to be run once it isn't anymore.
+	 */
+	private List<Runnable> dispatch() {
+		List<Runnable> completions = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		while(!waiters.isEmpty()) {
+			Waiter waiter = waiters.peekFirst();
+			if(waiter.lease.isDone()) {
+				// Given up on by whoever was waiting
+				waiters.removeFirst();
+				continue;
+			}
+			if(closed) {
+				waiters.removeFirst();
+				completions.add(() -> waiter.lease.completeExceptionally(new JSchException("SSH session pool for " + name + " is closed")));
+				continue;
+			}
+			if(waiter.deadline <= now) {
+				waiters.removeFirst();
+				completions.add(() -> waiter.lease.completeExceptionally(new JSchException("Timed out waiting for an SSH session to " + name)));
+				continue;
+			}
+			Slot best = null;
+			for(Slot slot : slots) {
+				if(slot.isUsable() && slot.channels < channelsPerSession && (best == null || slot.channels < best.channels)) {
+					best = slot;
+				}
+			}
+			if(best == null) {
+				break;
+			}
+			waiters.removeFirst();
+			best.channels++;
+			Lease lease = new Lease(best, best.session);
+			completions.add(() -> {
+				if(!waiter.lease.complete(lease)) {
+					lease.release(false);
+				}
+			});
+		}
+		return completions;
+	}
+
+	private void release(Lease lease, boolean failed) {
+		List<Runnable> completions;
+		synchronized (this) {
+			Slot slot = lease.slot;
+			slot.channels--;
+			if(failed && slot.session == lease.session && !slot.retired) {
+				LOG.warn("Retiring SSH session " + slot.index + " to " + name + " after a failed command");
+				slot.retired = true;
+			}
+			notifyAll();
+			completions = dispatch();
+		}
+		completions.forEach(Runnable::run);
+	}
+
+	private void maintainSessions() {
+		while(true) {
+			// Also where waiters that have waited too long find out
+			List<Runnable> completions;
+			synchronized (this) {
+				completions = dispatch();
+			}
+			completions.forEach(Runnable::run);
+
+			Slot target = null;
+			Session stale = null;
+			synchronized (this) {
+				if(closed) {
+					break;
+				}
+				long now = System.currentTimeMillis();
+				long nextAttempt = now + HEALTH_CHECK_MS;
+				for(Slot slot : slots) {
+					if(slot.session != null && !slot.retired && !slot.session.isConnected()) {
+						LOG.warn("SSH session " + slot.index + " to " + name + " was disconnected");
+						slot.retired = true;
+					}
+					if(slot.retired && slot.channels == 0) {
+						stale = slot.session;
+						slot.session = null;
+						slot.retired = false;
+					}
+					if(slot.session == null && target == null) {
+						if(slot.nextAttempt <= now) {
+							target = slot;
+						} else {
+							nextAttempt = Math.min(nextAttempt, slot.nextAttempt);
+						}
+					}
+					if(stale != null) {
+						break;
+					}
+				}
+				if(stale == null && target == null) {
+					try {
+						wait(Math.max(1, nextAttempt - now));
+					} catch (InterruptedException e) {
+						// close() interrupts us to shut down
+					}
+					continue;
+				}
+			}
+
+			if(stale != null) {
+				stale.disconnect();
+				continue;
+			}
+
+			Session session = null;
+			try {
+				session = connect();
+			} catch(JSchException e) {
+				LOG.warn("Could not connect SSH session " + target.index + " to " + name + ": " + e.getMessage());
+			}
+			synchronized (this) {
+				if(closed) {
+					if(session != null) {
+						session.disconnect();
+					}
+					break;
+				}
+				if(session != null) {
+					target.session = session;
+					target.failures = 0;
+					target.nextAttempt = 0;
+					LOG.debug("Connected SSH session " + target.index + " to " + name);
+					notifyAll();
+					completions = dispatch();
+				} else {
+					completions = null;
+					target.failures++;
+					target.nextAttempt = System.currentTimeMillis() + Math.min(RECONNECT_BACKOFF_MS << Math.min(target.failures, 5), RECONNECT_BACKOFF_MAX_MS);
+				}
+			}
+			if(completions != null) {
+				completions.forEach(Runnable::run);
+			}
+		}
+		LOG.info("SSH session pool for " + name + " is stopped.");
+	}
+
+	private Session connect() throws JSchException {
+		JSch jsch = new JSch();
+		try {
+			if(sshKeyfile != null && sshKeySecret != null) {
+				jsch.addIdentity(sshKeyfile, sshKeySecret);
+			} else if(sshKeyfile != null && sshKeySecret == null) {
+				jsch.addIdentity(sshKeyfile);
+			}
+		} catch (JSchException e) {
+			LOG.error("SSH identity configuration error: {}", e);
+			throw e;
+		}
+
+		Session session = jsch.getSession(sshUsername, sshHostname, sshPort);
+		if(sshKeyfile == null && sshKeySecret != null) {
+			session.setPassword(sshKeySecret);
+		}
+		session.setConfig("StrictHostKeyChecking", "no");
+		// Notice dead sessions while they're idle instead of on the next command sent down them
+		session.setServerAliveInterval(SERVER_ALIVE_INTERVAL_MS);
+		session.setServerAliveCountMax(SERVER_ALIVE_COUNT_MAX);
+		session.connect(CONNECT_TIMEOUT_MS);
+		return session;
+	}
+
+	/**
+	 * Gives up this reference to the pool, the sessions are disconnected once nobody holds a reference anymore.
+	 */
+	@Override
+	public void close() {
+		synchronized (pools) {
+			if(--references > 0) {
+				return;
+			}
+			pools.remove(key);
+		}
+		List<Runnable> completions;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			completions = dispatch();
+		}
+		completions.forEach(Runnable::run);
+		reconnectThread.interrupt();
+		try {
+			reconnectThread.join();
+		} catch (InterruptedException e) {
+			// Disconnect anyway, the reconnect thread disconnects any session it finishes opening once it sees we are closed
+			LOG.warn("Interrupted waiting for the reconnect thread of SSH session pool " + getName() + " to stop");
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for(Slot slot : slots) {
+				if(slot.session != null) {
+					slot.session.disconnect();
+					slot.session = null;
+				}
+			}
+		}
+	}
+
+	private static class Slot {
+		final int index;
+		Session session = null;
+		int channels = 0;
+		boolean retired = false;
+		int failures = 0;
+		long nextAttempt = 0;
+
+		Slot(int index) {
+			this.index = index;
+		}
+
+		boolean isUsable() {
+			return session != null && !retired && session.isConnected();
+		}
+	}
+
+	/**
+	 * One channel's worth of a pooled session.
+	 */
+	public class Lease {
+		final private Slot slot;
+		final private Session session;
+		final private AtomicBoolean released = new AtomicBoolean();
+
+		private Lease(Slot slot, Session session) {
+			this.slot = slot;
+			this.session = session;
+		}
+
+		public Session getSession() {
+			return session;
+		}
+
+		/**
+		 * @param failed true if the session should not be trusted with any more commands
+		 */
+		public void release(boolean failed) {
+			// Only the first release counts, however many threads try
+			if(!released.compareAndSet(false, true)) {
+				return;
+			}
+			SSHSessionPool.this.release(this, failed);
+		}
+	}
+}
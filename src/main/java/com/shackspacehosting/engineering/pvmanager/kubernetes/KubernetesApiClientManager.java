@@ -0,0 +1,185 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import com.squareup.okhttp.ConnectionPool;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.apis.CoreV1Api;
+import io.kubernetes.client.util.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Owns the single ApiClient, and the connection pool behind it, that every watcher and worker shares.  The client is
+ * only rebuilt when the api server rejects our credentials.  When the token is read from a file, the file is watched
+ * and a new token is swapped into the existing client as soon as it changes.
+ */
+public class KubernetesApiClientManager implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(KubernetesApiClientManager.class);
+
+	final private static int HTTP_UNAUTHORIZED = 401;
+
+	final private String url;
+	final private String username;
+	final private String token;
+	final private boolean validateSsl;
+	final private int readTimeout;
+	final private boolean debugging;
+	final private int maxIdleConnections;
+	final private long keepAliveDuration;
+
+	private ApiClient client = null;
+	private CoreV1Api coreV1Api = null;
+	private String currentToken = null;
+
+	private WatchService tokenWatchService = null;
+	private Thread tokenWatcherThread = null;
+
+	public KubernetesApiClientManager(String url, String username, String token, boolean validateSsl, int readTimeout, boolean debugging, int maxIdleConnections, long keepAliveDuration) {
+		this.url = url;
+		this.username = username;
+		this.token = token;
+		this.validateSsl = validateSsl;
+		this.readTimeout = readTimeout;
+		this.debugging = debugging;
+		this.maxIdleConnections = maxIdleConnections;
+		this.keepAliveDuration = keepAliveDuration;
+	}
+
+	public synchronized ApiClient getApiClient() throws IOException {
+		if(client == null) {
+			client = buildApiClient();
+			coreV1Api = new CoreV1Api(client);
+		}
+		return client;
+	}
+
+	public synchronized CoreV1Api getCoreV1Api() throws IOException {
+		getApiClient();
+		return coreV1Api;
+	}
+
+	/**
+	 * Inspects an exception thrown while talking to the api server.  Only an authentication failure causes the client
+	 * to be thrown away, anything else is left to the normal retry handling of the caller.
+	 */
+	public void handleFailure(Exception e) {
+		if(e instanceof ApiException && ((ApiException) e).getCode() == HTTP_UNAUTHORIZED) {
+			LOG.warn("Kubernetes api server rejected our credentials, rebuilding api client");
+			synchronized (this) {
+				client = null;
+				coreV1Api = null;
+			}
+		}
+	}
+
+	private boolean isTokenFile() {
+		// If the password starts with /, it is expected
+		// to be a filename pointing to a token.  Basically
+		// this means passwords can't start with '/', but so what? --dwimsey
+		return token.startsWith("/");
+	}
+
+	private String readToken() throws IOException {
+		if (isTokenFile()) {
+			return new String(Files.readAllBytes(Paths.get(token)));
+		}
+		return token;
+	}
+
+	private ApiClient buildApiClient() throws IOException {
+		currentToken = readToken();
+
+		ApiClient apiClient;
+		if (username != null && !username.isEmpty()) {
+			LOG.debug("Using username/password authentication: {}", username);
+			apiClient = Config.fromUserPassword(url, username, currentToken, validateSsl);
+		} else {
+			LOG.debug("Using BearerToken: {}", token);
+			apiClient = Config.fromToken(url, currentToken, validateSsl);
+		}
+		apiClient.setDebugging(debugging);
+		apiClient.getHttpClient().setReadTimeout(readTimeout, TimeUnit.MILLISECONDS);
+		apiClient.getHttpClient().setConnectionPool(new ConnectionPool(maxIdleConnections, keepAliveDuration, TimeUnit.MILLISECONDS));
+
+		startTokenWatcher();
+		return apiClient;
+	}
+
+	private synchronized void reloadToken() {
+		String newToken;
+		try {
+			newToken = readToken();
+		} catch (IOException e) {
+			// The secret volume swaps files out from under us, we'll see another event once the new token is in place
+			LOG.debug("Could not read kubernetes token file: " + token + ": " + e);
+			return;
+		}
+		if(newToken.equals(currentToken)) {
+			return;
+		}
+		currentToken = newToken;
+		if(client != null) {
+			LOG.info("Kubernetes token file changed, updating api client credentials");
+			if (username != null && !username.isEmpty()) {
+				client.setPassword(newToken);
+			} else {
+				client.setApiKey(newToken);
+			}
+		}
+	}
+
+	private void startTokenWatcher() throws IOException {
+		if(!isTokenFile() || tokenWatcherThread != null) {
+			return;
+		}
+
+		// Kubernetes replaces mounted secrets by swapping a symlink in the parent directory, so watch the directory
+		Path tokenDirectory = Paths.get(token).toAbsolutePath().getParent();
+		tokenWatchService = FileSystems.getDefault().newWatchService();
+		tokenDirectory.register(tokenWatchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+
+		tokenWatcherThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					WatchKey key;
+					try {
+						key = tokenWatchService.take();
+					} catch (InterruptedException | ClosedWatchServiceException e) {
+						break;
+					}
+					key.pollEvents();
+					reloadToken();
+					if(!key.reset()) {
+						LOG.warn("Kubernetes token directory is no longer accessible, token changes will not be detected: " + tokenDirectory);
+						break;
+					}
+				}
+				LOG.info("Kubernetes token watcher is stopped.");
+			}
+		}, "kubernetes-token-watcher");
+		tokenWatcherThread.setDaemon(true);
+		tokenWatcherThread.start();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(tokenWatchService != null) {
+			tokenWatchService.close();
+		}
+	}
+}
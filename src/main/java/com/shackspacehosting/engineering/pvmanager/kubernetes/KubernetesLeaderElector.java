@@ -0,0 +1,296 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.squareup.okhttp.Call;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.ApiResponse;
+import io.kubernetes.client.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Elects a single leader among the pvmanager replicas using a coordination.k8s.io Lease.  The generated client has no
+ * model for leases, so the lease is read and written as plain JSON.
+ *
+ * Like client-go, expiry is judged by when this replica last saw the lease record change rather than by the timestamps
+ * in it, so clock skew between nodes doesn't matter.  A leader that shuts down cleanly gives the lease up so a standby
+ * can take over on its next retry instead of waiting for the lease to expire.
+ *
+ * Also like client-go, the leader steps down once it has gone the renew deadline without renewing, which is shorter
+ * than the lease duration, so it has stopped before a standby can decide the lease expired.  It steps down at once when
+ * it finds someone else holding the lease or loses a race to update it.  onStoppedLeading is expected to have stopped
+ * the leader's work by the time it returns.
+ */
+public class KubernetesLeaderElector implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(KubernetesLeaderElector.class);
+
+	final private static String PATH_LEASES = "/apis/coordination.k8s.io/v1/namespaces/{namespace}/leases";
+	final private static int HTTP_NOT_FOUND = 404;
+	final private static int HTTP_CONFLICT = 409;
+	final private static DateTimeFormatter MICRO_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSX");
+
+	final private KubernetesApiClientManager apiClientManager;
+	final private String namespace;
+	final private String name;
+	final private String identity;
+	final private int leaseDurationSeconds;
+	final private long renewIntervalMs;
+	final private long renewDeadlineMs;
+	final private long retryPeriodMs;
+	final private Runnable onStartedLeading;
+	final private Runnable onStoppedLeading;
+
+	private volatile boolean leader = false;
+	private volatile boolean stopped = false;
+	private Thread electionThread = null;
+
+	// Last lease record we saw and when we saw it change, by our own clock
+	private String observedRecord = null;
+	private long observedTime = 0;
+	// When the last successful acquire or renew was started, by our own clock
+	private volatile long lastRenewTime = 0;
+
+	public KubernetesLeaderElector(KubernetesApiClientManager apiClientManager, String namespace, String name, String identity,
+								   int leaseDurationSeconds, long renewIntervalMs, long renewDeadlineMs, long retryPeriodMs,
+								   Runnable onStartedLeading, Runnable onStoppedLeading) {
+		if(renewIntervalMs >= renewDeadlineMs || renewDeadlineMs >= leaseDurationSeconds * 1000L) {
+			throw new IllegalArgumentException("Leader lease " + namespace + "/" + name + " needs a renew interval (" + renewIntervalMs +
+					"ms) shorter than its renew deadline (" + renewDeadlineMs + "ms), which must be shorter than the lease duration (" +
+					leaseDurationSeconds + "s)");
+		}
+		this.apiClientManager = apiClientManager;
+		this.namespace = namespace;
+		this.name = name;
+		this.identity = identity;
+		this.leaseDurationSeconds = leaseDurationSeconds;
+		this.renewIntervalMs = renewIntervalMs;
+		this.renewDeadlineMs = renewDeadlineMs;
+		this.retryPeriodMs = retryPeriodMs;
+		this.onStartedLeading = onStartedLeading;
+		this.onStoppedLeading = onStoppedLeading;
+	}
+
+	/**
+	 * @return false as soon as the renew deadline has passed, even if the election thread hasn't got round to stepping
+	 * down yet
+	 */
+	public boolean isLeader() {
+		return leader && System.currentTimeMillis() - lastRenewTime < renewDeadlineMs;
+	}
+
+	public String getIdentity() {
+		return identity;
+	}
+
+	public synchronized void start() {
+		if(electionThread != null) {
+			return;
+		}
+		electionThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!stopped) {
+					// Only time taken before the attempt started counts as ours, the write could land any time after
+					long attemptTime = System.currentTimeMillis();
+					Boolean held;
+					try {
+						held = tryAcquireOrRenew();
+					} catch(Exception e) {
+						LOG.warn("Could not acquire or renew leader lease " + namespace + "/" + name + ": " + e);
+						apiClientManager.handleFailure(e);
+						// We can't tell whether we still hold it
+						held = null;
+					}
+
+					if(Boolean.TRUE.equals(held)) {
+						lastRenewTime = attemptTime;
+						if(!leader) {
+							LOG.info("Acquired leader lease " + namespace + "/" + name + " as " + identity);
+							leader = true;
+							onStartedLeading.run();
+						}
+					} else if(leader && held != null) {
+						LOG.warn("Lost leader lease " + namespace + "/" + name + " to another replica");
+						stepDown();
+					} else if(leader && System.currentTimeMillis() - lastRenewTime >= renewDeadlineMs) {
+						// Someone else may hold the lease soon, stop before we do any more work
+						LOG.warn("Could not renew leader lease " + namespace + "/" + name + " within " + renewDeadlineMs + "ms");
+						stepDown();
+					}
+
+					try {
+						Thread.sleep(Boolean.TRUE.equals(held) ? renewIntervalMs : retryPeriodMs);
+					} catch (InterruptedException e) {
+						// close() interrupts us to shut down
+					}
+				}
+				LOG.info("Leader election is stopped.");
+			}
+		}, "leader-election");
+		electionThread.setDaemon(true);
+		electionThread.start();
+	}
+
+	private void stepDown() {
+		leader = false;
+		onStoppedLeading.run();
+	}
+
+	/**
+	 * @return true if we hold the lease after this attempt, false if another replica holds it or updated it first
+	 */
+	private boolean tryAcquireOrRenew() throws ApiException, IOException {
+		ApiClient client = apiClientManager.getApiClient();
+		String now = ZonedDateTime.now(ZoneOffset.UTC).format(MICRO_TIME);
+
+		JsonObject lease;
+		try {
+			lease = request(client, "GET", leasePath(), null);
+		} catch(ApiException e) {
+			if(e.getCode() != HTTP_NOT_FOUND) {
+				throw e;
+			}
+			JsonObject spec = new JsonObject();
+			spec.addProperty("holderIdentity", identity);
+			spec.addProperty("leaseDurationSeconds", leaseDurationSeconds);
+			spec.addProperty("acquireTime", now);
+			spec.addProperty("renewTime", now);
+			spec.addProperty("leaseTransitions", 0);
+			return write(client, "POST", PATH_LEASES.replace("{namespace}", namespace), newLease(null, spec));
+		}
+
+		JsonObject spec = lease.has("spec") ? lease.getAsJsonObject("spec") : new JsonObject();
+		String holder = getString(spec, "holderIdentity");
+		String record = spec.toString();
+		if(!record.equals(observedRecord)) {
+			observedRecord = record;
+			observedTime = System.currentTimeMillis();
+		}
+
+		boolean held = identity.equals(holder);
+		if(!held && holder != null && !holder.isEmpty()) {
+			JsonElement duration = spec.get("leaseDurationSeconds");
+			long expiresAt = observedTime + (duration == null || duration.isJsonNull() ? leaseDurationSeconds : duration.getAsInt()) * 1000L;
+			if(System.currentTimeMillis() < expiresAt) {
+				return false;
+			}
+		}
+
+		JsonObject newSpec = new JsonObject();
+		newSpec.addProperty("holderIdentity", identity);
+		newSpec.addProperty("leaseDurationSeconds", leaseDurationSeconds);
+		newSpec.addProperty("renewTime", now);
+		JsonElement transitions = spec.get("leaseTransitions");
+		int leaseTransitions = transitions == null || transitions.isJsonNull() ? 0 : transitions.getAsInt();
+		if(held) {
+			newSpec.addProperty("acquireTime", getString(spec, "acquireTime"));
+			newSpec.addProperty("leaseTransitions", leaseTransitions);
+		} else {
+			newSpec.addProperty("acquireTime", now);
+			newSpec.addProperty("leaseTransitions", leaseTransitions + 1);
+		}
+		return write(client, "PUT", leasePath(), newLease(lease.getAsJsonObject("metadata").get("resourceVersion").getAsString(), newSpec));
+	}
+
+	/**
+	 * Writes the lease, the resource version makes this fail if anyone else updated it since we read it.
+	 */
+	private boolean write(ApiClient client, String method, String path, JsonObject lease) throws ApiException {
+		try {
+			request(client, method, path, lease);
+			return true;
+		} catch(ApiException e) {
+			if(e.getCode() == HTTP_CONFLICT) {
+				LOG.debug("Leader lease " + namespace + "/" + name + " was updated by another replica");
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private JsonObject newLease(String resourceVersion, JsonObject spec) {
+		JsonObject metadata = new JsonObject();
+		metadata.addProperty("name", name);
+		metadata.addProperty("namespace", namespace);
+		if(resourceVersion != null) {
+			metadata.addProperty("resourceVersion", resourceVersion);
+		}
+		JsonObject lease = new JsonObject();
+		lease.addProperty("apiVersion", "coordination.k8s.io/v1");
+		lease.addProperty("kind", "Lease");
+		lease.add("metadata", metadata);
+		lease.add("spec", spec);
+		return lease;
+	}
+
+	private String leasePath() {
+		return PATH_LEASES.replace("{namespace}", namespace) + "/" + name;
+	}
+
+	private JsonObject request(ApiClient client, String method, String path, JsonObject body) throws ApiException {
+		Map<String, String> headerParams = new HashMap<>();
+		headerParams.put("Accept", "application/json");
+		headerParams.put("Content-Type", "application/json");
+		Call call = client.buildCall(path, method, new ArrayList<Pair>(), new ArrayList<Pair>(), body, headerParams, new HashMap<String, Object>(), new String[] {"BearerToken"}, null);
+		ApiResponse<JsonObject> response = client.execute(call, JsonObject.class);
+		return response.getData();
+	}
+
+	private static String getString(JsonObject object, String property) {
+		JsonElement element = object.get(property);
+		return element == null || element.isJsonNull() ? null : element.getAsString();
+	}
+
+	/**
+	 * Stops taking part in the election, giving up the lease if we hold it.
+	 */
+	@Override
+	public void close() {
+		stopped = true;
+		Thread thread;
+		synchronized (this) {
+			thread = electionThread;
+		}
+		if(thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				// Still give up the lease below, the next leader shouldn't have to wait for it to expire
+				LOG.warn("Interrupted waiting for leader election " + namespace + "/" + name + " to stop");
+				Thread.currentThread().interrupt();
+			}
+		}
+		if(leader) {
+			stepDown();
+			try {
+				ApiClient client = apiClientManager.getApiClient();
+				JsonObject lease = request(client, "GET", leasePath(), null);
+				JsonObject spec = lease.getAsJsonObject("spec");
+				if(identity.equals(getString(spec, "holderIdentity"))) {
+					String now = ZonedDateTime.now(ZoneOffset.UTC).format(MICRO_TIME);
+					JsonObject released = new JsonObject();
+					released.addProperty("holderIdentity", "");
+					released.addProperty("leaseDurationSeconds", 1);
+					released.addProperty("acquireTime", now);
+					released.addProperty("renewTime", now);
+					released.add("leaseTransitions", spec.get("leaseTransitions"));
+					request(client, "PUT", leasePath(), newLease(lease.getAsJsonObject("metadata").get("resourceVersion").getAsString(), released));
+					LOG.info("Released leader lease " + namespace + "/" + name);
+				}
+			} catch(Exception e) {
+				LOG.warn("Could not release leader lease " + namespace + "/" + name + ", it will expire on its own: " + e);
+			}
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import io.kubernetes.client.models.V1ObjectMeta;
+import io.kubernetes.client.models.V1PersistentVolume;
+import io.kubernetes.client.models.V1PersistentVolumeClaim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.ANNOTATION_CLONEFROM;
+import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.ANNOTATION_KUBERNETES_STORAGE_CLASS;
+import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.ANNOTATION_STORAGE_CLASS;
+import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.ANNOTATION_VOLUME_UUID;
+
+/**
+ * Local copy of every persistent volume and persistent volume claim, kept current by the watchers so lookups don't
+ * need a round trip to the api server.  Besides the primary keys (namespace/name for claims, name for volumes) it
+ * keeps secondary indexes by volume uuid, storage class and clone source.
+ *
+ * Until the first full list of a resource type has been loaded the cache can't tell a missing object from one it
+ * hasn't seen yet, callers should check the synced flags and go to the api server until then.
+ */
+public class KubernetesObjectCache {
+	final private Map<String, V1PersistentVolumeClaim> claims = new ConcurrentHashMap<>();
+	final private Map<String, V1PersistentVolume> volumes = new ConcurrentHashMap<>();
+
+	final private Map<String, String> volumesByUuid = new ConcurrentHashMap<>();
+	final private Map<String, Set<String>> volumesByStorageClass = new ConcurrentHashMap<>();
+	final private Map<String, Set<String>> claimsByStorageClass = new ConcurrentHashMap<>();
+	final private Map<String, Set<String>> claimsByCloneSource = new ConcurrentHashMap<>();
+
+	// Claims may be listed cluster wide or one namespace at a time when the watches are sharded by namespace
+	private volatile boolean allClaimsSynced = false;
+	final private Set<String> syncedClaimNamespaces = ConcurrentHashMap.newKeySet();
+	private volatile boolean volumesSynced = false;
+
+	public static String claimKey(String namespace, String name) {
+		return namespace + "/" + name;
+	}
+
+	public boolean isClaimsSynced(String namespace) {
+		return allClaimsSynced || syncedClaimNamespaces.contains(namespace);
+	}
+
+	public boolean isVolumesSynced() {
+		return volumesSynced;
+	}
+
+	public V1PersistentVolumeClaim getClaim(String namespace, String name) {
+		return claims.get(claimKey(namespace, name));
+	}
+
+	public Collection<V1PersistentVolumeClaim> getClaims() {
+		return Collections.unmodifiableCollection(claims.values());
+	}
+
+	public List<V1PersistentVolumeClaim> getClaimsByStorageClass(String storageClass) {
+		return lookupClaims(claimsByStorageClass.get(storageClass));
+	}
+
+	public List<V1PersistentVolumeClaim> getClaimsClonedFrom(String namespace, String name) {
+		return lookupClaims(claimsByCloneSource.get(claimKey(namespace, name)));
+	}
+
+	public V1PersistentVolume getVolume(String name) {
+		return volumes.get(name);
+	}
+
+	public Collection<V1PersistentVolume> getVolumes() {
+		return Collections.unmodifiableCollection(volumes.values());
+	}
+
+	public V1PersistentVolume getVolumeByUuid(String volumeUuid) {
+		String name = volumesByUuid.get(volumeUuid);
+		return name == null ? null : volumes.get(name);
+	}
+
+	public List<V1PersistentVolume> getVolumesByStorageClass(String storageClass) {
+		Set<String> names = volumesByStorageClass.get(storageClass);
+		List<V1PersistentVolume> result = new ArrayList<>();
+		if(names != null) {
+			for(String name : names) {
+				V1PersistentVolume volume = volumes.get(name);
+				if(volume != null) {
+					result.add(volume);
+				}
+			}
+		}
+		return result;
+	}
+
+	public synchronized void updateClaim(String changeType, V1PersistentVolumeClaim claim) {
+		V1ObjectMeta metadata = claim.getMetadata();
+		String key = claimKey(metadata.getNamespace(), metadata.getName());
+		V1PersistentVolumeClaim previous;
+		if("DELETED".equals(changeType)) {
+			previous = claims.remove(key);
+		} else {
+			previous = claims.put(key, claim);
+		}
+		if(previous != null) {
+			unindexClaim(key, previous);
+		}
+		if(!"DELETED".equals(changeType)) {
+			indexClaim(key, claim);
+		}
+	}
+
+	public synchronized void updateVolume(String changeType, V1PersistentVolume volume) {
+		String name = volume.getMetadata().getName();
+		V1PersistentVolume previous;
+		if("DELETED".equals(changeType)) {
+			previous = volumes.remove(name);
+		} else {
+			previous = volumes.put(name, volume);
+		}
+		if(previous != null) {
+			unindexVolume(name, previous);
+		}
+		if(!"DELETED".equals(changeType)) {
+			indexVolume(name, volume);
+		}
+	}
+
+	/**
+	 * Replaces the cached claims of one namespace, or every cached claim when namespace is null, with the result of a
+	 * full list.
+	 */
+	public synchronized void replaceClaims(String namespace, List<V1PersistentVolumeClaim> listedClaims) {
+		Set<String> listedKeys = new HashSet<>();
+		for(V1PersistentVolumeClaim claim : listedClaims) {
+			listedKeys.add(claimKey(claim.getMetadata().getNamespace(), claim.getMetadata().getName()));
+			updateClaim("ADDED", claim);
+		}
+		for(V1PersistentVolumeClaim claim : new ArrayList<>(claims.values())) {
+			if(namespace != null && !namespace.equals(claim.getMetadata().getNamespace())) {
+				continue;
+			}
+			if(!listedKeys.contains(claimKey(claim.getMetadata().getNamespace(), claim.getMetadata().getName()))) {
+				updateClaim("DELETED", claim);
+			}
+		}
+		if(namespace == null) {
+			allClaimsSynced = true;
+		} else {
+			syncedClaimNamespaces.add(namespace);
+		}
+	}
+
+	/**
+	 * Replaces every cached volume with the result of a full list.
+	 *
+	 * @return the volumes that were cached but are no longer listed, their deletion happened while we weren't watching
+	 */
+	public synchronized List<V1PersistentVolume> replaceVolumes(List<V1PersistentVolume> listedVolumes) {
+		Set<String> listedNames = new HashSet<>();
+		for(V1PersistentVolume volume : listedVolumes) {
+			listedNames.add(volume.getMetadata().getName());
+			updateVolume("ADDED", volume);
+		}
+		List<V1PersistentVolume> removed = new ArrayList<>();
+		for(V1PersistentVolume volume : new ArrayList<>(volumes.values())) {
+			if(!listedNames.contains(volume.getMetadata().getName())) {
+				updateVolume("DELETED", volume);
+				removed.add(volume);
+			}
+		}
+		volumesSynced = true;
+		return removed;
+	}
+
+	private List<V1PersistentVolumeClaim> lookupClaims(Set<String> keys) {
+		List<V1PersistentVolumeClaim> result = new ArrayList<>();
+		if(keys != null) {
+			for(String key : keys) {
+				V1PersistentVolumeClaim claim = claims.get(key);
+				if(claim != null) {
+					result.add(claim);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static String claimStorageClass(V1PersistentVolumeClaim claim) {
+		Map<String, String> annotations = claim.getMetadata().getAnnotations();
+		if(annotations != null && annotations.containsKey(ANNOTATION_KUBERNETES_STORAGE_CLASS)) {
+			return annotations.get(ANNOTATION_KUBERNETES_STORAGE_CLASS);
+		}
+		return claim.getSpec() == null ? null : claim.getSpec().getStorageClassName();
+	}
+
+	private static String claimCloneSource(V1PersistentVolumeClaim claim) {
+		Map<String, String> annotations = claim.getMetadata().getAnnotations();
+		if(annotations == null) {
+			return null;
+		}
+		String cloneFrom = annotations.get(ANNOTATION_CLONEFROM);
+		if(cloneFrom == null || cloneFrom.isEmpty()) {
+			return null;
+		}
+		return claimKey(claim.getMetadata().getNamespace(), cloneFrom);
+	}
+
+	private static String volumeStorageClass(V1PersistentVolume volume) {
+		Map<String, String> annotations = volume.getMetadata().getAnnotations();
+		if(annotations != null && annotations.containsKey(ANNOTATION_STORAGE_CLASS)) {
+			return annotations.get(ANNOTATION_STORAGE_CLASS);
+		}
+		return volume.getSpec() == null ? null : volume.getSpec().getStorageClassName();
+	}
+
+	private static String volumeUuid(V1PersistentVolume volume) {
+		Map<String, String> annotations = volume.getMetadata().getAnnotations();
+		return annotations == null ? null : annotations.get(ANNOTATION_VOLUME_UUID);
+	}
+
+	private void indexClaim(String key, V1PersistentVolumeClaim claim) {
+		addToIndex(claimsByStorageClass, claimStorageClass(claim), key);
+		addToIndex(claimsByCloneSource, claimCloneSource(claim), key);
+	}
+
+	private void unindexClaim(String key, V1PersistentVolumeClaim claim) {
+		removeFromIndex(claimsByStorageClass, claimStorageClass(claim), key);
+		removeFromIndex(claimsByCloneSource, claimCloneSource(claim), key);
+	}
+
+	private void indexVolume(String name, V1PersistentVolume volume) {
+		String uuid = volumeUuid(volume);
+		if(uuid != null) {
+			volumesByUuid.put(uuid, name);
+		}
+		addToIndex(volumesByStorageClass, volumeStorageClass(volume), name);
+	}
+
+	private void unindexVolume(String name, V1PersistentVolume volume) {
+		String uuid = volumeUuid(volume);
+		if(uuid != null) {
+			volumesByUuid.remove(uuid, name);
+		}
+		removeFromIndex(volumesByStorageClass, volumeStorageClass(volume), name);
+	}
+
+	private static void addToIndex(Map<String, Set<String>> index, String indexValue, String key) {
+		if(indexValue == null) {
+			return;
+		}
+		index.computeIfAbsent(indexValue, k -> ConcurrentHashMap.newKeySet()).add(key);
+	}
+
+	private static void removeFromIndex(Map<String, Set<String>> index, String indexValue, String key) {
+		if(indexValue == null) {
+			return;
+		}
+		Set<String> keys = index.get(indexValue);
+		if(keys != null) {
+			keys.remove(key);
+			if(keys.isEmpty()) {
+				index.remove(indexValue, keys);
+			}
+		}
+	}
+}
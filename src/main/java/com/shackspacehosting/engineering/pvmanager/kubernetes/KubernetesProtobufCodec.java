@@ -0,0 +1,284 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnknownFieldSet;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Response;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.models.*;
+import io.kubernetes.client.proto.Meta;
+import io.kubernetes.client.proto.Resource;
+import io.kubernetes.client.proto.Runtime;
+import io.kubernetes.client.proto.V1;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the protobuf wire format of the api server into the same model objects the JSON api returns, so the rest of
+ * pvmanager doesn't care which format was used.  Only the fields pvmanager reads are carried over.
+ *
+ * The protobuf classes shipped with the client predate a few fields we need (list continue tokens, volume modes and
+ * mount options), those are read back out of the unknown fields by their field numbers.
+ */
+public class KubernetesProtobufCodec {
+	final public static String MEDIA_TYPE_PROTOBUF = "application/vnd.kubernetes.protobuf";
+	final public static String ACCEPT_PROTOBUF = MEDIA_TYPE_PROTOBUF + ", application/json";
+
+	// Every object the api server encodes as protobuf starts with these four bytes followed by a runtime.Unknown
+	final private static byte[] MAGIC = new byte[] { 'k', '8', 's', 0 };
+
+	final private static int FIELD_LISTMETA_CONTINUE = 3;
+	final private static int FIELD_PVCSPEC_VOLUMEMODE = 6;
+	final private static int FIELD_PVSPEC_MOUNTOPTIONS = 7;
+	final private static int FIELD_PVSPEC_VOLUMEMODE = 8;
+
+	public interface Decoder<T> {
+		T decode(byte[] bytes) throws IOException;
+	}
+
+	public static boolean isProtobuf(Response response) {
+		String contentType = response.header("Content-Type");
+		return contentType != null && contentType.startsWith(MEDIA_TYPE_PROTOBUF);
+	}
+
+	/**
+	 * Executes a call made with {@link #ACCEPT_PROTOBUF} and decodes the result with whichever decoder matches the
+	 * content type the api server chose to answer with.
+	 */
+	public static <T> T execute(ApiClient client, Call call, Type jsonType, Decoder<T> decoder) throws ApiException, IOException {
+		Response response = call.execute();
+		if(!response.isSuccessful() || !isProtobuf(response)) {
+			return client.handleResponse(response, jsonType);
+		}
+		return decoder.decode(response.body().bytes());
+	}
+
+	/**
+	 * Strips the magic prefix and runtime.Unknown envelope from an encoded object, returning the object's own bytes.
+	 */
+	public static ByteString unwrap(byte[] bytes) throws InvalidProtocolBufferException {
+		if(bytes.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) {
+			return Runtime.Unknown.parseFrom(ByteString.copyFrom(bytes, MAGIC.length, bytes.length - MAGIC.length)).getRaw();
+		}
+		return ByteString.copyFrom(bytes);
+	}
+
+	public static V1PersistentVolumeClaimList decodeClaimList(byte[] bytes) throws IOException {
+		V1.PersistentVolumeClaimList list = V1.PersistentVolumeClaimList.parseFrom(unwrap(bytes));
+		V1PersistentVolumeClaimList result = new V1PersistentVolumeClaimList();
+		result.setMetadata(toListMeta(list.getMetadata()));
+		List<V1PersistentVolumeClaim> items = new ArrayList<>(list.getItemsCount());
+		for(V1.PersistentVolumeClaim claim : list.getItemsList()) {
+			items.add(toClaim(claim));
+		}
+		result.setItems(items);
+		return result;
+	}
+
+	public static V1PersistentVolumeList decodeVolumeList(byte[] bytes) throws IOException {
+		V1.PersistentVolumeList list = V1.PersistentVolumeList.parseFrom(unwrap(bytes));
+		V1PersistentVolumeList result = new V1PersistentVolumeList();
+		result.setMetadata(toListMeta(list.getMetadata()));
+		List<V1PersistentVolume> items = new ArrayList<>(list.getItemsCount());
+		for(V1.PersistentVolume volume : list.getItemsList()) {
+			items.add(toVolume(volume));
+		}
+		result.setItems(items);
+		return result;
+	}
+
+	public static V1PersistentVolumeClaim decodeClaim(byte[] bytes) throws IOException {
+		return toClaim(V1.PersistentVolumeClaim.parseFrom(unwrap(bytes)));
+	}
+
+	public static V1PersistentVolume decodeVolume(byte[] bytes) throws IOException {
+		return toVolume(V1.PersistentVolume.parseFrom(unwrap(bytes)));
+	}
+
+	public static V1Status decodeStatus(byte[] bytes) throws IOException {
+		Meta.Status status = Meta.Status.parseFrom(unwrap(bytes));
+		V1Status result = new V1Status();
+		result.setStatus(status.getStatus());
+		result.setMessage(status.getMessage());
+		result.setReason(status.getReason());
+		if(status.hasCode()) {
+			result.setCode(status.getCode());
+		}
+		return result;
+	}
+
+	static V1PersistentVolumeClaim toClaim(V1.PersistentVolumeClaim claim) {
+		V1PersistentVolumeClaim result = new V1PersistentVolumeClaim();
+		result.setApiVersion("v1");
+		result.setKind("PersistentVolumeClaim");
+		result.setMetadata(toObjectMeta(claim.getMetadata()));
+
+		V1.PersistentVolumeClaimSpec spec = claim.getSpec();
+		V1PersistentVolumeClaimSpec resultSpec = new V1PersistentVolumeClaimSpec();
+		resultSpec.setAccessModes(new ArrayList<>(spec.getAccessModesList()));
+		if(spec.hasResources()) {
+			V1ResourceRequirements resources = new V1ResourceRequirements();
+			resources.setRequests(toQuantities(spec.getResources().getRequestsMap()));
+			resources.setLimits(toQuantities(spec.getResources().getLimitsMap()));
+			resultSpec.setResources(resources);
+		}
+		if(spec.hasSelector()) {
+			resultSpec.setSelector(toLabelSelector(spec.getSelector()));
+		}
+		resultSpec.setVolumeName(stringOrNull(spec.hasVolumeName(), spec.getVolumeName()));
+		resultSpec.setStorageClassName(stringOrNull(spec.hasStorageClassName(), spec.getStorageClassName()));
+		resultSpec.setVolumeMode(unknownString(spec.getUnknownFields(), FIELD_PVCSPEC_VOLUMEMODE));
+		result.setSpec(resultSpec);
+
+		V1.PersistentVolumeClaimStatus status = claim.getStatus();
+		V1PersistentVolumeClaimStatus resultStatus = new V1PersistentVolumeClaimStatus();
+		resultStatus.setPhase(stringOrNull(status.hasPhase(), status.getPhase()));
+		resultStatus.setAccessModes(new ArrayList<>(status.getAccessModesList()));
+		resultStatus.setCapacity(toQuantities(status.getCapacityMap()));
+		result.setStatus(resultStatus);
+		return result;
+	}
+
+	static V1PersistentVolume toVolume(V1.PersistentVolume volume) {
+		V1PersistentVolume result = new V1PersistentVolume();
+		result.setApiVersion("v1");
+		result.setKind("PersistentVolume");
+		result.setMetadata(toObjectMeta(volume.getMetadata()));
+
+		V1.PersistentVolumeSpec spec = volume.getSpec();
+		V1PersistentVolumeSpec resultSpec = new V1PersistentVolumeSpec();
+		resultSpec.setCapacity(toQuantities(spec.getCapacityMap()));
+		resultSpec.setAccessModes(new ArrayList<>(spec.getAccessModesList()));
+		if(spec.getPersistentVolumeSource().hasNfs()) {
+			V1.NFSVolumeSource nfs = spec.getPersistentVolumeSource().getNfs();
+			V1NFSVolumeSource resultNfs = new V1NFSVolumeSource();
+			resultNfs.setServer(nfs.getServer());
+			resultNfs.setPath(nfs.getPath());
+			resultNfs.setReadOnly(nfs.getReadOnly());
+			resultSpec.setNfs(resultNfs);
+		}
+		if(spec.hasClaimRef()) {
+			V1.ObjectReference claimRef = spec.getClaimRef();
+			V1ObjectReference resultClaimRef = new V1ObjectReference();
+			resultClaimRef.setApiVersion(stringOrNull(claimRef.hasApiVersion(), claimRef.getApiVersion()));
+			resultClaimRef.setKind(stringOrNull(claimRef.hasKind(), claimRef.getKind()));
+			resultClaimRef.setNamespace(stringOrNull(claimRef.hasNamespace(), claimRef.getNamespace()));
+			resultClaimRef.setName(stringOrNull(claimRef.hasName(), claimRef.getName()));
+			resultClaimRef.setUid(stringOrNull(claimRef.hasUid(), claimRef.getUid()));
+			resultClaimRef.setResourceVersion(stringOrNull(claimRef.hasResourceVersion(), claimRef.getResourceVersion()));
+			resultSpec.setClaimRef(resultClaimRef);
+		}
+		resultSpec.setPersistentVolumeReclaimPolicy(stringOrNull(spec.hasPersistentVolumeReclaimPolicy(), spec.getPersistentVolumeReclaimPolicy()));
+		resultSpec.setStorageClassName(stringOrNull(spec.hasStorageClassName(), spec.getStorageClassName()));
+		List<String> mountOptions = unknownStrings(spec.getUnknownFields(), FIELD_PVSPEC_MOUNTOPTIONS);
+		if(!mountOptions.isEmpty()) {
+			resultSpec.setMountOptions(mountOptions);
+		}
+		resultSpec.setVolumeMode(unknownString(spec.getUnknownFields(), FIELD_PVSPEC_VOLUMEMODE));
+		result.setSpec(resultSpec);
+
+		V1.PersistentVolumeStatus status = volume.getStatus();
+		V1PersistentVolumeStatus resultStatus = new V1PersistentVolumeStatus();
+		resultStatus.setPhase(stringOrNull(status.hasPhase(), status.getPhase()));
+		resultStatus.setMessage(stringOrNull(status.hasMessage(), status.getMessage()));
+		resultStatus.setReason(stringOrNull(status.hasReason(), status.getReason()));
+		result.setStatus(resultStatus);
+		return result;
+	}
+
+	private static V1ObjectMeta toObjectMeta(Meta.ObjectMeta metadata) {
+		V1ObjectMeta result = new V1ObjectMeta();
+		result.setName(stringOrNull(metadata.hasName(), metadata.getName()));
+		result.setNamespace(stringOrNull(metadata.hasNamespace(), metadata.getNamespace()));
+		result.setUid(stringOrNull(metadata.hasUid(), metadata.getUid()));
+		result.setResourceVersion(stringOrNull(metadata.hasResourceVersion(), metadata.getResourceVersion()));
+		result.setSelfLink(stringOrNull(metadata.hasSelfLink(), metadata.getSelfLink()));
+		if(metadata.hasCreationTimestamp()) {
+			result.setCreationTimestamp(toDateTime(metadata.getCreationTimestamp()));
+		}
+		if(metadata.hasDeletionTimestamp()) {
+			result.setDeletionTimestamp(toDateTime(metadata.getDeletionTimestamp()));
+		}
+		if(metadata.getLabelsCount() > 0) {
+			result.setLabels(new HashMap<>(metadata.getLabelsMap()));
+		}
+		if(metadata.getAnnotationsCount() > 0) {
+			result.setAnnotations(new HashMap<>(metadata.getAnnotationsMap()));
+		}
+		if(metadata.getFinalizersCount() > 0) {
+			result.setFinalizers(new ArrayList<>(metadata.getFinalizersList()));
+		}
+		return result;
+	}
+
+	private static V1ListMeta toListMeta(Meta.ListMeta metadata) {
+		V1ListMeta result = new V1ListMeta();
+		result.setResourceVersion(stringOrNull(metadata.hasResourceVersion(), metadata.getResourceVersion()));
+		result.setContinue(unknownString(metadata.getUnknownFields(), FIELD_LISTMETA_CONTINUE));
+		return result;
+	}
+
+	private static V1LabelSelector toLabelSelector(Meta.LabelSelector selector) {
+		V1LabelSelector result = new V1LabelSelector();
+		if(selector.getMatchLabelsCount() > 0) {
+			result.setMatchLabels(new HashMap<>(selector.getMatchLabelsMap()));
+		}
+		if(selector.getMatchExpressionsCount() > 0) {
+			List<V1LabelSelectorRequirement> expressions = new ArrayList<>();
+			for(Meta.LabelSelectorRequirement requirement : selector.getMatchExpressionsList()) {
+				V1LabelSelectorRequirement expression = new V1LabelSelectorRequirement();
+				expression.setKey(requirement.getKey());
+				expression.setOperator(requirement.getOperator());
+				expression.setValues(new ArrayList<>(requirement.getValuesList()));
+				expressions.add(expression);
+			}
+			result.setMatchExpressions(expressions);
+		}
+		return result;
+	}
+
+	private static Map<String, Quantity> toQuantities(Map<String, Resource.Quantity> quantities) {
+		if(quantities.isEmpty()) {
+			return null;
+		}
+		Map<String, Quantity> result = new HashMap<>();
+		for(Map.Entry<String, Resource.Quantity> entry : quantities.entrySet()) {
+			result.put(entry.getKey(), Quantity.fromString(entry.getValue().getString()));
+		}
+		return result;
+	}
+
+	private static DateTime toDateTime(Meta.Time time) {
+		return new DateTime(time.getSeconds() * 1000L + time.getNanos() / 1000000, DateTimeZone.UTC);
+	}
+
+	private static String stringOrNull(boolean present, String value) {
+		return present ? value : null;
+	}
+
+	private static List<String> unknownStrings(UnknownFieldSet fields, int fieldNumber) {
+		List<String> result = new ArrayList<>();
+		if(fields.hasField(fieldNumber)) {
+			for(ByteString value : fields.getField(fieldNumber).getLengthDelimitedList()) {
+				result.add(value.toStringUtf8());
+			}
+		}
+		return result;
+	}
+
+	private static String unknownString(UnknownFieldSet fields, int fieldNumber) {
+		List<String> values = unknownStrings(fields, fieldNumber);
+		return values.isEmpty() ? null : values.get(values.size() - 1);
+	}
+}
@@ -0,0 +1,122 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Response;
+import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.models.V1Status;
+import io.kubernetes.client.proto.Meta;
+import io.kubernetes.client.util.Watch;
+import okio.BufferedSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the events of a watch call in either wire format.  Which decoder is used depends on the content type the api
+ * server answered with, so asking for protobuf from a server that can't provide it quietly falls back to JSON.
+ */
+public class KubernetesWatchStream<T> implements Iterable<KubernetesWatchStream.Event<T>>, Iterator<KubernetesWatchStream.Event<T>>, Closeable {
+	final private static String WATCH_EVENT_ERROR = "ERROR";
+
+	public static class Event<T> {
+		final public String type;
+		final public T object;
+		final public V1Status status;
+
+		Event(String type, T object, V1Status status) {
+			this.type = type;
+			this.object = object;
+			this.status = status;
+		}
+	}
+
+	final private ApiClient client;
+	final private Response response;
+	final private BufferedSource source;
+	final private boolean protobuf;
+	final private Type jsonEventType;
+	final private KubernetesProtobufCodec.Decoder<T> protobufDecoder;
+
+	private KubernetesWatchStream(ApiClient client, Response response, Type jsonEventType, KubernetesProtobufCodec.Decoder<T> protobufDecoder) throws IOException {
+		this.client = client;
+		this.response = response;
+		this.source = response.body().source();
+		this.protobuf = KubernetesProtobufCodec.isProtobuf(response);
+		this.jsonEventType = jsonEventType;
+		this.protobufDecoder = protobufDecoder;
+	}
+
+	/**
+	 * @param jsonEventType the Watch.Response type JSON events are decoded into
+	 * @param protobufDecoder decodes the object embedded in a protobuf watch event
+	 */
+	public static <T> KubernetesWatchStream<T> open(ApiClient client, Call call, Type jsonEventType, KubernetesProtobufCodec.Decoder<T> protobufDecoder) throws ApiException, IOException {
+		Response response = call.execute();
+		if(!response.isSuccessful()) {
+			String body = response.body() == null ? null : response.body().string();
+			throw new ApiException(response.message(), response.code(), response.headers().toMultimap(), body);
+		}
+		return new KubernetesWatchStream<>(client, response, jsonEventType, protobufDecoder);
+	}
+
+	public boolean isProtobuf() {
+		return protobuf;
+	}
+
+	@Override
+	public Iterator<Event<T>> iterator() {
+		return this;
+	}
+
+	@Override
+	public boolean hasNext() {
+		try {
+			return !source.exhausted();
+		} catch (IOException e) {
+			throw new RuntimeException("IO Exception reading watch stream", e);
+		}
+	}
+
+	@Override
+	public Event<T> next() {
+		try {
+			if(source.exhausted()) {
+				throw new NoSuchElementException();
+			}
+			return protobuf ? nextProtobuf() : nextJson();
+		} catch (IOException e) {
+			throw new RuntimeException("IO Exception reading watch stream", e);
+		}
+	}
+
+	private Event<T> nextJson() throws IOException {
+		String line = source.readUtf8LineStrict();
+		Watch.Response<T> event = client.getJSON().deserialize(line, jsonEventType);
+		return new Event<>(event.type, event.object, event.status);
+	}
+
+	private Event<T> nextProtobuf() throws IOException {
+		// Protobuf watch events are framed by a four byte big endian length
+		int length = source.readInt();
+		Meta.WatchEvent event = Meta.WatchEvent.parseFrom(KubernetesProtobufCodec.unwrap(source.readByteArray(length)));
+		byte[] object = event.getObject().getRaw().toByteArray();
+		if(WATCH_EVENT_ERROR.equals(event.getType())) {
+			return new Event<>(event.getType(), null, KubernetesProtobufCodec.decodeStatus(object));
+		}
+		return new Event<>(event.getType(), protobufDecoder.decode(object), null);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove");
+	}
+
+	@Override
+	public void close() throws IOException {
+		response.body().close();
+	}
+}
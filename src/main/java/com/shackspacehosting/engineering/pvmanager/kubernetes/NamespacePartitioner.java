@@ -0,0 +1,131 @@
+package com.shackspacehosting.engineering.pvmanager.kubernetes;
+
+import org.apache.ignite.Ignite;
+import org.apache.ignite.cluster.ClusterNode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits namespaces between the pvmanager replicas in the ignite cluster using rendezvous hashing, every replica
+ * computes the same owner for a namespace without having to talk to the others.  When a replica joins or leaves only
+ * the namespaces it owned, or will own, move.
+ *
+ * Replicas notice a topology change at different times, so a namespace moving to us is only taken over once the
+ * handover time has passed since we noticed, giving its old owner time to notice too and stop.  Namespaces moving
+ * away from us are given up at once.  Until then we only own what we owned both before and after the change, and a
+ * replica that has just started owns nothing.
+ */
+public class NamespacePartitioner {
+	final private Ignite ignite;
+	final private String localNodeId;
+	final private long handoverMs;
+
+	private volatile long topologyVersion = -1;
+	private volatile List<String> nodeIds = Collections.emptyList();
+	// The node ids from before a handover that hasn't completed, or null
+	private volatile List<String> handoverNodeIds = null;
+	private long handoverTime = 0;
+
+	public NamespacePartitioner(Ignite ignite, long handoverMs) {
+		this.ignite = ignite;
+		this.localNodeId = ignite.cluster().localNode().id().toString();
+		this.handoverMs = handoverMs;
+		refresh();
+	}
+
+	/**
+	 * Picks up changes to the cluster topology.
+	 *
+	 * @return the node ids the namespaces were split between before, or null if nothing changed
+	 */
+	public synchronized List<String> refresh() {
+		long currentVersion = ignite.cluster().topologyVersion();
+		if(currentVersion == topologyVersion) {
+			return null;
+		}
+		List<String> currentNodeIds = new ArrayList<>();
+		for(ClusterNode node : ignite.cluster().forServers().nodes()) {
+			currentNodeIds.add(node.id().toString());
+		}
+		Collections.sort(currentNodeIds);
+
+		List<String> previousNodeIds = nodeIds;
+		topologyVersion = currentVersion;
+		if(currentNodeIds.equals(previousNodeIds)) {
+			return null;
+		}
+		// Another change during a handover restarts it, still only keeping what we owned before the first one
+		if(handoverNodeIds == null) {
+			handoverNodeIds = previousNodeIds;
+		}
+		handoverTime = System.currentTimeMillis() + handoverMs;
+		nodeIds = currentNodeIds;
+		return previousNodeIds;
+	}
+
+	/**
+	 * Finishes the handover once its time is up, after which namespaces that moved to us are ours.
+	 *
+	 * @return the node ids the namespaces were split between before the handover, or null if there isn't one finishing
+	 */
+	public synchronized List<String> completeHandover() {
+		if(handoverNodeIds == null || System.currentTimeMillis() < handoverTime) {
+			return null;
+		}
+		List<String> previousNodeIds = handoverNodeIds;
+		handoverNodeIds = null;
+		return previousNodeIds;
+	}
+
+	public long getTopologyVersion() {
+		return topologyVersion;
+	}
+
+	public int getNodeCount() {
+		return nodeIds.size();
+	}
+
+	public boolean isLocallyOwned(String namespace) {
+		// refresh() starts a handover before it publishes new node ids, so anyone reading the new ones sees the handover
+		List<String> currentNodeIds = nodeIds;
+		List<String> previousNodeIds = handoverNodeIds;
+		return isLocallyOwned(namespace, currentNodeIds) && (previousNodeIds == null || isLocallyOwned(namespace, previousNodeIds));
+	}
+
+	public boolean isLocallyOwned(String namespace, List<String> nodeIds) {
+		// Until we can see ourselves in the topology, nobody owns anything
+		return localNodeId.equals(ownerOf(namespace, nodeIds));
+	}
+
+	static String ownerOf(String namespace, List<String> nodeIds) {
+		String owner = null;
+		long ownerWeight = Long.MIN_VALUE;
+		for(String nodeId : nodeIds) {
+			long weight = hash(nodeId + "/" + namespace);
+			if(owner == null || weight > ownerWeight) {
+				owner = nodeId;
+				ownerWeight = weight;
+			}
+		}
+		return owner;
+	}
+
+	// 64 bit FNV-1a, String.hashCode() spreads similar namespace names too poorly for this
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for(byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= (b & 0xff);
+			hash *= 0x100000001b3L;
+		}
+		// Finish with the murmur3 mixer so a change in the last few characters still moves every bit
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
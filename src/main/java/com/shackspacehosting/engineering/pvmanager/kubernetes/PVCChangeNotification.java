@@ -2,6 +2,8 @@ package com.shackspacehosting.engineering.pvmanager.kubernetes;
 
 //import com.openshift.restclient.model.volume.IPersistentVolumeClaim;
 
+import io.kubernetes.client.models.V1ObjectMeta;
+import io.kubernetes.client.models.V1PersistentVolumeClaim;
 import io.kubernetes.client.models.V1PersistentVolumeClaimSpec;
 
 import java.math.BigDecimal;
@@ -57,6 +59,13 @@ public class PVCChangeNotification {
 		return labels;
 	}
 
+	// When the watcher saw the change, kept from the oldest change when notifications are merged
+	private long createdAt = System.currentTimeMillis();
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
 	public PVCChangeNotification(String namespace, String volumeName, V1PersistentVolumeClaimSpec claimSpec, Map<String, String> labels, Map<String, String> annotations, BigDecimal requestedStorage, String status, String changeType, String claimUid) {
 		this.namespace = namespace;
 		this.volumeName = volumeName;
@@ -69,6 +78,28 @@ public class PVCChangeNotification {
 		this.claimUid = claimUid;
 	}
 
+	public static PVCChangeNotification fromClaim(String changeType, V1PersistentVolumeClaim claim) {
+		V1ObjectMeta metadata = claim.getMetadata();
+		V1PersistentVolumeClaimSpec spec = claim.getSpec();
+		BigDecimal size = spec.getResources().getRequests().get("storage").getNumber();
+		return new PVCChangeNotification(metadata.getNamespace(), metadata.getName(), spec, metadata.getLabels(), metadata.getAnnotations(), size, claim.getStatus().getPhase(), changeType, metadata.getUid());
+	}
+
+	/**
+	 * Merges two notifications for the same claim that are both still waiting to be processed, keeping the state of
+	 * the newer one.  Claims are only provisioned from ADDED notifications, so a claim that is modified before its
+	 * ADDED notification is processed must still be treated as added.
+	 */
+	public static PVCChangeNotification coalesce(PVCChangeNotification older, PVCChangeNotification newer) {
+		if("ADDED".equals(older.getChangeType()) && "MODIFIED".equals(newer.getChangeType())) {
+			PVCChangeNotification merged = new PVCChangeNotification(newer.namespace, newer.volumeName, newer.claimSpec, newer.labels, newer.annotations, newer.requestedStorage, newer.status, older.changeType, newer.claimUid);
+			merged.createdAt = older.createdAt;
+			return merged;
+		}
+		newer.createdAt = older.createdAt;
+		return newer;
+	}
+
 	boolean Equals(Object o) {
 		if (o == this) {
 			return true;
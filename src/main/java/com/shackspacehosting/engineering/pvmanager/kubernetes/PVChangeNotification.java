@@ -18,6 +18,8 @@ public class PVChangeNotification {
 	final private Map<String, String> labels;
 	final private V1PersistentVolumeSpec claimSpec;
 	final private String reclaimPolicy;
+	// When the watcher saw the change, kept from the oldest change when notifications are merged
+	private long createdAt = System.currentTimeMillis();
 
 	public PVChangeNotification(String name, String kind, String changeType, String pvState, String pvStateMessage, String pvStateReason, List<String> accessModes, Map<String, String> annotations, Map<String, String> labels, V1PersistentVolumeSpec claimSpec, String reclaimPolicy) {
 		this.changeType = changeType;
@@ -33,6 +35,15 @@ public class PVChangeNotification {
 		this.reclaimPolicy = reclaimPolicy;
 	}
 
+	/**
+	 * Merges two notifications for the same volume that are both still waiting to be processed.  Only the newest
+	 * state of a volume matters when deciding what to do with it.
+	 */
+	public static PVChangeNotification coalesce(PVChangeNotification older, PVChangeNotification newer) {
+		newer.createdAt = older.createdAt;
+		return newer;
+	}
+
 	boolean Equals(Object o) {
 		if (o == this) {
 			return true;
@@ -62,6 +73,10 @@ public class PVChangeNotification {
 		return true;
 	}
 
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
 	public String getKind() {
 		return kind;
 	}
@@ -4,14 +4,21 @@ import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.shackspacehosting.engineering.pvmanager.KeyedWorkerPool;
+import com.shackspacehosting.engineering.pvmanager.PVManagerMetrics;
+import com.shackspacehosting.engineering.pvmanager.storage.DatasetInventory;
+import com.shackspacehosting.engineering.pvmanager.storage.StorageBackend;
 import com.shackspacehosting.engineering.pvmanager.storage.StorageControllerConfiguration;
 import com.shackspacehosting.engineering.pvmanager.storage.StorageProvider;
+import com.squareup.okhttp.Call;
 import io.kubernetes.client.ApiClient;
+import io.kubernetes.client.ApiException;
+import io.kubernetes.client.Pair;
 import io.kubernetes.client.apis.CoreV1Api;
 import io.kubernetes.client.models.*;
-import io.kubernetes.client.util.Config;
 import io.kubernetes.client.util.Watch;
 import org.apache.ignite.Ignite;
+import org.apache.ignite.IgniteInterruptedException;
 import org.apache.ignite.Ignition;
 import org.apache.ignite.cache.CacheMode;
 import org.apache.ignite.configuration.CollectionConfiguration;
@@ -26,16 +33,25 @@ import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static com.shackspacehosting.engineering.pvmanager.storage.providers.ZfsCliStorageProvider.ANNOTATION_PVMANAGER_PVREF;
+import static com.shackspacehosting.engineering.pvmanager.storage.providers.ZfsCliStorageProvider.ANNOTATION_VOLUME_HOST;
+import static com.shackspacehosting.engineering.pvmanager.storage.providers.ZfsCliStorageProvider.ANNOTATION_VOLUME_PATH;
 
 @Component
 public class PVClaimManagerService implements InitializingBean, DisposableBean {
@@ -53,6 +69,7 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 	final public static String ANNOTATION_CLONEFROM = ANNOTATION_BASE + "clone-from";
 	final public static String ANNOTATION_CLONEREF = ANNOTATION_BASE + "clone-ref";
 	final public static String ANNOTATION_CLONESNAPSHOT = ANNOTATION_BASE + "clone-snapshot";
+	final public static String ANNOTATION_BACKEND = ANNOTATION_BASE + "backend";
 	final public static String ANNOTATION_BLOCKSIZE = ANNOTATION_BASE + "blocksize";
 	final public static String ANNOTATION_CHECKSUM_MODE = ANNOTATION_BASE + "checksum";
 	final public static String ANNOTATION_COMPRESSION_MODE = ANNOTATION_BASE + "compression";
@@ -81,6 +98,24 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 	final public static String ANNOTATION_PVMANAGER_PVTAG = "PVMANAGER-PV-TAG";
 	final public static String ANNOTATION_PVMANAGER_RELEASED_TIMESTAMP = ANNOTATION_BASE + "released-at";
 
+	final private static String PATH_PERSISTENT_VOLUME_CLAIMS = "/api/v1/persistentvolumeclaims";
+	final private static String PATH_NAMESPACED_PERSISTENT_VOLUME_CLAIMS = "/api/v1/namespaces/{namespace}/persistentvolumeclaims";
+	final private static String PATH_PERSISTENT_VOLUMES = "/api/v1/persistentvolumes";
+	final private static String WATCH_EVENT_ADDED = "ADDED";
+	final private static String WATCH_EVENT_DELETED = "DELETED";
+	final private static String WATCH_EVENT_BOOKMARK = "BOOKMARK";
+	final private static String WATCH_EVENT_ERROR = "ERROR";
+	final private static int HTTP_GONE = 410;
+	final private static String WIRE_FORMAT_PROTOBUF = "protobuf";
+	final private static String RESOURCE_PVC = "pvc";
+	final private static String RESOURCE_PV = "pv";
+	final private static String RESTART_CLOSED = "closed";
+	final private static String RESTART_EXPIRED = "expired";
+	final private static String RESTART_ERROR = "error";
+	final private static String SERVICE_ACCOUNT_NAMESPACE_FILE = "/var/run/secrets/kubernetes.io/serviceaccount/namespace";
+	// How long shutdown waits for running work of a storage class without an operation timeout
+	final private static long SHUTDOWN_DRAIN_MS_DEFAULT = 60000;
+
 	@Value("${kubernetes.client.debugging:false}")
 	private Boolean kubernetesClientDebugging;
 
@@ -105,9 +140,42 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 	@Value("${kubernetes.pollsleepms:500}")
 	private int watcherPollSleepTime;
 
+	@Value("${kubernetes.notification.blocking:true}")
+	private Boolean notificationBlocking;
+
+	@Value("${kubernetes.notification.waitms:5000}")
+	private int notificationWaitTime;
+
+	@Value("${kubernetes.watch.bookmarks:true}")
+	private Boolean watcherBookmarks;
+
+	@Value("${kubernetes.watch.pvc.labelselector:}")
+	private String claimLabelSelector;
+
+	@Value("${kubernetes.watch.pvc.fieldselector:}")
+	private String claimFieldSelector;
+
+	@Value("${kubernetes.watch.pv.labelselector:}")
+	private String volumeLabelSelector;
+
+	@Value("${kubernetes.watch.namespaces:}")
+	private String watchedNamespaces;
+
+	@Value("${kubernetes.wire.format:json}")
+	private String wireFormat;
+
+	@Value("${kubernetes.list.pagesize:500}")
+	private int watcherListPageSize;
+
 	@Value("${kubernetes.readtimeout:0}")
 	private int watcherReadTimeout;
 
+	@Value("${kubernetes.connectionpool.maxidle:5}")
+	private int connectionPoolMaxIdle;
+
+	@Value("${kubernetes.connectionpool.keepalivems:300000}")
+	private long connectionPoolKeepAlive;
+
 	@Value("${storage.configuration}")
 	private String storageConfiguration;
 
@@ -123,18 +191,77 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 	@Value("${distributed.mode.queue.size:0}")
 	private Integer igniteQueueSize;
 
-	private Queue<PVCChangeNotification> pvcQueue;
-	private Queue<PVChangeNotification> pvQueue;
+	@Value("${distributed.mode.partitioned:false}")
+	private Boolean partitionedMode;
+
+	@Value("${distributed.mode.partition.pollms:1000}")
+	private long partitionPollInterval;
+
+	@Value("${distributed.mode.partition.handoverms:2000}")
+	private long partitionHandoverTime;
+
+	@Value("${distributed.mode.leaderelection:false}")
+	private Boolean leaderElectionEnabled;
+
+	@Value("${distributed.mode.lease.namespace:}")
+	private String leaseNamespace;
+
+	@Value("${distributed.mode.lease.name:pvmanager}")
+	private String leaseName;
+
+	@Value("${distributed.mode.lease.durationseconds:15}")
+	private int leaseDurationSeconds;
+
+	@Value("${distributed.mode.lease.renewms:2000}")
+	private long leaseRenewInterval;
+
+	@Value("${distributed.mode.lease.renewdeadlinems:10000}")
+	private long leaseRenewDeadline;
+
+	@Value("${distributed.mode.lease.retryms:500}")
+	private long leaseRetryPeriod;
+
+	private BlockingQueue<PVCChangeNotification> pvcQueue;
+	private BlockingQueue<PVChangeNotification> pvQueue;
 
 	private StorageControllerConfiguration storageControllerConfiguration;
 
+	private KubernetesApiClientManager apiClientManager;
+
+	private KubernetesLeaderElector leaderElector = null;
+
+	private NamespacePartitioner namespacePartitioner = null;
+
+	final private KubernetesObjectCache objectCache = new KubernetesObjectCache();
+
 	@Override
 	public void afterPropertiesSet() throws Exception {
+		String openShiftUrl = kubernetesServiceScheme + "://" + kubernetesServiceHost + ":" + kubernetesServicePort;
+		apiClientManager = new KubernetesApiClientManager(openShiftUrl, kubernetesServiceUsername, kubernetesServiceToken,
+				kubernetesServiceValidateSSL, watcherReadTimeout, kubernetesClientDebugging == null ? false : kubernetesClientDebugging.booleanValue(),
+				connectionPoolMaxIdle, connectionPoolKeepAlive);
 
 		// If we set the replication count to 0, meaning no replicas, then just disable ignite all together.
 		// If the replication count is less than 0, require all nodes to be synchronized
 		// If the replication count is greater than 0, then require that many backup ignite nodes.  This can be a problem if the cluster contains too few pods running
-		if (!igniteDisabled) {
+		// With leader election only one replica does any work at a time, so it can use local queues and skip ignite
+		if(leaderElectionEnabled) {
+			pvcQueue = new LinkedBlockingQueue<>();
+			pvQueue = new LinkedBlockingQueue<>();
+			leaderElector = new KubernetesLeaderElector(apiClientManager, getLeaseNamespace(), leaseName, getLeaderIdentity(),
+					leaseDurationSeconds, leaseRenewInterval, leaseRenewDeadline, leaseRetryPeriod,
+					this::replayCachedObjects, this::stopActiveWork);
+		} else if (!igniteDisabled && partitionedMode) {
+			// Ignite is only used to find the other replicas, each one queues and processes its own namespaces locally
+			Ignite ignite = Ignition.start(igniteConfigurationFile);
+			if(partitionHandoverTime < partitionPollInterval) {
+				throw new IllegalArgumentException("distributed.mode.partition.handoverms (" + partitionHandoverTime +
+						") can't be shorter than distributed.mode.partition.pollms (" + partitionPollInterval + ")");
+			}
+			namespacePartitioner = new NamespacePartitioner(ignite, partitionHandoverTime);
+			pvcQueue = new LinkedBlockingQueue<>();
+			pvQueue = new LinkedBlockingQueue<>();
+		} else if (!igniteDisabled) {
 			Ignite ignite = Ignition.start(igniteConfigurationFile);
 			CollectionConfiguration cfg = new CollectionConfiguration();
 			if(igniteReplicationBackup > 0) {
@@ -158,6 +285,21 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 			throw e;
 		}
 
+		PVManagerMetrics.registerQueueDepth(RESOURCE_PVC, pvcQueue);
+		PVManagerMetrics.registerQueueDepth(RESOURCE_PV, pvQueue);
+		PVManagerMetrics.registerCoalescedCount(this, PVClaimManagerService::getCoalescedNotificationCount);
+		for(StorageProvider storageProvider : storageControllerConfiguration.getStorageProviders().values()) {
+			for(StorageBackend backend : storageProvider.getBackends()) {
+				DatasetInventory inventory = backend.getManagementProvider().getInventory();
+				if(inventory != null) {
+					final AtomicInteger orphans = new AtomicInteger();
+					final long minAgeMs = TimeUnit.SECONDS.toMillis(storageProvider.getInventoryRefreshSeconds());
+					PVManagerMetrics.registerOrphanCount(storageProvider.getStorageClass(), backend.getName(), orphans);
+					inventory.setRefreshListener(refreshed -> reportOrphans(refreshed, orphans, minAgeMs));
+				}
+			}
+		}
+
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
@@ -174,207 +316,677 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 	private boolean beanShouldStop = false;
 	Thread pvChangeWatcherServiceThread = null;
 	Thread pvChangeNotificationServiceThread = null;
-	Thread pvcChangeWatcherServiceThread = null;
+	final List<Thread> pvcChangeWatcherServiceThreads = new ArrayList<>();
+	Thread namespacePartitionerThread = null;
 	Thread pvcChangeNotificationServiceThread = null;
 	private void startSpringServiceManagerThread() {
-		pvcChangeWatcherServiceThread = new Thread(new Runnable() {
+		// Without a namespace list a single watcher covers the whole cluster, otherwise every namespace gets its own
+		List<String> namespaces = getWatchedNamespaces();
+		if(namespaces.isEmpty()) {
+			pvcChangeWatcherServiceThreads.add(createPersistentVolumeClaimWatcherThread(null));
+		} else {
+			for(String namespace : namespaces) {
+				pvcChangeWatcherServiceThreads.add(createPersistentVolumeClaimWatcherThread(namespace));
+			}
+		}
+
+		pvcChangeNotificationServiceThread = createPersistentVolumeClaimNotificationThread();
+
+		pvChangeWatcherServiceThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
+				String resourceVersion = null;
 				while(!beanShouldStop) {
 					try {
-						ApiClient client = getAuthenticatedApiClient();
-						CoreV1Api api = new CoreV1Api(client);
+						ApiClient client = apiClientManager.getApiClient();
+						CoreV1Api api = apiClientManager.getCoreV1Api();
 
-						try(Watch<V1PersistentVolumeClaim> watch = Watch.createWatch(
+						if(resourceVersion == null) {
+							resourceVersion = relistPersistentVolumes(client, api);
+						}
+
+						String restartReason = RESTART_CLOSED;
+						try(KubernetesWatchStream<V1PersistentVolume> watch = KubernetesWatchStream.open(
 								client,
-								api.listPersistentVolumeClaimForAllNamespacesCall(null, null, null, null,
-										0, null, null, 0, Boolean.TRUE, null, null),
-								new TypeToken<Watch.Response<V1PersistentVolumeClaim>>(){}.getType())) {
-
-							for (Watch.Response<V1PersistentVolumeClaim> item : watch) {
-								V1PersistentVolumeClaim claim = item.object;
-								V1PersistentVolumeClaimStatus status = claim.getStatus();
-								V1ObjectMeta metadata = claim.getMetadata();
-								V1PersistentVolumeClaimSpec spec = claim.getSpec();
-
-								switch(status.getPhase()) {
-									case "Pending":
-										BigDecimal size = spec.getResources().getRequests().get("storage").getNumber();
-										if(LOG.isDebugEnabled()) {
-											LOG.debug("Pending PVC (" + metadata.getNamespace() + ":" + metadata.getName() + ") size: " + size.toPlainString() + " -> " + item.type);
-										}
-
-										//metadata.getLabels();
-										//metadata.getUid();
-										String volumeName = metadata.getName();
-										String namespace = metadata.getNamespace();
-										Map<String, String> annotations = metadata.getAnnotations();
-										Map<String, String> labels = metadata.getLabels();
-										Map<String, String> matchedLabels = null;
-										V1LabelSelector selector = spec.getSelector();
-										if(selector != null) {
-											matchedLabels = spec.getSelector().getMatchLabels();
-										}
-
-										PVCChangeNotification pvcChangeNotification = new PVCChangeNotification(namespace, volumeName, spec, labels, annotations, size, status.getPhase(), item.type, metadata.getUid());
-										pvcQueue.add(pvcChangeNotification);
-										break;
-									case "Bound":
-										LOG.trace("Bound PVC (" + metadata.getNamespace() + ":" + metadata.getName() + ")state: " + status.getPhase());
-										break;
-									case "Lost":
-										LOG.error("LOST PVC (" + metadata.getNamespace() + ":" + metadata.getName() + ")state: " + status.getPhase());
-										break;
-									default:
-										LOG.error("Unexpected PVC (" + metadata.getNamespace() + ":" + metadata.getName() + ") state: " + status.getPhase());
-										break;
+								buildWatchCall(client, PATH_PERSISTENT_VOLUMES, resourceVersion, volumeLabelSelector, null),
+								new TypeToken<Watch.Response<V1PersistentVolume>>(){}.getType(),
+								KubernetesProtobufCodec::decodeVolume)) {
+
+							for (KubernetesWatchStream.Event<V1PersistentVolume> item : watch) {
+								PVManagerMetrics.countWatchEvent(RESOURCE_PV, item.type);
+								if(WATCH_EVENT_ERROR.equals(item.type)) {
+									if(isResourceVersionExpired(item.status)) {
+										restartReason = RESTART_EXPIRED;
+										LOG.info("Persistent Volume Watcher resource version expired, relisting: " + resourceVersion);
+										resourceVersion = null;
+									} else {
+										restartReason = RESTART_ERROR;
+										LOG.error("Persistent Volume Watcher error: " + item.status);
+									}
+									break;
 								}
+								resourceVersion = item.object.getMetadata().getResourceVersion();
+								if(WATCH_EVENT_BOOKMARK.equals(item.type)) {
+									continue;
+								}
+								objectCache.updateVolume(item.type, item.object);
+								queuePersistentVolumeEvent(item.type, item.object);
 							}
-
-
 						}
+						PVManagerMetrics.countWatchRestart(RESOURCE_PV, restartReason);
 
 					} catch(InterruptedIOException ie) {
-						LOG.info("Persistent Volume Claim Watcher interrupted");
+						LOG.info("Persistent Volume Watcher interrupted");
 						// We get interrupted when destroy() is called, so skip the delay below
 						continue;
+					} catch(ApiException e) {
+						if(e.getCode() == HTTP_GONE) {
+							LOG.info("Persistent Volume Watcher resource version expired, relisting: " + resourceVersion);
+							PVManagerMetrics.countWatchRestart(RESOURCE_PV, RESTART_EXPIRED);
+							resourceVersion = null;
+						} else {
+							LOG.error("Unhandled exception in Persistent Volume Manager (PVW): " + e);
+							PVManagerMetrics.countWatchRestart(RESOURCE_PV, RESTART_ERROR);
+							apiClientManager.handleFailure(e);
+						}
 					} catch(Exception e) {
-						LOG.error("Unhandled exception in Persistent Volume Claim Manager (PVCW): " + e);
+						LOG.error("Unhandled exception in Persistent Volume Manager (PVW): " + e);
+						PVManagerMetrics.countWatchRestart(RESOURCE_PV, RESTART_ERROR);
+						e.printStackTrace();
 					}
 
 					try {
 						Thread.sleep(watcherPollSleepTime);
 					} catch (InterruptedException e) {
-						LOG.info("Claim Watcher Interrupted Sleep: " + e);
+						LOG.info("Volume Watcher Interrupted Sleep: " + e);
 					}
 				}
-				LOG.info("Persistent Volume Claim Watcher is stopped.");
+				LOG.info("Persistent Volume Watcher is stopped.");
 			}
 		});
 
-		pvcChangeNotificationServiceThread = new Thread(new Runnable() {
+		pvChangeNotificationServiceThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
-				ApiClient client = null;
 				while(!beanShouldStop) {
+					PVChangeNotification pvChangeNotification;
+					try {
+						pvChangeNotification = nextNotification(pvQueue);
+					} catch(InterruptedException | IgniteInterruptedException e) {
+						LOG.trace("Volume Notification Watcher Interrupted: " + e);
+						continue;
+					}
+					if(pvChangeNotification == null) {
+						continue;
+					}
+					LOG.trace("pvChangeNotification dequeued: {}", pvChangeNotification.toString());
+					PVManagerMetrics.recordNotificationAge(PVManagerMetrics.NOTIFICATION_QUEUED, RESOURCE_PV, pvChangeNotification.getCreatedAt());
+					if(!isActive() || !ownsNamespace(getVolumeNamespace(pvChangeNotification.getAnnotations(), pvChangeNotification.getClaimSpec()))) {
+						continue;
+					}
 					try {
-						if(client == null) {
-							client = getAuthenticatedApiClient();
-							client.setDebugging(kubernetesClientDebugging == null ? false : kubernetesClientDebugging.booleanValue());
+						dispatchPvChange(pvChangeNotification);
+					} catch(Exception e) {
+						LOG.error("Unhandled exception in Persistent Volume Notifcation Manager (PVNMW)", e);
+						apiClientManager.handleFailure(e);
+						// @TODO Do something with the pvChangeNotification we just dropped on the floor
+					}
+				}
+				LOG.info("Persistent Volume Notification Watcher is stopped.");
+			}
+		});
+
+		pvChangeNotificationServiceThread.start();
+		pvChangeWatcherServiceThread.start();
+		pvcChangeNotificationServiceThread.start();
+		for(Thread pvcChangeWatcherServiceThread : pvcChangeWatcherServiceThreads) {
+			pvcChangeWatcherServiceThread.start();
+		}
+
+		// Standbys keep watching so their cache is warm, the election only decides who queues and processes work
+		if(leaderElector != null) {
+			leaderElector.start();
+		}
+
+		if(namespacePartitioner != null) {
+			namespacePartitionerThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while(!beanShouldStop) {
+						try {
+							rebalanceNamespaces();
+						} catch(Exception e) {
+							LOG.error("Unhandled exception in Namespace Partitioner: " + e);
 						}
-						PVCChangeNotification pvcChangeNotification = pvcQueue.poll();
-						while(pvcChangeNotification != null) {
-							LOG.trace("pvcChangeNotification dequeued: {}", pvcChangeNotification.toString());
-							processPvcChange(client, pvcChangeNotification);
-							pvcChangeNotification = pvcQueue.poll();
+						try {
+							Thread.sleep(partitionPollInterval);
+						} catch (InterruptedException e) {
+							LOG.trace("Namespace Partitioner Interrupted Sleep: " + e);
 						}
-
-					} catch(Exception e) {
-						LOG.error("Unhandled exception in Persistent Volume Claim Notification Manager (PVCNMW): " + e);
-						client = null;
 					}
+					LOG.info("Namespace Partitioner is stopped.");
+				}
+			});
+			namespacePartitionerThread.start();
+		}
+	}
 
+	/**
+	 * Creates the thread that takes claim notifications off the queue and hands the ones we're responsible for to their
+	 * storage class's workers.
+	 */
+	private Thread createPersistentVolumeClaimNotificationThread() {
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!beanShouldStop) {
 					try {
-						Thread.sleep(watcherPollSleepTime);
-					} catch (InterruptedException e) {
-						LOG.trace("Claim Notification Watcher Interrupted Sleep: " + e);
+						PVCChangeNotification pvcChangeNotification = nextNotification(pvcQueue);
+						if(pvcChangeNotification == null) {
+							continue;
+						}
+						LOG.trace("pvcChangeNotification dequeued: {}", pvcChangeNotification.toString());
+						PVManagerMetrics.recordNotificationAge(PVManagerMetrics.NOTIFICATION_QUEUED, RESOURCE_PVC, pvcChangeNotification.getCreatedAt());
+						if(!isActive() || !ownsNamespace(pvcChangeNotification.getNamespace())) {
+							continue;
+						}
+						dispatchPvcChange(pvcChangeNotification);
+					} catch(InterruptedException | IgniteInterruptedException e) {
+						LOG.trace("Claim Notification Watcher Interrupted: " + e);
+					} catch(Exception e) {
+						LOG.error("Unhandled exception in Persistent Volume Claim Notification Manager (PVCNMW): " + e);
 					}
 				}
 				LOG.info("Persistent Volume Claim Notification Watcher is stopped.");
 			}
 		});
+	}
 
-		pvChangeWatcherServiceThread = new Thread(new Runnable() {
+	/**
+	 * Starts only the claim notification consumer, with no watchers, election or partitioning, so the path from a
+	 * queued claim to its storage provider can be benchmarked without an api server behind it.
+	 */
+	void startClaimNotificationConsumer(StorageControllerConfiguration storageControllerConfiguration, KubernetesApiClientManager apiClientManager,
+			boolean notificationBlocking, int notificationWaitTime, int watcherPollSleepTime) {
+		this.storageControllerConfiguration = storageControllerConfiguration;
+		this.apiClientManager = apiClientManager;
+		this.notificationBlocking = notificationBlocking;
+		this.notificationWaitTime = notificationWaitTime;
+		this.watcherPollSleepTime = watcherPollSleepTime;
+		this.pvcQueue = new LinkedBlockingQueue<>();
+		this.pvQueue = new LinkedBlockingQueue<>();
+		pvcChangeNotificationServiceThread = createPersistentVolumeClaimNotificationThread();
+		pvcChangeNotificationServiceThread.start();
+	}
+
+	BlockingQueue<PVCChangeNotification> getClaimQueue() {
+		return pvcQueue;
+	}
+
+	/**
+	 * Checks whether replicas have joined or left.  Queued work for namespaces we no longer own is dropped when it is
+	 * dequeued.  Once the handover is over, cached claims and volumes in namespaces we took over are queued up the same
+	 * way a relist would.
+	 */
+	private void rebalanceNamespaces() {
+		if(namespacePartitioner.refresh() != null) {
+			LOG.info("Cluster topology changed (version " + namespacePartitioner.getTopologyVersion() + "), namespaces are now split between " +
+					namespacePartitioner.getNodeCount() + " replicas, taking over new ones in " + partitionHandoverTime + "ms");
+		}
+		List<String> previousNodeIds = namespacePartitioner.completeHandover();
+		if(previousNodeIds == null) {
+			return;
+		}
+		LOG.info("Namespace handover complete (version " + namespacePartitioner.getTopologyVersion() + ")");
+		for(V1PersistentVolumeClaim claim : objectCache.getClaims()) {
+			String namespace = claim.getMetadata().getNamespace();
+			if(!namespacePartitioner.isLocallyOwned(namespace, previousNodeIds) && namespacePartitioner.isLocallyOwned(namespace)) {
+				queuePersistentVolumeClaimEvent(WATCH_EVENT_ADDED, claim);
+			}
+		}
+		for(V1PersistentVolume volume : objectCache.getVolumes()) {
+			String namespace = getVolumeNamespace(volume.getMetadata().getAnnotations(), volume.getSpec());
+			if(!namespacePartitioner.isLocallyOwned(namespace, previousNodeIds) && namespacePartitioner.isLocallyOwned(namespace)) {
+				queuePersistentVolumeEvent(WATCH_EVENT_ADDED, volume);
+			}
+		}
+	}
+
+	/**
+	 * In partitioned mode only the replica that owns a namespace works on its claims and their volumes.
+	 */
+	private boolean ownsNamespace(String namespace) {
+		return namespacePartitioner == null || namespacePartitioner.isLocallyOwned(namespace);
+	}
+
+	/**
+	 * Volumes aren't namespaced, they belong to the namespace of the claim they were created for.
+	 */
+	private static String getVolumeNamespace(Map<String, String> annotations, V1PersistentVolumeSpec spec) {
+		if(spec != null && spec.getClaimRef() != null && spec.getClaimRef().getNamespace() != null) {
+			return spec.getClaimRef().getNamespace();
+		}
+		return annotations == null ? null : annotations.get(ANNOTATION_PVMANAGER_PVCNAMESPACE);
+	}
+
+	/**
+	 * Only the leader does any work when leader election is enabled, every replica does otherwise.
+	 */
+	private boolean isActive() {
+		return leaderElector == null || leaderElector.isLeader();
+	}
+
+	/**
+	 * Called when we become the leader.  Anything that happened while we were a standby was only recorded in the cache,
+	 * so queue it all up the same way a relist would.
+	 */
+	private void replayCachedObjects() {
+		LOG.info("Now the active pvmanager, replaying cached claims and volumes");
+		for(V1PersistentVolumeClaim claim : objectCache.getClaims()) {
+			queuePersistentVolumeClaimEvent(WATCH_EVENT_ADDED, claim);
+		}
+		for(V1PersistentVolume volume : objectCache.getVolumes()) {
+			queuePersistentVolumeEvent(WATCH_EVENT_ADDED, volume);
+		}
+	}
+
+	/**
+	 * Called when we stop being the leader.  Work that hasn't started is dropped, and work that has is given until the
+	 * lease could pass to another replica to finish, so the next leader doesn't start on the same claims alongside it.
+	 */
+	private void stopActiveWork() {
+		LOG.info("No longer the active pvmanager, dropping queued notifications and waiting for running work");
+		pvcQueue.clear();
+		pvQueue.clear();
+		long deadline = System.currentTimeMillis() + leaseDurationSeconds * 1000L - leaseRenewDeadline;
+		for(StorageProvider storageProvider : storageControllerConfiguration.getStorageProviders().values()) {
+			KeyedWorkerPool workerPool = storageProvider.getWorkerPool();
+			if(workerPool == null) {
+				continue;
+			}
+			try {
+				if(!workerPool.drain(Math.max(0, deadline - System.currentTimeMillis()))) {
+					LOG.warn("Work for storage class " + storageProvider.getStorageClass() + " is still running after giving up the leader lease");
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private String getLeaseNamespace() {
+		if(leaseNamespace != null && !leaseNamespace.isEmpty()) {
+			return leaseNamespace;
+		}
+		try {
+			return new String(Files.readAllBytes(Paths.get(SERVICE_ACCOUNT_NAMESPACE_FILE))).trim();
+		} catch (IOException e) {
+			LOG.warn("Could not read our namespace from " + SERVICE_ACCOUNT_NAMESPACE_FILE + ", using default for the leader lease");
+			return "default";
+		}
+	}
+
+	private String getLeaderIdentity() {
+		String hostname = System.getenv("HOSTNAME");
+		if(hostname == null || hostname.isEmpty()) {
+			try {
+				hostname = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				hostname = "pvmanager";
+			}
+		}
+		return hostname + "_" + UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Creates the thread that lists and watches persistent volume claims, either cluster wide or, when namespace is not
+	 * null, only within that one namespace.  Each thread keeps its own resource version.
+	 */
+	private Thread createPersistentVolumeClaimWatcherThread(final String namespace) {
+		final String path = namespace == null ? PATH_PERSISTENT_VOLUME_CLAIMS : PATH_NAMESPACED_PERSISTENT_VOLUME_CLAIMS.replace("{namespace}", namespace);
+		final String watcherName = namespace == null ? "" : " (" + namespace + ")";
+		return new Thread(new Runnable() {
 			@Override
 			public void run() {
+				String resourceVersion = null;
 				while(!beanShouldStop) {
 					try {
-						ApiClient client = getAuthenticatedApiClient();
-						CoreV1Api api = new CoreV1Api(client);
+						ApiClient client = apiClientManager.getApiClient();
+						CoreV1Api api = apiClientManager.getCoreV1Api();
+
+						if(resourceVersion == null) {
+							resourceVersion = relistPersistentVolumeClaims(client, api, namespace, path);
+						}
 
-						try(Watch<V1PersistentVolume> watch = Watch.createWatch(
+						String restartReason = RESTART_CLOSED;
+						try(KubernetesWatchStream<V1PersistentVolumeClaim> watch = KubernetesWatchStream.open(
 								client,
-								api.listPersistentVolumeCall(null, null, null, Boolean.TRUE,
-										null, null, null, 0, Boolean.TRUE,
-										null, null),
-								new TypeToken<Watch.Response<V1PersistentVolume>>(){}.getType())) {
-
-							for (Watch.Response<V1PersistentVolume> item : watch) {
-								V1PersistentVolume claim = item.object;
-								V1PersistentVolumeStatus status = claim.getStatus();
-								V1ObjectMeta metadata = claim.getMetadata();
-								V1PersistentVolumeSpec spec = claim.getSpec();
-								Map<String, String> annotations = metadata.getAnnotations();
-
-								if(annotations != null && annotations.containsKey(ANNOTATION_MANAGED_BY)) {
-									if (!annotations.get(ANNOTATION_MANAGED_BY).equals(ANNOTATION_STORAGE_PROVISIONER_NAME)) {
-										continue;
+								buildWatchCall(client, path, resourceVersion, claimLabelSelector, claimFieldSelector),
+								new TypeToken<Watch.Response<V1PersistentVolumeClaim>>(){}.getType(),
+								KubernetesProtobufCodec::decodeClaim)) {
+
+							for (KubernetesWatchStream.Event<V1PersistentVolumeClaim> item : watch) {
+								PVManagerMetrics.countWatchEvent(RESOURCE_PVC, item.type);
+								if(WATCH_EVENT_ERROR.equals(item.type)) {
+									if(isResourceVersionExpired(item.status)) {
+										restartReason = RESTART_EXPIRED;
+										LOG.info("Persistent Volume Claim Watcher" + watcherName + " resource version expired, relisting: " + resourceVersion);
+										resourceVersion = null;
+									} else {
+										restartReason = RESTART_ERROR;
+										LOG.error("Persistent Volume Claim Watcher" + watcherName + " error: " + item.status);
 									}
-								} else {
+									break;
+								}
+								resourceVersion = item.object.getMetadata().getResourceVersion();
+								if(WATCH_EVENT_BOOKMARK.equals(item.type)) {
 									continue;
 								}
-
-								pvQueue.add(new PVChangeNotification(metadata.getName(), claim.getKind(), item.type, status.getPhase(), status.getMessage(), status.getReason(), spec.getAccessModes(), metadata.getAnnotations(), metadata.getLabels(), spec, null));
+								objectCache.updateClaim(item.type, item.object);
+								queuePersistentVolumeClaimEvent(item.type, item.object);
 							}
-
 						}
+						PVManagerMetrics.countWatchRestart(RESOURCE_PVC, restartReason);
 
 					} catch(InterruptedIOException ie) {
-						LOG.info("Persistent Volume Watcher interrupted");
+						LOG.info("Persistent Volume Claim Watcher" + watcherName + " interrupted");
 						// We get interrupted when destroy() is called, so skip the delay below
 						continue;
+					} catch(ApiException e) {
+						if(e.getCode() == HTTP_GONE) {
+							LOG.info("Persistent Volume Claim Watcher" + watcherName + " resource version expired, relisting: " + resourceVersion);
+							PVManagerMetrics.countWatchRestart(RESOURCE_PVC, RESTART_EXPIRED);
+							resourceVersion = null;
+						} else {
+							LOG.error("Unhandled exception in Persistent Volume Claim Manager (PVCW" + watcherName + "): " + e);
+							PVManagerMetrics.countWatchRestart(RESOURCE_PVC, RESTART_ERROR);
+							apiClientManager.handleFailure(e);
+						}
 					} catch(Exception e) {
-						LOG.error("Unhandled exception in Persistent Volume Manager (PVW): " + e);
-						e.printStackTrace();
+						LOG.error("Unhandled exception in Persistent Volume Claim Manager (PVCW" + watcherName + "): " + e);
+						PVManagerMetrics.countWatchRestart(RESOURCE_PVC, RESTART_ERROR);
 					}
 
 					try {
 						Thread.sleep(watcherPollSleepTime);
 					} catch (InterruptedException e) {
-						LOG.info("Volume Watcher Interrupted Sleep: " + e);
+						LOG.info("Claim Watcher Interrupted Sleep: " + e);
 					}
 				}
-				LOG.info("Persistent Volume Watcher is stopped.");
+				LOG.info("Persistent Volume Claim Watcher" + watcherName + " is stopped.");
 			}
 		});
+	}
 
-		pvChangeNotificationServiceThread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				ApiClient client = null;
-				while(!beanShouldStop) {
-					PVChangeNotification pvChangeNotification = pvQueue.poll();
-					while(pvChangeNotification != null) {
-						LOG.trace("pvChangeNotification dequeued: {}", pvChangeNotification.toString());
-						try {
-							if(client == null) {
-								client = getAuthenticatedApiClient();
-							}
-							processPvChange(client, pvChangeNotification);
-						} catch(Exception e) {
-							LOG.error("Unhandled exception in Persistent Volume Notifcation Manager (PVNMW)", e);
-							client = null;
-							// @TODO Do something with the pvChangeNotification we just dropped on the floor
-						}
-						pvChangeNotification = pvQueue.poll();
-					}
-					try {
-						Thread.sleep(watcherPollSleepTime);
-					} catch (InterruptedException e) {
-						LOG.trace("Volume Notification Watcher Interrupted Sleep: " + e);
-					}
+	private void queuePersistentVolumeClaimEvent(String changeType, V1PersistentVolumeClaim claim) {
+		if(!isActive() || !ownsNamespace(claim.getMetadata().getNamespace())) {
+			return;
+		}
+		V1PersistentVolumeClaimStatus status = claim.getStatus();
+		V1ObjectMeta metadata = claim.getMetadata();
+		V1PersistentVolumeClaimSpec spec = claim.getSpec();
+
+		switch(status.getPhase()) {
+			case "Pending":
+				BigDecimal size = spec.getResources().getRequests().get("storage").getNumber();
+				if(LOG.isDebugEnabled()) {
+					LOG.debug("Pending PVC (" + metadata.getNamespace() + ":" + metadata.getName() + ") size: " + size.toPlainString() + " -> " + changeType);
 				}
-				LOG.info("Persistent Volume Notification Watcher is stopped.");
+
+				pvcQueue.add(PVCChangeNotification.fromClaim(changeType, claim));
+				break;
+			case "Bound":
+				LOG.trace("Bound PVC (" + metadata.getNamespace() + ":" + metadata.getName() + ")state: " + status.getPhase());
+				break;
+			case "Lost":
+				LOG.error("LOST PVC (" + metadata.getNamespace() + ":" + metadata.getName() + ")state: " + status.getPhase());
+				break;
+			default:
+				LOG.error("Unexpected PVC (" + metadata.getNamespace() + ":" + metadata.getName() + ") state: " + status.getPhase());
+				break;
+		}
+	}
+
+	private void queuePersistentVolumeEvent(String changeType, V1PersistentVolume volume) {
+		if(!isActive() || !ownsNamespace(getVolumeNamespace(volume.getMetadata().getAnnotations(), volume.getSpec()))) {
+			return;
+		}
+		V1PersistentVolumeStatus status = volume.getStatus();
+		V1ObjectMeta metadata = volume.getMetadata();
+		V1PersistentVolumeSpec spec = volume.getSpec();
+		Map<String, String> annotations = metadata.getAnnotations();
+
+		if(annotations == null || !ANNOTATION_STORAGE_PROVISIONER_NAME.equals(annotations.get(ANNOTATION_MANAGED_BY))) {
+			return;
+		}
+
+		pvQueue.add(new PVChangeNotification(metadata.getName(), volume.getKind(), changeType, status.getPhase(), status.getMessage(), status.getReason(), spec.getAccessModes(), metadata.getAnnotations(), metadata.getLabels(), spec, null));
+	}
+
+	/**
+	 * Lists every persistent volume claim a page at a time, queuing each one the same way a fresh watch would replay
+	 * it, and returns the resource version a watch should resume from.  This is only needed at startup and when the
+	 * api server tells us our resource version is too old to resume from.
+	 */
+	private String relistPersistentVolumeClaims(ApiClient client, CoreV1Api api, String namespace, String path) throws ApiException, IOException {
+		String continueToken = null;
+		V1PersistentVolumeClaimList list;
+		List<V1PersistentVolumeClaim> claims = new ArrayList<>();
+		do {
+			if(isProtobufWireFormat()) {
+				list = KubernetesProtobufCodec.execute(client,
+						buildListCall(client, path, continueToken, claimLabelSelector, claimFieldSelector),
+						V1PersistentVolumeClaimList.class,
+						KubernetesProtobufCodec::decodeClaimList);
+			} else if(namespace == null) {
+				list = api.listPersistentVolumeClaimForAllNamespaces(continueToken, selectorOrNull(claimFieldSelector), null, selectorOrNull(claimLabelSelector), watcherListPageSize, null, null, null, Boolean.FALSE);
+			} else {
+				list = api.listNamespacedPersistentVolumeClaim(namespace, null, continueToken, selectorOrNull(claimFieldSelector), null, selectorOrNull(claimLabelSelector), watcherListPageSize, null, null, Boolean.FALSE);
 			}
-		});
+			claims.addAll(list.getItems());
+			continueToken = list.getMetadata().getContinue();
+		} while(continueToken != null && !continueToken.isEmpty());
+
+		PVManagerMetrics.countRelist(RESOURCE_PVC);
+		objectCache.replaceClaims(namespace, claims);
+		for(V1PersistentVolumeClaim claim : claims) {
+			queuePersistentVolumeClaimEvent(WATCH_EVENT_ADDED, claim);
+		}
+		LOG.debug("Persistent volume claims" + (namespace == null ? "" : " in " + namespace) + " relisted at resource version: " + list.getMetadata().getResourceVersion());
+		return list.getMetadata().getResourceVersion();
+	}
 
-		pvChangeNotificationServiceThread.start();
-		pvChangeWatcherServiceThread.start();
-		pvcChangeNotificationServiceThread.start();
-		pvcChangeWatcherServiceThread.start();
+	private String relistPersistentVolumes(ApiClient client, CoreV1Api api) throws ApiException, IOException {
+		String continueToken = null;
+		V1PersistentVolumeList list;
+		List<V1PersistentVolume> volumes = new ArrayList<>();
+		do {
+			if(isProtobufWireFormat()) {
+				list = KubernetesProtobufCodec.execute(client,
+						buildListCall(client, PATH_PERSISTENT_VOLUMES, continueToken, volumeLabelSelector, null),
+						V1PersistentVolumeList.class,
+						KubernetesProtobufCodec::decodeVolumeList);
+			} else {
+				list = api.listPersistentVolume(null, continueToken, null, Boolean.TRUE, selectorOrNull(volumeLabelSelector), watcherListPageSize, null, null, Boolean.FALSE);
+			}
+			volumes.addAll(list.getItems());
+			continueToken = list.getMetadata().getContinue();
+		} while(continueToken != null && !continueToken.isEmpty());
+
+		PVManagerMetrics.countRelist(RESOURCE_PV);
+		// Anything we knew about that is gone now was deleted while we weren't watching, release it like any other delete
+		for(V1PersistentVolume volume : objectCache.replaceVolumes(volumes)) {
+			queuePersistentVolumeEvent(WATCH_EVENT_DELETED, volume);
+		}
+		for(V1PersistentVolume volume : volumes) {
+			queuePersistentVolumeEvent(WATCH_EVENT_ADDED, volume);
+		}
+		LOG.debug("Persistent volumes relisted at resource version: " + list.getMetadata().getResourceVersion());
+		return list.getMetadata().getResourceVersion();
+	}
+
+	/**
+	 * Builds a watch call that resumes from the given resource version.  The generated CoreV1Api calls have no way to
+	 * ask for bookmarks, so the call is assembled here instead.  Selectors are applied by the api server, objects that
+	 * don't match them are never sent to us at all.
+	 */
+	private Call buildWatchCall(ApiClient client, String path, String resourceVersion, String labelSelector, String fieldSelector) throws ApiException {
+		List<Pair> queryParams = new ArrayList<>();
+		queryParams.addAll(client.parameterToPair("watch", Boolean.TRUE));
+		queryParams.addAll(client.parameterToPair("timeoutSeconds", 0));
+		queryParams.addAll(client.parameterToPair("resourceVersion", resourceVersion));
+		queryParams.addAll(client.parameterToPair("labelSelector", selectorOrNull(labelSelector)));
+		queryParams.addAll(client.parameterToPair("fieldSelector", selectorOrNull(fieldSelector)));
+		if(watcherBookmarks) {
+			queryParams.addAll(client.parameterToPair("allowWatchBookmarks", Boolean.TRUE));
+		}
+
+		return client.buildCall(path, "GET", queryParams, new ArrayList<Pair>(), null, buildHeaderParams(client, "application/json;stream=watch"), new HashMap<String, Object>(), new String[] {"BearerToken"}, null);
+	}
+
+	/**
+	 * Builds one page of a list call, only used for the protobuf wire format as the generated CoreV1Api calls can only
+	 * ask for JSON.
+	 */
+	private Call buildListCall(ApiClient client, String path, String continueToken, String labelSelector, String fieldSelector) throws ApiException {
+		List<Pair> queryParams = new ArrayList<>();
+		queryParams.addAll(client.parameterToPair("limit", watcherListPageSize));
+		queryParams.addAll(client.parameterToPair("continue", continueToken));
+		queryParams.addAll(client.parameterToPair("labelSelector", selectorOrNull(labelSelector)));
+		queryParams.addAll(client.parameterToPair("fieldSelector", selectorOrNull(fieldSelector)));
+
+		return client.buildCall(path, "GET", queryParams, new ArrayList<Pair>(), null, buildHeaderParams(client, "application/json"), new HashMap<String, Object>(), new String[] {"BearerToken"}, null);
+	}
+
+	private Map<String, String> buildHeaderParams(ApiClient client, String jsonAccept) {
+		Map<String, String> headerParams = new HashMap<>();
+		if(isProtobufWireFormat()) {
+			// The api server answers in JSON anyway for resources it can't encode as protobuf
+			headerParams.put("Accept", KubernetesProtobufCodec.ACCEPT_PROTOBUF);
+		} else {
+			headerParams.put("Accept", client.selectHeaderAccept(new String[] {jsonAccept}));
+		}
+		headerParams.put("Content-Type", client.selectHeaderContentType(new String[] {"*/*"}));
+		return headerParams;
+	}
+
+	private boolean isProtobufWireFormat() {
+		return WIRE_FORMAT_PROTOBUF.equalsIgnoreCase(wireFormat);
 	}
 
-	private void processPvcChange(ApiClient client, PVCChangeNotification pvcChangeNotification) {
+	private static String selectorOrNull(String selector) {
+		return selector == null || selector.trim().isEmpty() ? null : selector.trim();
+	}
+
+	private List<String> getWatchedNamespaces() {
+		List<String> namespaces = new ArrayList<>();
+		if(watchedNamespaces != null) {
+			for(String namespace : watchedNamespaces.split(",")) {
+				if(!namespace.trim().isEmpty() && !namespaces.contains(namespace.trim())) {
+					namespaces.add(namespace.trim());
+				}
+			}
+		}
+		return namespaces;
+	}
+
+	private boolean isResourceVersionExpired(V1Status status) {
+		return status != null && status.getCode() != null && status.getCode() == HTTP_GONE;
+	}
+
+	/**
+	 * Returns the next queued notification, or null if none arrived in time.  In blocking mode this waits on the queue
+	 * itself so a notification is handed over as soon as it is added, otherwise the old poll and sleep behavior is used.
+	 */
+	private <T> T nextNotification(BlockingQueue<T> queue) throws InterruptedException {
+		if(notificationBlocking) {
+			return queue.poll(notificationWaitTime, TimeUnit.MILLISECONDS);
+		}
+
+		T notification = queue.poll();
+		if(notification == null) {
+			Thread.sleep(watcherPollSleepTime);
+		}
+		return notification;
+	}
+
+	/**
+	 * Hands a claim notification to the worker pool of the storage class it asks for, keyed by claim uid so changes to
+	 * one claim are always processed in order and stale copies still waiting are collapsed into the newest one.  Claims
+	 * for storage classes we don't manage are cheap to reject so they are processed right here.
+	 *
+	 * The storage provider creates the volume asynchronously, so the worker is free for other claims meanwhile, and the
+	 * persistent volume is created back on the claim's lane once it's done.
+	 */
+	private void dispatchPvcChange(final PVCChangeNotification pvcChangeNotification) {
+		StorageProvider storageProvider = storageControllerConfiguration.getStorageProviders().get(getStorageClassFromAnnotations(pvcChangeNotification.getAnnotations()));
+		if(storageProvider == null || storageProvider.getWorkerPool() == null) {
+			processPvcChange(pvcChangeNotification, Runnable::run);
+			return;
+		}
+		final String key = "pvc/" + pvcChangeNotification.getClaimUid();
+		final Executor continuations = storageProvider.getWorkerPool().continuationExecutor(key);
+		storageProvider.getWorkerPool().executeAsync(key, pvcChangeNotification,
+				PVCChangeNotification::coalesce, notification -> processPvcChange(notification, continuations));
+	}
+
+	private void dispatchPvChange(final PVChangeNotification pvChangeNotification) throws Exception {
+		StorageProvider storageProvider = storageControllerConfiguration.getStorageProviders().get(getStorageClassFromAnnotations(pvChangeNotification.getAnnotations()));
+		if(storageProvider == null || storageProvider.getWorkerPool() == null) {
+			processPvChange(pvChangeNotification).whenComplete((v, e) -> reportPvChangeFailure(e));
+			return;
+		}
+		storageProvider.getWorkerPool().executeAsync("pv/" + pvChangeNotification.getName(), pvChangeNotification,
+				PVChangeNotification::coalesce, notification -> {
+					try {
+						return processPvChange(notification).whenComplete((v, e) -> reportPvChangeFailure(e));
+					} catch(Exception e) {
+						reportPvChangeFailure(e);
+						return null;
+					}
+				});
+	}
+
+	private void reportPvChangeFailure(Throwable e) {
+		if(e != null) {
+			Exception cause = unwrapCompletionException(e);
+			LOG.error("Unhandled exception in Persistent Volume Notifcation Manager (PVNMW)", cause);
+			apiClientManager.handleFailure(cause);
+		}
+	}
+
+	private static Exception unwrapCompletionException(Throwable e) {
+		while(e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		return e instanceof Exception ? (Exception) e : new CompletionException(e);
+	}
+
+	/**
+	 * @return the number of claim and volume notifications that were merged into a newer notification for the same
+	 * object before being processed, across all storage classes
+	 */
+	public long getCoalescedNotificationCount() {
+		long count = 0;
+		for(StorageProvider storageProvider : storageControllerConfiguration.getStorageProviders().values()) {
+			if(storageProvider.getWorkerPool() != null) {
+				count += storageProvider.getWorkerPool().getCoalescedCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param continuations where the persistent volume is created once the storage provider is done
+	 * @return when the claim has been dealt with, it never completes exceptionally
+	 */
+	private CompletableFuture<?> processPvcChange(PVCChangeNotification pvcChangeNotification, Executor continuations) {
+		PVManagerMetrics.recordNotificationAge(PVManagerMetrics.NOTIFICATION_PENDING, RESOURCE_PVC, pvcChangeNotification.getCreatedAt());
+		if(!isActive() || !ownsNamespace(pvcChangeNotification.getNamespace())) {
+			// We stopped being the leader, or the namespace moved, while this was waiting for a worker
+			return CompletableFuture.completedFuture(null);
+		}
 		switch (pvcChangeNotification.getChangeType().toLowerCase()) {
 			case "added":
 				switch (pvcChangeNotification.getStatus().toLowerCase()) {
@@ -388,7 +1000,7 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 										LOG.error("Add pvc (Failed: no storage class for specified provisioner): ( " + pvcChangeNotification.getVolumeName() + ") " + pvcChangeNotification.getNamespace() + ": " + pvcChangeNotification.getStatus() + " !! " + pvcChangeNotification.getChangeType());
 										throw new NotImplementedException();
 									}
-									processPersistentVolumeClaimCreateRequest(client, pvcChangeNotification);
+									return reportPendingClaimFailure(processPersistentVolumeClaimCreateRequest(pvcChangeNotification, continuations));
 								} else {
 									LOG.trace("Add pvc (Ignored by request): ( " + pvcChangeNotification.getVolumeName() + ") " + pvcChangeNotification.getNamespace() + ": " + pvcChangeNotification.getStatus() + " !! " + pvcChangeNotification.getChangeType());
 								}
@@ -397,11 +1009,12 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 								if(storageProvider == null) {
 									LOG.trace("Add pvc (Ignored: no storage class): ( " + pvcChangeNotification.getVolumeName() + ") " + pvcChangeNotification.getNamespace() + ": " + pvcChangeNotification.getStatus() + " !! " + pvcChangeNotification.getChangeType());
 								} else {
-									processPersistentVolumeClaimCreateRequest(client, pvcChangeNotification);
+									return reportPendingClaimFailure(processPersistentVolumeClaimCreateRequest(pvcChangeNotification, continuations));
 								}
 							}
 						} catch (Exception e) {
 							LOG.error("Exception processing pending claim", e);
+							apiClientManager.handleFailure(e);
 						}
 						break;
 					case "lost": // don't do anything with this one atm, openshift won't remap to a new available PV so theres no point in creating one
@@ -423,48 +1036,36 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 				LOG.error("Found pvc: " + "----??----" + "( " + pvcChangeNotification.getVolumeName() + ") " + pvcChangeNotification.getNamespace() + ": " + pvcChangeNotification.getStatus() + " !! " + pvcChangeNotification.getChangeType());
 				break;
 		}
+		return CompletableFuture.completedFuture(null);
 	}
 
-	private ApiClient getAuthenticatedApiClient() throws IOException {
-		String openShiftPassword;
-		if (kubernetesServiceToken.startsWith("/")) {
-			// If the password starts with /, it is expected
-			// to be a filename pointing to a token.  Basically
-			// this means passwords can't start with '/', but so what? --dwimsey
-
-			// we re-read this every time, just in case it changes this way we get new tokens
-			// as needed if we get disconnected due to a bad token (or any other reason)
-			openShiftPassword = new String(Files.readAllBytes(Paths.get(kubernetesServiceToken)));
-		} else {
-			openShiftPassword = kubernetesServiceToken;
-		}
-
-		String openShiftUrl = kubernetesServiceScheme + "://" + kubernetesServiceHost + ":" + kubernetesServicePort;
-
-		ApiClient client;
-		if (kubernetesServiceUsername != null && !kubernetesServiceUsername.isEmpty()) {
-			LOG.debug("Using username/password authentication: {}", kubernetesServiceUsername);
-			client = Config.fromUserPassword(openShiftUrl, kubernetesServiceUsername, openShiftPassword);
-		} else {
-			LOG.debug("Using BearerToken: {}", kubernetesServiceToken);
-			client = Config.fromToken(openShiftUrl, openShiftPassword);
-			client.setVerifyingSsl(kubernetesServiceValidateSSL);
-			client.getHttpClient().setReadTimeout(watcherReadTimeout, TimeUnit.MILLISECONDS);
-		}
-		return client;
+	private CompletableFuture<Boolean> reportPendingClaimFailure(CompletableFuture<Boolean> created) {
+		return created.exceptionally(e -> {
+			Exception cause = unwrapCompletionException(e);
+			LOG.error("Exception processing pending claim", cause);
+			apiClientManager.handleFailure(cause);
+			return false;
+		});
 	}
 
 	@Override
 	public void destroy() throws Exception {
 		beanShouldStop = true;
-		if(pvcChangeWatcherServiceThread != null) {
+		if(leaderElector != null) {
+			leaderElector.close();
+		}
+		if(namespacePartitionerThread != null) {
+			namespacePartitionerThread.interrupt();
+			namespacePartitionerThread.join();
+		}
+		for(Thread pvcChangeWatcherServiceThread : pvcChangeWatcherServiceThreads) {
 			pvcChangeWatcherServiceThread.interrupt();
 		}
 		if(pvChangeWatcherServiceThread != null) {
 			pvChangeWatcherServiceThread.interrupt();
 			pvChangeWatcherServiceThread.join();
 		}
-		if(pvcChangeWatcherServiceThread != null) {
+		for(Thread pvcChangeWatcherServiceThread : pvcChangeWatcherServiceThreads) {
 			pvcChangeWatcherServiceThread.join();
 		}
 
@@ -480,26 +1081,56 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 		if(pvChangeNotificationServiceThread != null) {
 			pvChangeNotificationServiceThread.join();
 		}
+
+		if(storageControllerConfiguration != null) {
+			// Running operations get to finish, a create that completed after its pool closed would leave a volume
+			// without a persistent volume
+			long stopping = System.currentTimeMillis();
+			for(StorageProvider storageProvider : storageControllerConfiguration.getStorageProviders().values()) {
+				KeyedWorkerPool workerPool = storageProvider.getWorkerPool();
+				if(workerPool != null) {
+					long timeoutMs = storageProvider.getOperationTimeoutSeconds() > 0 ?
+							TimeUnit.SECONDS.toMillis(storageProvider.getOperationTimeoutSeconds()) : SHUTDOWN_DRAIN_MS_DEFAULT;
+					if(!workerPool.drain(Math.max(0, stopping + timeoutMs - System.currentTimeMillis()))) {
+						LOG.warn("Work for storage class " + storageProvider.getStorageClass() + " is still running at shutdown, it will be abandoned");
+					}
+					workerPool.close();
+				}
+				storageProvider.close();
+			}
+		}
+
+		if(apiClientManager != null) {
+			apiClientManager.close();
+		}
 	}
 
-	private void processPvChange(ApiClient client, PVChangeNotification pvcn) throws Exception {
+	/**
+	 * @return when the storage provider has released anything the volume had, the notification itself is dealt with by
+	 * the time this returns
+	 */
+	private CompletableFuture<?> processPvChange(PVChangeNotification pvcn) throws Exception {
+		PVManagerMetrics.recordNotificationAge(PVManagerMetrics.NOTIFICATION_PENDING, RESOURCE_PV, pvcn.getCreatedAt());
+		if(!isActive() || !ownsNamespace(getVolumeNamespace(pvcn.getAnnotations(), pvcn.getClaimSpec()))) {
+			return CompletableFuture.completedFuture(null);
+		}
 		Map<String, String> annotations = pvcn.getAnnotations();
 		if(annotations == null) {
 			// No annotations, we can't possibly own this item
 			LOG.trace("PV Notification is not for this controller: no annotations");
-			return;
+			return CompletableFuture.completedFuture(null);
 		} else {
 			String annotationValue = annotations.getOrDefault(ANNOTATION_MANAGED_BY, null);
 			if (ANNOTATION_STORAGE_PROVISIONER_NAME.equals(annotationValue) == false) {
 				// This application is not the owner of this pv, ignore this notification
 				LOG.trace("PV Notification is not for this controller: " + ANNOTATION_MANAGED_BY + ": {}", annotationValue);
-				return;
+				return CompletableFuture.completedFuture(null);
 			}
 		}
 
 		if(pvcn.getChangeType().equals("DELETED")) {
 			// If the pvcn is being deleted, release any resources associated with it from our domain
-			storageControllerConfiguration.getStorageProviders().get(getStorageClassFromAnnotations(annotations)).removePersistentVolume(annotations);
+			return storageControllerConfiguration.getStorageProviders().get(getStorageClassFromAnnotations(annotations)).removePersistentVolumeAsync(annotations);
 		} else {
 			switch (pvcn.getPvState()) {
 				case "Failed":
@@ -521,14 +1152,14 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 					if(ANNOTATION_RECLAIM_POLICY_RECYCLE.equalsIgnoreCase(reclaimPolicy)) {
 						// Really we shouldn't do this for this reclaim policy, the pv is supposed to be reused, but we're doing to delete it
 						// anyway because ZFS recreates filesystems instantantly and recycling is hard with all the options available
-						deletePersistentVolume(client, pvcn);
-						storageProvider.removePersistentVolume(annotations);
+						deletePersistentVolume(pvcn);
+						return storageProvider.removePersistentVolumeAsync(annotations);
 					} else if(ANNOTATION_RECLAIM_POLICY_RETAIN.equalsIgnoreCase(reclaimPolicy)) {
 						// this allows us to have some sort of after-the-fact cleanup to help deal with volumes of critical data
 						// another process will deal with these items later
 						// @TODO Add a timestamp to these persistent volumes so they can be scavanged after some period of time
-						CoreV1Api api = new CoreV1Api(client);
-						V1PersistentVolume persistentVolume = api.readPersistentVolume(pvcn.getName(), null, Boolean.TRUE, Boolean.FALSE);
+						CoreV1Api api = apiClientManager.getCoreV1Api();
+						V1PersistentVolume persistentVolume = lookupPersistentVolume(api, pvcn.getName());
 						if(persistentVolume != null) {
 							Map<String, String> pvAnnotations = persistentVolume.getMetadata().getAnnotations();
 							if(pvAnnotations != null) {
@@ -546,8 +1177,8 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 						}
 					} else if(ANNOTATION_RECLAIM_POLICY_DELETE.equalsIgnoreCase(reclaimPolicy)) {
 						// do nothing here, deletion is coming soon enough when kubernetes calls for the deletion of the PersistentVolume itself
-						deletePersistentVolume(client, pvcn);
-						storageProvider.removePersistentVolume(annotations);
+						deletePersistentVolume(pvcn);
+						return storageProvider.removePersistentVolumeAsync(annotations);
 					} else {
 						LOG.warn("Released PV unexpected reclaim policy (" + pvcn.getName() + "): " + reclaimPolicy);
 					}
@@ -566,18 +1197,59 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 					break;
 			}
 		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Looks a claim up in the local cache, only asking the api server when the cache hasn't finished loading yet.
+	 */
+	private V1PersistentVolumeClaim lookupPersistentVolumeClaim(CoreV1Api api, String namespace, String name) throws ApiException {
+		// A filtered watch leaves claims out of the cache that clone sources may still refer to
+		if(selectorOrNull(claimLabelSelector) == null && selectorOrNull(claimFieldSelector) == null && objectCache.isClaimsSynced(namespace)) {
+			return objectCache.getClaim(namespace, name);
+		}
+		return api.readNamespacedPersistentVolumeClaim(name, namespace, Boolean.TRUE.toString(), Boolean.TRUE, Boolean.FALSE);
+	}
+
+	private V1PersistentVolume lookupPersistentVolume(CoreV1Api api, String name) throws ApiException {
+		if(selectorOrNull(volumeLabelSelector) == null && objectCache.isVolumesSynced()) {
+			return objectCache.getVolume(name);
+		}
+		return api.readPersistentVolume(name, null, Boolean.TRUE, Boolean.FALSE);
+	}
+
+	/**
+	 * Logs the datasets on a backend that no persistent volume refers to.  Only the cache can answer that without asking
+	 * the api server about every dataset, so nothing is reported until it's loaded, or at all if it's filtered.  Nothing
+	 * is ever destroyed here, an orphan may be a volume someone still wants.
+	 */
+	private void reportOrphans(DatasetInventory inventory, AtomicInteger orphanCount, long minAgeMs) {
+		if(selectorOrNull(volumeLabelSelector) != null || !objectCache.isVolumesSynced()) {
+			return;
+		}
+		// Anything younger than a refresh may belong to a volume that's being created right now
+		List<DatasetInventory.Dataset> orphans = inventory.findOrphans(uuid -> objectCache.getVolumeByUuid(uuid.toString()) != null, minAgeMs);
+		orphanCount.set(orphans.size());
+		for(DatasetInventory.Dataset orphan : orphans) {
+			LOG.warn("Storage class " + StorageBackend.describe(inventory.getStorageClass(), inventory.getBackend()) + " has an orphaned volume, no persistent volume refers to it: " +
+					orphan.getName() + (orphan.getPvRef() != null ? " (was " + orphan.getPvRef() + ")" : ""));
+		}
+	}
+
+	public KubernetesObjectCache getObjectCache() {
+		return objectCache;
 	}
 
-	private void deletePersistentVolume(ApiClient client, PVChangeNotification pvcn) throws Exception {
+	private void deletePersistentVolume(PVChangeNotification pvcn) throws Exception {
 		String volumeName = pvcn.getName();
 		V1DeleteOptions deleteOptions = new V1DeleteOptions();
-		CoreV1Api api = new CoreV1Api(client);
+		CoreV1Api api = apiClientManager.getCoreV1Api();
 		api.deletePersistentVolume(volumeName, deleteOptions, null, null, null, null);
 	}
 
-	Pattern pattern = Pattern.compile("\\{(.+?)\\}");
-	private String replaceTokensInString(Map<String,String> replacements, String text) {
-		Matcher matcher = pattern.matcher(text);
+	final private static Pattern TOKEN_PATTERN = Pattern.compile("\\{(.+?)\\}");
+	static String replaceTokensInString(Map<String,String> replacements, String text) {
+		Matcher matcher = TOKEN_PATTERN.matcher(text);
 
 		StringBuilder builder = new StringBuilder();
 		int i = 0;
@@ -610,13 +1282,13 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 	 * 2. Generate common annotations for PVC
 	 * 2. Check selectors to see if they exist, if so do they match the labels provided for any of our storage drivers
 	 * 2.
-	 * @param client
 	 * @param pvc
-	 * @return
+	 * @param continuations where the persistent volume is created once the storage provider is done
+	 * @return whether a persistent volume was created, once it has been
 	 * @throws Exception
 	 */
-	private boolean processPersistentVolumeClaimCreateRequest(ApiClient client, PVCChangeNotification pvc) throws Exception {
-		CoreV1Api api = new CoreV1Api(client);
+	private CompletableFuture<Boolean> processPersistentVolumeClaimCreateRequest(PVCChangeNotification pvc, Executor continuations) throws Exception {
+		CoreV1Api api = apiClientManager.getCoreV1Api();
 		Map<String, String> annotations = ObjectNameMapper.mapKubernetesToPVManagerPVCAnnotations(pvc.getNamespace(), pvc.getVolumeName(), pvc.getAnnotations());
 
 		BigDecimal requestedStorageInBytes = pvc.getRequestedStorage();
@@ -635,41 +1307,49 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 
 		String cloneFrom = annotations.get(ANNOTATION_CLONEFROM);
 		if(cloneFrom != null && !cloneFrom.isEmpty()) {
-			cloneSourcePersistentVolumeClaim = api.readNamespacedPersistentVolumeClaim(cloneFrom, pvc.getNamespace(), Boolean.TRUE.toString(), Boolean.TRUE, Boolean.FALSE);
+			cloneSourcePersistentVolumeClaim = lookupPersistentVolumeClaim(api, pvc.getNamespace(), cloneFrom);
 			if(cloneSourcePersistentVolumeClaim == null) {
 				LOG.error("Could not clone from '" + cloneFrom + "', it does not exist in this name space.");
-				return false;
+				return CompletableFuture.completedFuture(false);
 			}
 
 			V1PersistentVolumeClaimSpec cloneSourceClaimSpec = cloneSourcePersistentVolumeClaim.getSpec();
 			String cloneSourcePvName = cloneSourceClaimSpec.getVolumeName();
 			if(cloneSourcePvName == null) {
 				LOG.error("Could not clone from '" + cloneFrom + "', source persistent volume doesn't exist.");
-				return false;
+				return CompletableFuture.completedFuture(false);
 			}
 
-			cloneSourcePersistentVolume = api.readPersistentVolume(cloneSourcePvName, null, Boolean.TRUE, Boolean.FALSE);
+			cloneSourcePersistentVolume = lookupPersistentVolume(api, cloneSourcePvName);
 			if(cloneSourcePersistentVolume == null) {
 				LOG.error("Persistent volume not ound for cloning: " + pvc.getNamespace() + "-" + cloneFrom + ": " + cloneSourcePvName);
-				return false;
+				return CompletableFuture.completedFuture(false);
 			}
 
 			V1ObjectMeta metadata = cloneSourcePersistentVolume.getMetadata();
 			if(metadata == null) {
 				LOG.error("Persistent volume found for cloning has null metadata object: " + pvc.getNamespace() + "-" + cloneFrom);
-				return false;
+				return CompletableFuture.completedFuture(false);
 			}
 
 			cloneSourcePvAnnotations = metadata.getAnnotations();
 			if (cloneSourcePvAnnotations == null) {
 				LOG.error("Persistent volume found for cloning has null annotations object: " + pvc.getNamespace() + "-" + cloneFrom);
-				return false;
+				return CompletableFuture.completedFuture(false);
 			}
 
 			String managedBy = cloneSourcePvAnnotations.get(ANNOTATION_MANAGED_BY);
 			if(!ANNOTATION_STORAGE_PROVISIONER_NAME.equals(managedBy)) {
 				LOG.error("Persistent volume found for cloning but is not managed by pvmanager: " + pvc.getNamespace() + "-" + cloneFrom + ": " + managedBy);
-				return false;
+				return CompletableFuture.completedFuture(false);
+			}
+
+			// Clones are made from a snapshot, on the backend the source is on, which no other storage class has
+			String cloneSourceStorageClass = getStorageClassFromAnnotations(cloneSourcePvAnnotations);
+			if(!getStorageClassFromAnnotations(annotations).equals(cloneSourceStorageClass)) {
+				LOG.error("Could not clone from '" + cloneFrom + "', it is in storage class " + cloneSourceStorageClass + ", not " +
+						getStorageClassFromAnnotations(annotations) + ": " + pvc.getNamespace() + "-" + pvc.getVolumeName());
+				return CompletableFuture.completedFuture(false);
 			}
 		}
 
@@ -686,46 +1366,66 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 		claimRef.setUid(pvc.getClaimUid());
 
 
-		if(createPersistentVolume(client, claimRef, annotations, cloneSourcePersistentVolumeClaim, cloneSourcePersistentVolume, cloneSourcePvAnnotations, requestedStorageInBytes, pvc.getClaimSpec().getAccessModes()) == null) {
-			return false;
-		}
-
-		return true;
+		return createPersistentVolume(claimRef, annotations, cloneSourcePersistentVolumeClaim, cloneSourcePersistentVolume, cloneSourcePvAnnotations, requestedStorageInBytes, pvc.getClaimSpec().getAccessModes(), continuations)
+				.thenApply(npv -> npv != null);
 	}
 
 	public enum PvVolumeBlockmode {
 		Filesystem,
 		Block
 	}
-	private V1PersistentVolume createPersistentVolume(ApiClient client, V1ObjectReference claimRef, Map<String, String> annotations, V1PersistentVolumeClaim cloneSourcePersistentVolumeClaim, V1PersistentVolume cloneSourcePersistentVolume, Map<String,String> cloneSourcePvAnnotations, BigDecimal sizeInBytes, List<String> accessModes) throws Exception {
+	private CompletableFuture<V1PersistentVolume> createPersistentVolume(V1ObjectReference claimRef, Map<String, String> annotations, V1PersistentVolumeClaim cloneSourcePersistentVolumeClaim, V1PersistentVolume cloneSourcePersistentVolume, Map<String,String> cloneSourcePvAnnotations, BigDecimal sizeInBytes, List<String> accessModes, Executor continuations) {
 		final String requestedStorageeClass = getStorageClassFromAnnotations(annotations);
 		final StorageProvider provider = storageControllerConfiguration.getStorageProviders().get(requestedStorageeClass);
 
 		UUID uuid = UUID.fromString(annotations.get(ANNOTATION_VOLUME_UUID));
 
-		CoreV1Api api = new CoreV1Api(client);
-
-		V1PersistentVolumeSpec persistentVolumeProperties = null;
-
-		String pvName = replaceTokensInString(annotations, provider.getPvNameFormat());
-		try {
-			annotations.put(ANNOTATION_PVMANAGER_PVREF, pvName);
-			persistentVolumeProperties = provider.createPersistentVolume(annotations, Long.valueOf(sizeInBytes.toPlainString()));
-			persistentVolumeProperties.setAccessModes(accessModes);
-			persistentVolumeProperties.setClaimRef(claimRef);
-		} finally {
+		final String pvName = replaceTokensInString(annotations, provider.getPvNameFormat());
+		if(cloneSourcePvAnnotations != null) {
+			// A clone has to be made where its source is, so it goes on the source's backend whatever placement says.
+			// The provider checks the reference is one of its own volumes before it goes anywhere near a command
+			annotations.put(ANNOTATION_BACKEND, provider.getBackend(cloneSourcePvAnnotations).getName());
+			annotations.put(ANNOTATION_CLONEREF, cloneSourcePvAnnotations.get(ANNOTATION_VOLUME_HOST) + ":" + cloneSourcePvAnnotations.get(ANNOTATION_VOLUME_PATH));
+		}
+		annotations.put(ANNOTATION_PVMANAGER_PVREF, pvName);
+		return provider.createPersistentVolumeAsync(annotations, Long.valueOf(sizeInBytes.toPlainString())).handleAsync((persistentVolumeProperties, e) -> {
 			annotations.remove(ANNOTATION_PVMANAGER_PVTAG);
 			annotations.remove(ANNOTATION_PVMANAGER_PVREF);
 			annotations.remove(ANNOTATION_PVMANAGER_RECLAIM_POLICY);
 			annotations.remove(ANNOTATION_CLONEREF);
-		}
+			try {
+				if(e != null) {
+					throw unwrapCompletionException(e);
+				}
+				return createPersistentVolume(claimRef, annotations, pvName, persistentVolumeProperties, accessModes);
+			} catch(Exception ex) {
+				throw new CompletionException(ex);
+			}
+		}, continuations);
+	}
+
+	/**
+	 * Creates the persistent volume for a claim once the storage provider has made the volume it's backed by.
+	 */
+	private V1PersistentVolume createPersistentVolume(V1ObjectReference claimRef, Map<String, String> annotations, String pvName, V1PersistentVolumeSpec persistentVolumeProperties, List<String> accessModes) throws Exception {
 		if (persistentVolumeProperties == null) {
 			throw new Exception("Persistent volume request could not be fulfilled by any providers.");
 		}
+		if(!isActive() || !ownsNamespace(claimRef.getNamespace())) {
+			// Whoever took over will see the claim is still pending, what we made is left for orphan reporting
+			throw new Exception("No longer responsible for " + claimRef.getNamespace() + ", not creating persistent volume " + pvName + " on " +
+					persistentVolumeProperties.getNfs().getServer() + ":" + persistentVolumeProperties.getNfs().getPath());
+		}
+		persistentVolumeProperties.setAccessModes(accessModes);
+		persistentVolumeProperties.setClaimRef(claimRef);
+
+		CoreV1Api api = apiClientManager.getCoreV1Api();
 
 		V1ObjectMeta metadata = new V1ObjectMeta();
 		metadata.setName(pvName);
 		metadata.setAnnotations(annotations);
+		// Lets the volume watcher be restricted to our own volumes with a label selector
+		metadata.putLabelsItem(ANNOTATION_MANAGED_BY, ANNOTATION_STORAGE_PROVISIONER_NAME);
 
 		V1PersistentVolume pvTemplate = new V1PersistentVolume();
 		pvTemplate.setSpec(persistentVolumeProperties);
@@ -742,10 +1442,15 @@ public class PVClaimManagerService implements InitializingBean, DisposableBean {
 	}
 
 	private void removeBlockedAnnotations(Map<String,String> annotations) {
-		storageControllerConfiguration.getStorageProviders().get(getStorageClassFromAnnotations(annotations)).getBlockedAnnotations().forEach(blockedAnnotation -> annotations.remove(blockedAnnotation));
+		removeBlockedAnnotations(annotations, storageControllerConfiguration.getStorageProviders().get(getStorageClassFromAnnotations(annotations)).getBlockedAnnotations());
+	}
+
+	static void removeBlockedAnnotations(Map<String,String> annotations, List<String> blockedAnnotations) {
+		blockedAnnotations.forEach(blockedAnnotation -> annotations.remove(blockedAnnotation));
 	}
 
-	private void removeInternalAnnotations(Map<String, String> annotations) {
+	static void removeInternalAnnotations(Map<String, String> annotations) {
+		annotations.remove(ANNOTATION_BACKEND);
 		annotations.remove(ANNOTATION_CLONEREF);
 		annotations.remove(ANNOTATION_CLONESNAPSHOT);
 	}
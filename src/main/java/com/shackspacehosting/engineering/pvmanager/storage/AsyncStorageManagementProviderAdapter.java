@@ -0,0 +1,76 @@
+package com.shackspacehosting.engineering.pvmanager.storage;
+
+import io.kubernetes.client.models.V1PersistentVolumeSpec;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives a provider that only has blocking calls the asynchronous interface, by running each call on a thread of its
+ * own.  That's still a thread per operation in flight, but no more than the given number of them.
+ */
+public class AsyncStorageManagementProviderAdapter implements IAsyncStorageManagementProvider, AutoCloseable {
+	final private IStorageManagementProvider provider;
+	final private ExecutorService executor;
+
+	public AsyncStorageManagementProviderAdapter(String name, IStorageManagementProvider provider, int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Asynchronous adapter for " + name + " must have at least one thread: " + threads);
+		}
+		this.provider = provider;
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, name + "-async-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public IStorageManagementProvider getProvider() {
+		return provider;
+	}
+
+	@Override
+	public CompletableFuture<V1PersistentVolumeSpec> createPersistentVolumeAsync(Map<String, String> annotations, long sizeInBytes) {
+		CompletableFuture<V1PersistentVolumeSpec> result = new CompletableFuture<>();
+		executor.execute(() -> {
+			try {
+				result.complete(provider.createPersistentVolume(annotations, sizeInBytes));
+			} catch(Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public CompletableFuture<Void> removePersistentVolumeAsync(Map<String, String> annotations) {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		executor.execute(() -> {
+			try {
+				provider.removePersistentVolume(annotations);
+				result.complete(null);
+			} catch(Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Lets the operations already started finish, the provider itself isn't closed.
+	 */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
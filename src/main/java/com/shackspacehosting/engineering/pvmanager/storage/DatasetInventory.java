@@ -0,0 +1,338 @@
+package com.shackspacehosting.engineering.pvmanager.storage;
+
+import com.shackspacehosting.engineering.pvmanager.PVManagerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * What a storage backend actually holds under its root, by volume uuid.  It's loaded in full periodically, and kept up
+ * to date in between from our own creates and destroys, so existence checks, orphan detection and capacity questions
+ * never need a round trip to the backend.
+ *
+ * A full listing is merged rather than swapped in, so datasets keep the time they were first seen across refreshes,
+ * and creates and destroys recorded while the listing was running aren't undone by it.
+ */
+public class DatasetInventory implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(DatasetInventory.class);
+
+	final private String storageClass;
+	final private String backend;
+	final private String name;
+	final private Map<UUID, Dataset> datasets = new ConcurrentHashMap<>();
+	final private Map<UUID, Long> removed = new ConcurrentHashMap<>();
+
+	private volatile long rootUsedBytes = -1;
+	private volatile long rootAvailableBytes = -1;
+	private volatile long lastRefresh = 0;
+	private volatile Consumer<DatasetInventory> refreshListener = null;
+	private Thread refreshThread = null;
+	private volatile boolean stopped = false;
+
+	public static class Dataset {
+		final private UUID uuid;
+		final private String name;
+		final private long usedBytes;
+		final private long availableBytes;
+		final private long quotaBytes;
+		final private String origin;
+		final private String pvRef;
+		final private long firstSeen;
+		final private long recorded = System.currentTimeMillis();
+
+		/**
+		 * Byte counts are -1 when unknown, origin and pvRef are null when the dataset has none.
+		 */
+		public Dataset(UUID uuid, String name, long usedBytes, long availableBytes, long quotaBytes, String origin, String pvRef) {
+			this(uuid, name, usedBytes, availableBytes, quotaBytes, origin, pvRef, System.currentTimeMillis());
+		}
+
+		private Dataset(UUID uuid, String name, long usedBytes, long availableBytes, long quotaBytes, String origin, String pvRef, long firstSeen) {
+			this.uuid = uuid;
+			this.name = name;
+			this.usedBytes = usedBytes;
+			this.availableBytes = availableBytes;
+			this.quotaBytes = quotaBytes;
+			this.origin = origin;
+			this.pvRef = pvRef;
+			this.firstSeen = firstSeen;
+		}
+
+		public UUID getUuid() {
+			return uuid;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getUsedBytes() {
+			return usedBytes;
+		}
+
+		public long getAvailableBytes() {
+			return availableBytes;
+		}
+
+		public long getQuotaBytes() {
+			return quotaBytes;
+		}
+
+		public String getOrigin() {
+			return origin;
+		}
+
+		public String getPvRef() {
+			return pvRef;
+		}
+
+		public long getFirstSeen() {
+			return firstSeen;
+		}
+
+		private boolean sameAs(Dataset other) {
+			return usedBytes == other.usedBytes && availableBytes == other.availableBytes && quotaBytes == other.quotaBytes &&
+					name.equals(other.name) && (origin == null ? other.origin == null : origin.equals(other.origin)) &&
+					(pvRef == null ? other.pvRef == null : pvRef.equals(other.pvRef));
+		}
+	}
+
+	public DatasetInventory(String storageClass, String backend) {
+		this.storageClass = storageClass;
+		this.backend = backend;
+		this.name = StorageBackend.describe(storageClass, backend);
+		PVManagerMetrics.registerInventory(storageClass, backend, this);
+	}
+
+	public String getStorageClass() {
+		return storageClass;
+	}
+
+	public String getBackend() {
+		return backend;
+	}
+
+	/**
+	 * @return true once a full listing has been loaded, until then nothing this says can be trusted
+	 */
+	public boolean isLoaded() {
+		return lastRefresh != 0;
+	}
+
+	public long getLastRefresh() {
+		return lastRefresh;
+	}
+
+	public boolean exists(UUID uuid) {
+		return datasets.containsKey(uuid);
+	}
+
+	public Dataset get(UUID uuid) {
+		return datasets.get(uuid);
+	}
+
+	public Collection<Dataset> getDatasets() {
+		return Collections.unmodifiableCollection(datasets.values());
+	}
+
+	public int size() {
+		return datasets.size();
+	}
+
+	/**
+	 * @return the space used under the root, including snapshots and anything that isn't a volume, or -1 if unknown
+	 */
+	public long getUsedBytes() {
+		return rootUsedBytes;
+	}
+
+	/**
+	 * @return the space left for new volumes under the root, or -1 if unknown
+	 */
+	public long getAvailableBytes() {
+		return rootAvailableBytes;
+	}
+
+	/**
+	 * @return the sum of the quotas of every volume, what we've promised away
+	 */
+	public long getQuotaBytes() {
+		long total = 0;
+		for(Dataset dataset : datasets.values()) {
+			if(dataset.getQuotaBytes() > 0) {
+				total += dataset.getQuotaBytes();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @return how much more the volumes could still write before every one of them is at its quota
+	 */
+	public long getUnusedQuotaBytes() {
+		long total = 0;
+		for(Dataset dataset : datasets.values()) {
+			if(dataset.getQuotaBytes() > 0) {
+				total += Math.max(0, dataset.getQuotaBytes() - Math.max(0, dataset.getUsedBytes()));
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * @param known the uuids of every volume kubernetes knows about
+	 * @param minAgeMs datasets younger than this are left out, their persistent volume may not exist yet
+	 * @return datasets no persistent volume refers to
+	 */
+	public List<Dataset> findOrphans(Predicate<UUID> known, long minAgeMs) {
+		List<Dataset> orphans = new ArrayList<>();
+		long cutoff = System.currentTimeMillis() - minAgeMs;
+		for(Dataset dataset : datasets.values()) {
+			if(!known.test(dataset.getUuid()) && dataset.getFirstSeen() <= cutoff) {
+				orphans.add(dataset);
+			}
+		}
+		return orphans;
+	}
+
+	/**
+	 * Records a dataset we just created.
+	 */
+	public void put(Dataset dataset) {
+		removed.remove(dataset.getUuid());
+		Dataset previous = datasets.put(dataset.getUuid(), dataset);
+		if(previous != null) {
+			datasets.put(dataset.getUuid(), withFirstSeen(dataset, previous.getFirstSeen()));
+		}
+	}
+
+	/**
+	 * Records a dataset we just destroyed.
+	 */
+	public void remove(UUID uuid) {
+		datasets.remove(uuid);
+		removed.put(uuid, System.currentTimeMillis());
+	}
+
+	/**
+	 * Merges a full listing of the backend into the inventory.
+	 *
+	 * @param listedAt when the listing was started, anything recorded since then is newer than the listing
+	 * @param rootUsedBytes the space used by the root dataset itself, -1 if unknown
+	 * @param rootAvailableBytes the space available to the root dataset itself, -1 if unknown
+	 */
+	public void update(Collection<Dataset> listed, long listedAt, long rootUsedBytes, long rootAvailableBytes) {
+		int added = 0;
+		int changed = 0;
+		Set<UUID> seen = new HashSet<>();
+		for(Dataset dataset : listed) {
+			seen.add(dataset.getUuid());
+			Long removedAt = removed.get(dataset.getUuid());
+			if(removedAt != null && removedAt >= listedAt) {
+				continue;
+			}
+			Dataset previous = datasets.get(dataset.getUuid());
+			if(previous != null && previous.recorded >= listedAt) {
+				continue;
+			}
+			if(previous == null) {
+				datasets.put(dataset.getUuid(), dataset);
+				added++;
+			} else if(!previous.sameAs(dataset)) {
+				datasets.put(dataset.getUuid(), withFirstSeen(dataset, previous.getFirstSeen()));
+				changed++;
+			}
+		}
+		int gone = 0;
+		for(Dataset dataset : new ArrayList<>(datasets.values())) {
+			if(!seen.contains(dataset.getUuid()) && dataset.recorded < listedAt) {
+				datasets.remove(dataset.getUuid());
+				gone++;
+			}
+		}
+		for(Iterator<Long> removedAt = removed.values().iterator(); removedAt.hasNext(); ) {
+			if(removedAt.next() < listedAt) {
+				removedAt.remove();
+			}
+		}
+		this.rootUsedBytes = rootUsedBytes;
+		this.rootAvailableBytes = rootAvailableBytes;
+		this.lastRefresh = System.currentTimeMillis();
+		LOG.debug("Dataset inventory for " + name + " refreshed: " + datasets.size() + " datasets, " + added + " added, " + changed + " changed, " + gone + " removed");
+	}
+
+	private static Dataset withFirstSeen(Dataset dataset, long firstSeen) {
+		return new Dataset(dataset.getUuid(), dataset.getName(), dataset.getUsedBytes(), dataset.getAvailableBytes(),
+				dataset.getQuotaBytes(), dataset.getOrigin(), dataset.getPvRef(), firstSeen);
+	}
+
+	/**
+	 * Called after every full refresh, from the refresh thread.
+	 */
+	public void setRefreshListener(Consumer<DatasetInventory> refreshListener) {
+		this.refreshListener = refreshListener;
+	}
+
+	/**
+	 * Loads the inventory every intervalMs on its own thread, the loader does a full listing and calls update.
+	 */
+	public synchronized void start(long intervalMs, Callable<Void> loader) {
+		if(refreshThread != null) {
+			return;
+		}
+		refreshThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!stopped) {
+					try {
+						loader.call();
+						Consumer<DatasetInventory> listener = refreshListener;
+						if(listener != null) {
+							listener.accept(DatasetInventory.this);
+						}
+					} catch(Exception e) {
+						LOG.warn("Could not refresh dataset inventory for " + name + ": " + e);
+					}
+					try {
+						Thread.sleep(intervalMs);
+					} catch (InterruptedException e) {
+						// close() interrupts us to shut down
+					}
+				}
+			}
+		}, "dataset-inventory-" + name);
+		refreshThread.setDaemon(true);
+		refreshThread.start();
+	}
+
+	@Override
+	public void close() {
+		stopped = true;
+		Thread thread;
+		synchronized (this) {
+			thread = refreshThread;
+		}
+		if(thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				LOG.warn("Interrupted waiting for the dataset inventory refresh to stop");
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
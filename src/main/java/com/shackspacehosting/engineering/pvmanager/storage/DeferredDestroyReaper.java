@@ -0,0 +1,146 @@
+package com.shackspacehosting.engineering.pvmanager.storage;
+
+import com.shackspacehosting.engineering.pvmanager.PVManagerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Destroys whatever a provider has moved into its trash, a limited number of entries every interval, so removing a
+ * volume only costs the move and the backend never has more than one destroy running for us at a time.
+ *
+ * An entry that can't be destroyed, say because something still depends on it, is left alone for a while before being
+ * tried again, the rest of the trash doesn't wait on it.
+ */
+public class DeferredDestroyReaper implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(DeferredDestroyReaper.class);
+
+	// How many intervals an entry that couldn't be destroyed is left before being tried again
+	final private static int RETRY_INTERVALS = 10;
+
+	/**
+	 * Lists and destroys the entries in a provider's trash.
+	 */
+	public interface Trash {
+		List<String> list() throws Exception;
+
+		/**
+		 * @return true if the entry is gone
+		 */
+		boolean destroy(String entry) throws Exception;
+	}
+
+	final private String name;
+	final private int batchSize;
+	final private long intervalMs;
+	final private Trash trash;
+	final private Map<String, Long> retryAt = new HashMap<>();
+
+	private volatile int backlog = 0;
+	private Thread reaperThread = null;
+	private volatile boolean stopped = false;
+
+	public DeferredDestroyReaper(String storageClass, String backend, int batchSize, long intervalMs, Trash trash) {
+		this.name = StorageBackend.describe(storageClass, backend);
+		if(batchSize < 1) {
+			throw new IllegalArgumentException("Trash reaper for " + name + " must destroy at least one entry at a time: " + batchSize);
+		}
+		this.batchSize = batchSize;
+		this.intervalMs = intervalMs;
+		this.trash = trash;
+		PVManagerMetrics.registerTrashBacklog(storageClass, backend, this);
+	}
+
+	/**
+	 * @return how many entries were waiting to be destroyed as of the last pass
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+
+	private void reap() throws Exception {
+		List<String> entries = trash.list();
+		long now = System.currentTimeMillis();
+		retryAt.keySet().retainAll(entries);
+		int remaining = entries.size();
+		int destroyed = 0;
+		backlog = remaining;
+		for(String entry : entries) {
+			if(stopped || destroyed >= batchSize) {
+				break;
+			}
+			Long retry = retryAt.get(entry);
+			if(retry != null && retry > now) {
+				continue;
+			}
+			boolean gone;
+			try {
+				gone = trash.destroy(entry);
+			} catch(Exception e) {
+				LOG.warn("Could not destroy trash entry " + entry + " for " + name + ": " + e);
+				gone = false;
+			}
+			destroyed++;
+			if(gone) {
+				retryAt.remove(entry);
+				backlog = --remaining;
+			} else {
+				retryAt.put(entry, now + intervalMs * RETRY_INTERVALS);
+			}
+		}
+		if(destroyed > 0) {
+			LOG.debug("Trash reaper for " + name + " tried " + destroyed + " entries, " + remaining + " left");
+		}
+	}
+
+	public synchronized void start() {
+		if(reaperThread != null) {
+			return;
+		}
+		reaperThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!stopped) {
+					try {
+						reap();
+					} catch(Exception e) {
+						if(!stopped) {
+							LOG.warn("Could not list trash for " + name + ": " + e);
+						}
+					}
+					try {
+						Thread.sleep(intervalMs);
+					} catch (InterruptedException e) {
+						// close() interrupts us to shut down
+					}
+				}
+			}
+		}, "trash-reaper-" + name);
+		reaperThread.setDaemon(true);
+		reaperThread.start();
+	}
+
+	/**
+	 * Stops reaping, whatever is left in the trash is picked up again by the next start.
+	 */
+	@Override
+	public void close() {
+		stopped = true;
+		Thread thread;
+		synchronized (this) {
+			thread = reaperThread;
+		}
+		if(thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				LOG.warn("Interrupted waiting for the deferred destroy reaper to stop");
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
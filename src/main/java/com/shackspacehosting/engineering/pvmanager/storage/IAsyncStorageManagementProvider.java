@@ -0,0 +1,35 @@
+package com.shackspacehosting.engineering.pvmanager.storage;
+
+import io.kubernetes.client.models.V1PersistentVolumeSpec;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A storage management provider that doesn't need a thread for every operation it has in flight.  The futures complete
+ * the same way the blocking calls return or throw: a null spec means the volume couldn't be created.
+ */
+public interface IAsyncStorageManagementProvider {
+	CompletableFuture<V1PersistentVolumeSpec> createPersistentVolumeAsync(Map<String, String> annotations, long sizeInBytes);
+	CompletableFuture<Void> removePersistentVolumeAsync(Map<String, String> annotations);
+
+	/**
+	 * Waits for an operation, throwing whatever it failed with rather than the exception wrapping it.
+	 */
+	static <T> T await(CompletableFuture<T> operation) throws Exception {
+		try {
+			return operation.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			while(cause instanceof CompletionException && cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			if(cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		}
+	}
+}
@@ -11,4 +11,11 @@ import java.util.UUID;
 public interface IStorageManagementProvider {
 	V1PersistentVolumeSpec createPersistentVolume(Map<String, String> annotations, long sizeInBytes) throws Exception;
 	void removePersistentVolume(Map<String, String> annotations) throws Exception;
+
+	/**
+	 * @return what the backend holds, or null if this provider doesn't keep an inventory
+	 */
+	default DatasetInventory getInventory() {
+		return null;
+	}
 }
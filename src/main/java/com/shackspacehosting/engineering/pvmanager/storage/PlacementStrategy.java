@@ -0,0 +1,88 @@
+package com.shackspacehosting.engineering.pvmanager.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks which of a storage class's backends a new volume goes on.  Only the figures the backends already have cached
+ * are used, placement never asks a backend anything.
+ */
+public interface PlacementStrategy {
+	/**
+	 * @param backends every backend of the storage class, never empty
+	 * @param sizeInBytes the size of the volume being created
+	 */
+	StorageBackend choose(List<StorageBackend> backends, long sizeInBytes);
+
+	// Backends with unknown free space go after the ones we know about, and more free space goes first
+	Comparator<StorageBackend> BY_FREE_BYTES = Comparator.comparing(StorageBackend::hasFreeBytes).reversed()
+			.thenComparing(Comparator.comparingLong(StorageBackend::getFreeBytes).reversed());
+	Comparator<StorageBackend> BY_OUTSTANDING = Comparator.comparingInt(StorageBackend::getOutstanding);
+
+	/**
+	 * The backend with the most free space, the least busy one breaks ties and decides when nothing is known.
+	 */
+	PlacementStrategy MOST_FREE_SPACE = (backends, sizeInBytes) ->
+			fitting(backends, sizeInBytes).stream().min(BY_FREE_BYTES.thenComparing(BY_OUTSTANDING)).get();
+
+	/**
+	 * The backend with the fewest creates and removes running, the most free space breaks ties.
+	 */
+	PlacementStrategy LEAST_OUTSTANDING = (backends, sizeInBytes) ->
+			fitting(backends, sizeInBytes).stream().min(BY_OUTSTANDING.thenComparing(BY_FREE_BYTES)).get();
+
+	/**
+	 * A backend at random, in proportion to the weights they were configured with.  Backends with a weight of 0 only
+	 * get volumes when none of the others have room.
+	 */
+	PlacementStrategy WEIGHTED = (backends, sizeInBytes) -> {
+		List<StorageBackend> candidates = fitting(backends, sizeInBytes);
+		long total = 0;
+		for(StorageBackend backend : candidates) {
+			total += backend.getWeight();
+		}
+		if(total == 0) {
+			return MOST_FREE_SPACE.choose(candidates, sizeInBytes);
+		}
+		long pick = ThreadLocalRandom.current().nextLong(total);
+		for(StorageBackend backend : candidates) {
+			pick -= backend.getWeight();
+			if(pick < 0) {
+				return backend;
+			}
+		}
+		return candidates.get(candidates.size() - 1);
+	};
+
+	/**
+	 * @return the backends known to have room for the volume or that we know nothing about, or all of them if none do,
+	 * in which case the backend gets to say no
+	 */
+	static List<StorageBackend> fitting(List<StorageBackend> backends, long sizeInBytes) {
+		List<StorageBackend> fitting = new ArrayList<>(backends.size());
+		for(StorageBackend backend : backends) {
+			if(!backend.hasFreeBytes() || backend.getFreeBytes() >= sizeInBytes) {
+				fitting.add(backend);
+			}
+		}
+		return fitting.isEmpty() ? backends : fitting;
+	}
+
+	/**
+	 * @return the strategy for a placement configuration value, or null if there isn't one by that name
+	 */
+	static PlacementStrategy forName(String name) {
+		switch (name.toLowerCase()) {
+			case "mostfreespace":
+				return MOST_FREE_SPACE;
+			case "leastoutstanding":
+				return LEAST_OUTSTANDING;
+			case "weighted":
+				return WEIGHTED;
+			default:
+				return null;
+		}
+	}
+}
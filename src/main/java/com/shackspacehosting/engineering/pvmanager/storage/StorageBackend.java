@@ -0,0 +1,134 @@
+package com.shackspacehosting.engineering.pvmanager.storage;
+
+import com.shackspacehosting.engineering.pvmanager.PVManagerMetrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One pool on one host that a storage class can put volumes on, with the figures placement goes by: the space left
+ * according to its inventory, and how many creates and removes are running against it right now.
+ *
+ * A storage class configured the old way, with a single configuration, has one backend named default.
+ */
+public class StorageBackend implements AutoCloseable {
+	final public static String DEFAULT_NAME = "default";
+
+	final private String storageClass;
+	final private String name;
+	final private IStorageManagementProvider managementProvider;
+	final private int weight;
+	final private AtomicInteger outstanding = new AtomicInteger();
+
+	private AsyncStorageManagementProviderAdapter asyncAdapter = null;
+
+	public StorageBackend(String storageClass, String name, IStorageManagementProvider managementProvider, int weight) {
+		if(weight < 0) {
+			throw new IllegalArgumentException("Backend " + describe(storageClass, name) + " can't have a negative weight: " + weight);
+		}
+		this.storageClass = storageClass;
+		this.name = name;
+		this.managementProvider = managementProvider;
+		this.weight = weight;
+		PVManagerMetrics.registerBackend(storageClass, this);
+	}
+
+	/**
+	 * @return the storage class alone for the default backend, so logs and thread names read the same as before there
+	 * were backends
+	 */
+	public static String describe(String storageClass, String backend) {
+		return backend == null || DEFAULT_NAME.equals(backend) ? storageClass : storageClass + "/" + backend;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public IStorageManagementProvider getManagementProvider() {
+		return managementProvider;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * @return creates and removes started against this backend that haven't finished
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	void begin() {
+		outstanding.incrementAndGet();
+	}
+
+	void end() {
+		outstanding.decrementAndGet();
+	}
+
+	/**
+	 * @return true if the backend's inventory has been loaded, so getFreeBytes means something
+	 */
+	public boolean hasFreeBytes() {
+		DatasetInventory inventory = managementProvider.getInventory();
+		return inventory != null && inventory.isLoaded() && inventory.getAvailableBytes() >= 0;
+	}
+
+	/**
+	 * The space left once every volume already on the backend has grown to its quota.  The available space only
+	 * changes when the inventory is refreshed, but quotas are counted as soon as we create a volume, so a burst of
+	 * claims doesn't all land on whichever backend looked emptiest at the last refresh.
+	 *
+	 * @return the free space, which is negative if the backend is overcommitted, or Long.MIN_VALUE if unknown
+	 */
+	public long getFreeBytes() {
+		if(!hasFreeBytes()) {
+			return Long.MIN_VALUE;
+		}
+		DatasetInventory inventory = managementProvider.getInventory();
+		return inventory.getAvailableBytes() - inventory.getUnusedQuotaBytes();
+	}
+
+	/**
+	 * @return the management provider itself if it's asynchronous, otherwise an adapter running its blocking calls on
+	 * the given number of threads
+	 */
+	public synchronized IAsyncStorageManagementProvider getAsyncManagementProvider(int threads) {
+		if(managementProvider instanceof IAsyncStorageManagementProvider) {
+			return (IAsyncStorageManagementProvider) managementProvider;
+		}
+		if(asyncAdapter == null) {
+			asyncAdapter = new AsyncStorageManagementProviderAdapter(describe(storageClass, name), managementProvider, threads);
+		}
+		return asyncAdapter;
+	}
+
+	/**
+	 * Closes the management provider and anything running its calls asynchronously.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(asyncAdapter != null) {
+			asyncAdapter.close();
+			asyncAdapter = null;
+		}
+		if(managementProvider instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) managementProvider).close();
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				throw new IOException("Couldn't close backend " + this, e);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return describe(storageClass, name);
+	}
+}
@@ -3,6 +3,7 @@ package com.shackspacehosting.engineering.pvmanager.storage;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.shackspacehosting.engineering.pvmanager.KeyedWorkerPool;
 import com.shackspacehosting.engineering.pvmanager.kubernetes.ObjectNameMapper;
 import com.shackspacehosting.engineering.pvmanager.storage.providers.FreeNasApiStorageProvider;
 import com.shackspacehosting.engineering.pvmanager.storage.providers.ZfsCliStorageProvider;
@@ -24,6 +25,23 @@ public class StorageControllerConfiguration {
 
 	private static ObjectMapper mapper = ObjectNameMapper.getYamlObjectMapper();
 
+	final public static String CONFIG_PROVISIONING_THREADS = "provisioningThreads";
+	final public static int CONFIG_PROVISIONING_THREADS_DEFAULT = 4;
+	final public static String CONFIG_COMMAND_TIMEOUT_SECONDS = "commandTimeoutSeconds";
+	final public static long CONFIG_COMMAND_TIMEOUT_SECONDS_DEFAULT = 300;
+	final public static String CONFIG_OPERATION_TIMEOUT_SECONDS = "operationTimeoutSeconds";
+	final public static long CONFIG_OPERATION_TIMEOUT_SECONDS_DEFAULT = 900;
+	final public static String CONFIG_INVENTORY_REFRESH_SECONDS = "inventoryRefreshSeconds";
+	final public static long CONFIG_INVENTORY_REFRESH_SECONDS_DEFAULT = 300;
+	final public static String CONFIG_WARM_POOL_SIZE = "warmPoolSize";
+	final public static int CONFIG_WARM_POOL_SIZE_DEFAULT = 0;
+	final public static String CONFIG_BACKENDS = "backends";
+	final public static String CONFIG_BACKEND_NAME = "name";
+	final public static String CONFIG_BACKEND_WEIGHT = "weight";
+	final public static int CONFIG_BACKEND_WEIGHT_DEFAULT = 1;
+	final public static String CONFIG_PLACEMENT = "placement";
+	final public static String CONFIG_PLACEMENT_DEFAULT = "mostFreeSpace";
+
 	public StorageControllerConfiguration(String configuration) throws IOException {
 		File configFile = new File(configuration);
 		JsonNode node = mapper.readTree(configFile);
@@ -105,27 +123,75 @@ public class StorageControllerConfiguration {
 				}
 				provider.setBlockedAnnotations(blockedAnnotations);
 
+				// Each storage class gets its own pool so a slow backend can only tie up its own threads
+				int provisioningThreads = CONFIG_PROVISIONING_THREADS_DEFAULT;
+				if(storageProviderConfigurationNode.has(CONFIG_PROVISIONING_THREADS)) {
+					provisioningThreads = storageProviderConfigurationNode.get(CONFIG_PROVISIONING_THREADS).asInt(CONFIG_PROVISIONING_THREADS_DEFAULT);
+				} else {
+					LOG.info("Storage provider configuration " + CONFIG_PROVISIONING_THREADS + " is missing, assuming default value of " + CONFIG_PROVISIONING_THREADS_DEFAULT + ": " + storageClass);
+				}
+				provider.setWorkerPool(new KeyedWorkerPool(storageClass, provisioningThreads));
+
+				// A command that hangs on the backend would otherwise tie up its worker thread forever
+				if(storageProviderConfigurationNode.has(CONFIG_COMMAND_TIMEOUT_SECONDS)) {
+					provider.setCommandTimeoutSeconds(storageProviderConfigurationNode.get(CONFIG_COMMAND_TIMEOUT_SECONDS).asLong(CONFIG_COMMAND_TIMEOUT_SECONDS_DEFAULT));
+				} else {
+					provider.setCommandTimeoutSeconds(CONFIG_COMMAND_TIMEOUT_SECONDS_DEFAULT);
+				}
+				if(storageProviderConfigurationNode.has(CONFIG_OPERATION_TIMEOUT_SECONDS)) {
+					provider.setOperationTimeoutSeconds(storageProviderConfigurationNode.get(CONFIG_OPERATION_TIMEOUT_SECONDS).asLong(CONFIG_OPERATION_TIMEOUT_SECONDS_DEFAULT));
+				} else {
+					provider.setOperationTimeoutSeconds(CONFIG_OPERATION_TIMEOUT_SECONDS_DEFAULT);
+				}
+
+				// How often the dataset inventory is reloaded in full, 0 turns the inventory off
+				if(storageProviderConfigurationNode.has(CONFIG_INVENTORY_REFRESH_SECONDS)) {
+					provider.setInventoryRefreshSeconds(storageProviderConfigurationNode.get(CONFIG_INVENTORY_REFRESH_SECONDS).asLong(CONFIG_INVENTORY_REFRESH_SECONDS_DEFAULT));
+				} else {
+					provider.setInventoryRefreshSeconds(CONFIG_INVENTORY_REFRESH_SECONDS_DEFAULT);
+				}
+
+				// How many spare datasets to keep made ahead of time for claims with default properties, 0 keeps none
+				if(storageProviderConfigurationNode.has(CONFIG_WARM_POOL_SIZE)) {
+					provider.setWarmPoolSize(storageProviderConfigurationNode.get(CONFIG_WARM_POOL_SIZE).asInt(CONFIG_WARM_POOL_SIZE_DEFAULT));
+				} else {
+					provider.setWarmPoolSize(CONFIG_WARM_POOL_SIZE_DEFAULT);
+				}
+
 				// This is provided for backwards compatibility, providers should not be initialized like this anymore
 				String providerName = storageProviderConfigurationNode.get("managementProvider").asText();
 				if(providerName != null) {
-					switch (providerName.toLowerCase()) {
-						case "zfscli":
-							try {
-								provider.setManagementProvider(new ZfsCliStorageProvider(provider, cfgNode));
-							} catch (IllegalArgumentException iae) {
-								throw new RuntimeException("ZfsCliStorageProvider configuration for storage class '" + storageClass + "' has one or more unrecoverable errors.", iae);
+					// Several pools or hosts can serve one storage class, each with its own configuration, otherwise the
+					// storage class's configuration is its one and only backend
+					JsonNode backendsNode = storageProviderConfigurationNode.get(CONFIG_BACKENDS);
+					if(backendsNode != null && backendsNode.size() > 0) {
+						for (Iterator<JsonNode> backendNodes = backendsNode.elements(); backendNodes.hasNext(); ) {
+							JsonNode backendNode = backendNodes.next();
+							String backendName = backendNode.has(CONFIG_BACKEND_NAME) ? backendNode.get(CONFIG_BACKEND_NAME).asText() : "";
+							if(backendName.isEmpty()) {
+								throw new RuntimeException("Backend configuration for storage class '" + storageClass + "' does not contain a " + CONFIG_BACKEND_NAME);
 							}
-							break;
-						case "freenas":
-							try {
-								provider.setManagementProvider(new FreeNasApiStorageProvider(provider, cfgNode));
-							} catch (IllegalArgumentException iae) {
-								throw new RuntimeException("ZfsCliStorageProvider configuration for storage class '" + storageClass + "' has one or more unrecoverable errors.", iae);
+							String backendProviderName = backendNode.has("managementProvider") ? backendNode.get("managementProvider").asText() : providerName;
+							int weight = CONFIG_BACKEND_WEIGHT_DEFAULT;
+							if(backendNode.has(CONFIG_BACKEND_WEIGHT)) {
+								weight = backendNode.get(CONFIG_BACKEND_WEIGHT).asInt(CONFIG_BACKEND_WEIGHT_DEFAULT);
 							}
-							break;
-						default:
-							throw new RuntimeException("Unknown storage management provider specified for storage class '" + storageClass + "': " + providerName);
+							provider.addBackend(new StorageBackend(storageClass, backendName,
+									createManagementProvider(backendProviderName, provider, backendName, backendNode.get("configuration")), weight));
+						}
+					} else {
+						provider.setManagementProvider(createManagementProvider(providerName, provider, StorageBackend.DEFAULT_NAME, cfgNode));
+					}
+
+					String placement = CONFIG_PLACEMENT_DEFAULT;
+					if(storageProviderConfigurationNode.has(CONFIG_PLACEMENT)) {
+						placement = storageProviderConfigurationNode.get(CONFIG_PLACEMENT).asText(CONFIG_PLACEMENT_DEFAULT);
+					}
+					PlacementStrategy placementStrategy = PlacementStrategy.forName(placement);
+					if(placementStrategy == null) {
+						throw new RuntimeException("Unknown placement specified for storage class '" + storageClass + "': " + placement);
 					}
+					provider.setPlacementStrategy(placementStrategy);
 					providers.put(provider.getStorageClass(), provider);
 				} else {
 					String mountProtocol = storageProviderConfigurationNode.get("mountProtocol").asText();					// NFS or iscsi
@@ -139,6 +205,27 @@ public class StorageControllerConfiguration {
 
 		this.setStorageProviders(providers);
 	}
+
+	private static IStorageManagementProvider createManagementProvider(String providerName, StorageProvider provider, String backend, JsonNode cfgNode) throws IOException {
+		String storageClass = StorageBackend.describe(provider.getStorageClass(), backend);
+		switch (providerName.toLowerCase()) {
+			case "zfscli":
+				try {
+					return new ZfsCliStorageProvider(provider, backend, cfgNode);
+				} catch (IllegalArgumentException iae) {
+					throw new RuntimeException("ZfsCliStorageProvider configuration for storage class '" + storageClass + "' has one or more unrecoverable errors.", iae);
+				}
+			case "freenas":
+				try {
+					return new FreeNasApiStorageProvider(provider, backend, cfgNode);
+				} catch (IllegalArgumentException iae) {
+					throw new RuntimeException("FreeNasApiStorageProvider configuration for storage class '" + storageClass + "' has one or more unrecoverable errors.", iae);
+				}
+			default:
+				throw new RuntimeException("Unknown storage management provider specified for storage class '" + storageClass + "': " + providerName);
+		}
+	}
+
 	private Map<String, StorageProvider> storageProviders = new HashMap<String, StorageProvider>();
 
 	public Map<String, StorageProvider> getStorageProviders() {
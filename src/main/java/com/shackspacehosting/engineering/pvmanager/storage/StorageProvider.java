@@ -1,9 +1,15 @@
 package com.shackspacehosting.engineering.pvmanager.storage;
 
+import com.shackspacehosting.engineering.pvmanager.KeyedWorkerPool;
+import com.shackspacehosting.engineering.pvmanager.PVManagerMetrics;
 import io.kubernetes.client.models.V1PersistentVolumeSpec;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.*;
 
@@ -26,13 +32,99 @@ public class StorageProvider {
 		this.reclaimPolicy = reclaimPolicy;
 	}
 
-	IStorageManagementProvider managementProvider;
+	final Map<String, StorageBackend> backends = new LinkedHashMap<>();
+	/**
+	 * @return the management provider of the default backend, the one volumes that don't say which backend they're on
+	 * belong to
+	 */
 	public IStorageManagementProvider getManagementProvider() {
-		return managementProvider;
+		StorageBackend backend = getDefaultBackend();
+		return backend != null ? backend.getManagementProvider() : null;
 	}
 
-	public void setManagementProvider(IStorageManagementProvider managementProvider) {
-		this.managementProvider = managementProvider;
+	/**
+	 * Makes the given provider this storage class's only backend.
+	 */
+	public synchronized void setManagementProvider(IStorageManagementProvider managementProvider) {
+		backends.clear();
+		addBackend(new StorageBackend(getStorageClass(), StorageBackend.DEFAULT_NAME, managementProvider, 1));
+	}
+
+	public synchronized void addBackend(StorageBackend backend) {
+		if(backends.containsKey(backend.getName())) {
+			throw new IllegalArgumentException("Storage class " + getStorageClass() + " already has a backend named " + backend.getName());
+		}
+		backends.put(backend.getName(), backend);
+	}
+
+	public synchronized List<StorageBackend> getBackends() {
+		return new ArrayList<>(backends.values());
+	}
+
+	/**
+	 * @return the backend named default if there is one, otherwise the first one configured
+	 */
+	public synchronized StorageBackend getDefaultBackend() {
+		StorageBackend backend = backends.get(StorageBackend.DEFAULT_NAME);
+		if(backend == null && !backends.isEmpty()) {
+			backend = backends.values().iterator().next();
+		}
+		return backend;
+	}
+
+	/**
+	 * @return the backend the volume is on, going by its backend annotation
+	 */
+	public synchronized StorageBackend getBackend(Map<String, String> annotations) {
+		String name = annotations.get(ANNOTATION_BACKEND);
+		if(name == null) {
+			return getDefaultBackend();
+		}
+		StorageBackend backend = backends.get(name);
+		if(backend == null) {
+			throw new IllegalStateException("Storage class " + getStorageClass() + " has no backend named " + name);
+		}
+		return backend;
+	}
+
+	PlacementStrategy placementStrategy = PlacementStrategy.MOST_FREE_SPACE;
+	public PlacementStrategy getPlacementStrategy() {
+		return placementStrategy;
+	}
+
+	public void setPlacementStrategy(PlacementStrategy placementStrategy) {
+		this.placementStrategy = placementStrategy;
+	}
+
+	/**
+	 * Picks the backend for a new volume, unless it already names one, as clones do, and records it in the
+	 * annotations.  The default backend isn't recorded, so volumes made before a storage class had backends and ones
+	 * made after look the same.
+	 */
+	StorageBackend placePersistentVolume(Map<String, String> annotations, long sizeInBytes) {
+		StorageBackend backend;
+		if(annotations.containsKey(ANNOTATION_BACKEND)) {
+			backend = getBackend(annotations);
+		} else {
+			List<StorageBackend> candidates = getBackends();
+			backend = candidates.size() == 1 ? candidates.get(0) : placementStrategy.choose(candidates, sizeInBytes);
+		}
+		if(!StorageBackend.DEFAULT_NAME.equals(backend.getName())) {
+			annotations.put(ANNOTATION_BACKEND, backend.getName());
+		}
+		return backend;
+	}
+
+	/**
+	 * @return the default backend's management provider itself if it's asynchronous, otherwise an adapter running its
+	 * blocking calls on as many threads as the worker pool lets operations run at once
+	 */
+	public IAsyncStorageManagementProvider getAsyncManagementProvider() {
+		return getAsyncManagementProvider(getDefaultBackend());
+	}
+
+	private IAsyncStorageManagementProvider getAsyncManagementProvider(StorageBackend backend) {
+		return backend.getAsyncManagementProvider(workerPool != null ? workerPool.getSize() : StorageControllerConfiguration.CONFIG_PROVISIONING_THREADS_DEFAULT);
 	}
 
 
@@ -47,11 +139,89 @@ public class StorageProvider {
 
 
 	public V1PersistentVolumeSpec createPersistentVolume(Map<String, String> annotations, long sizeInBytes) throws Exception {
-		return managementProvider.createPersistentVolume(annotations, sizeInBytes);
+		long start = System.nanoTime();
+		boolean success = false;
+		StorageBackend backend = placePersistentVolume(annotations, sizeInBytes);
+		backend.begin();
+		try {
+			V1PersistentVolumeSpec spec = backend.getManagementProvider().createPersistentVolume(annotations, sizeInBytes);
+			success = spec != null;
+			return spec;
+		} finally {
+			backend.end();
+			PVManagerMetrics.recordProviderOperation("create", getStorageClass(), start, success);
+		}
 	}
 
 	public void removePersistentVolume(Map<String, String> annotations) throws Exception {
-		managementProvider.removePersistentVolume(annotations);
+		long start = System.nanoTime();
+		boolean success = false;
+		StorageBackend backend = getBackend(annotations);
+		backend.begin();
+		try {
+			backend.getManagementProvider().removePersistentVolume(annotations);
+			success = true;
+		} finally {
+			backend.end();
+			PVManagerMetrics.recordProviderOperation("remove", getStorageClass(), start, success);
+		}
+	}
+
+	public CompletableFuture<V1PersistentVolumeSpec> createPersistentVolumeAsync(Map<String, String> annotations, long sizeInBytes) {
+		long start = System.nanoTime();
+		StorageBackend backend;
+		try {
+			backend = placePersistentVolume(annotations, sizeInBytes);
+		} catch(RuntimeException e) {
+			PVManagerMetrics.recordProviderOperation("create", getStorageClass(), start, false);
+			CompletableFuture<V1PersistentVolumeSpec> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		backend.begin();
+		return getAsyncManagementProvider(backend).createPersistentVolumeAsync(annotations, sizeInBytes).whenComplete((spec, e) -> {
+			backend.end();
+			PVManagerMetrics.recordProviderOperation("create", getStorageClass(), start, e == null && spec != null);
+		});
+	}
+
+	public CompletableFuture<Void> removePersistentVolumeAsync(Map<String, String> annotations) {
+		long start = System.nanoTime();
+		StorageBackend backend;
+		try {
+			backend = getBackend(annotations);
+		} catch(RuntimeException e) {
+			PVManagerMetrics.recordProviderOperation("remove", getStorageClass(), start, false);
+			CompletableFuture<Void> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		backend.begin();
+		return getAsyncManagementProvider(backend).removePersistentVolumeAsync(annotations).whenComplete((v, e) -> {
+			backend.end();
+			PVManagerMetrics.recordProviderOperation("remove", getStorageClass(), start, e == null);
+		});
+	}
+
+	/**
+	 * Closes every backend, carrying on past any that fail to close.
+	 */
+	public synchronized void close() throws Exception {
+		Exception failure = null;
+		for(StorageBackend backend : backends.values()) {
+			try {
+				backend.close();
+			} catch(Exception e) {
+				if(failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
 	}
 
 	public String getDefaultPvNameFormat() {
@@ -66,6 +236,54 @@ public class StorageProvider {
 		return pvNamePrefix;
 	}
 
+	KeyedWorkerPool workerPool = null;
+	public KeyedWorkerPool getWorkerPool() {
+		return workerPool;
+	}
+	public void setWorkerPool(KeyedWorkerPool workerPool) {
+		this.workerPool = workerPool;
+	}
+
+	// How long a single command against the backend and a whole create or remove may take, 0 is forever
+	long commandTimeoutSeconds = 0;
+	public long getCommandTimeoutSeconds() {
+		return commandTimeoutSeconds;
+	}
+	public void setCommandTimeoutSeconds(long commandTimeoutSeconds) {
+		this.commandTimeoutSeconds = commandTimeoutSeconds;
+	}
+
+	long operationTimeoutSeconds = 0;
+	public long getOperationTimeoutSeconds() {
+		return operationTimeoutSeconds;
+	}
+	public void setOperationTimeoutSeconds(long operationTimeoutSeconds) {
+		this.operationTimeoutSeconds = operationTimeoutSeconds;
+	}
+
+	long inventoryRefreshSeconds = 0;
+	public long getInventoryRefreshSeconds() {
+		return inventoryRefreshSeconds;
+	}
+	public void setInventoryRefreshSeconds(long inventoryRefreshSeconds) {
+		this.inventoryRefreshSeconds = inventoryRefreshSeconds;
+	}
+
+	int warmPoolSize = 0;
+	public int getWarmPoolSize() {
+		return warmPoolSize;
+	}
+	public void setWarmPoolSize(int warmPoolSize) {
+		this.warmPoolSize = warmPoolSize;
+	}
+
+	/**
+	 * @return when an operation started now has to be finished by, in epoch millis
+	 */
+	public long getOperationDeadline() {
+		return operationTimeoutSeconds > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(operationTimeoutSeconds) : Long.MAX_VALUE;
+	}
+
 	List<String> blockedAnnotations = null;
  	public List<String> getBlockedAnnotations() {
  		return blockedAnnotations;
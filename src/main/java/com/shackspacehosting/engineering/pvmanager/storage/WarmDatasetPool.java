@@ -0,0 +1,160 @@
+package com.shackspacehosting.engineering.pvmanager.storage;
+
+import com.shackspacehosting.engineering.pvmanager.PVManagerMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spare datasets made ahead of time with a storage class's default properties, already exported and with their mode
+ * set, so a claim that doesn't ask for anything special only has to rename one into place.  A background thread tops
+ * the pool back up whenever a spare is taken.
+ *
+ * The pool only knows the names of its spares, what they are and how to make one is up to the provider.
+ */
+public class WarmDatasetPool implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(WarmDatasetPool.class);
+
+	// How long to wait before trying again when making a spare fails
+	final private static long FAILURE_BACKOFF_MS = TimeUnit.SECONDS.toMillis(30);
+	// How often the pool is checked even if nothing was taken
+	final private static long IDLE_CHECK_MS = TimeUnit.SECONDS.toMillis(60);
+
+	/**
+	 * Finds and makes spare datasets on the backend.
+	 */
+	public interface Filler {
+		/**
+		 * @return the spares already on the backend, left over from before
+		 */
+		Collection<String> list() throws Exception;
+
+		/**
+		 * @return a future that completes with the name of the new spare
+		 */
+		CompletableFuture<String> create();
+	}
+
+	final private String name;
+	final private int targetSize;
+	final private Filler filler;
+	final private Deque<String> spares = new ConcurrentLinkedDeque<>();
+
+	private Thread refillThread = null;
+	private volatile boolean stopped = false;
+
+	public WarmDatasetPool(String storageClass, String backend, int targetSize, Filler filler) {
+		this.name = StorageBackend.describe(storageClass, backend);
+		if(targetSize < 1) {
+			throw new IllegalArgumentException("Warm pool for " + name + " must hold at least one spare: " + targetSize);
+		}
+		this.targetSize = targetSize;
+		this.filler = filler;
+		PVManagerMetrics.registerWarmPool(storageClass, backend, this);
+	}
+
+	public int getTargetSize() {
+		return targetSize;
+	}
+
+	public int size() {
+		return spares.size();
+	}
+
+	/**
+	 * @return a spare to use, or null if the pool is empty
+	 */
+	public String take() {
+		String spare = spares.pollFirst();
+		synchronized (this) {
+			notifyAll();
+		}
+		return spare;
+	}
+
+	/**
+	 * Puts back a spare that was taken but couldn't be used, and is still a spare.
+	 */
+	public void offer(String spare) {
+		spares.offerFirst(spare);
+	}
+
+	/**
+	 * Starts filling the pool on its own thread, beginning with any spares left over from before.
+	 */
+	public synchronized void start() {
+		if(refillThread != null) {
+			return;
+		}
+		refillThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				boolean listed = false;
+				while(!stopped) {
+					boolean failed = false;
+					try {
+						if(!listed) {
+							Collection<String> existing = filler.list();
+							spares.addAll(existing);
+							listed = true;
+							if(!existing.isEmpty()) {
+								LOG.info("Warm pool for " + name + " adopted " + existing.size() + " existing spares");
+							}
+						}
+						while(!stopped && spares.size() < targetSize) {
+							spares.offerLast(filler.create().get());
+						}
+					} catch (InterruptedException e) {
+						// close() interrupts us to shut down
+						continue;
+					} catch (Exception e) {
+						LOG.warn("Could not " + (listed ? "make" : "list") + " spare datasets for " + name + ": " + (e.getCause() != null ? e.getCause() : e));
+						failed = true;
+					}
+					try {
+						if(failed) {
+							// Taking spares doesn't cut this short, the backend needs the break
+							Thread.sleep(FAILURE_BACKOFF_MS);
+						} else {
+							synchronized (WarmDatasetPool.this) {
+								if(!stopped && spares.size() >= targetSize) {
+									WarmDatasetPool.this.wait(IDLE_CHECK_MS);
+								}
+							}
+						}
+					} catch (InterruptedException e) {
+						// close() interrupts us to shut down
+					}
+				}
+			}
+		}, "warm-pool-" + name);
+		refillThread.setDaemon(true);
+		refillThread.start();
+	}
+
+	/**
+	 * Stops refilling, the spares stay where they are for the next start to adopt.
+	 */
+	@Override
+	public void close() {
+		stopped = true;
+		Thread thread;
+		synchronized (this) {
+			thread = refillThread;
+		}
+		if(thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				LOG.warn("Interrupted waiting for the warm dataset pool refill to stop");
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
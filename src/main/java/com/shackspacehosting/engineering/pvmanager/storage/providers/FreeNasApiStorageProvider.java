@@ -7,10 +7,13 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.base.Strings;
 import com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService;
+import com.shackspacehosting.engineering.pvmanager.storage.DatasetInventory;
 import com.shackspacehosting.engineering.pvmanager.storage.IStorageManagementProvider;
+import com.shackspacehosting.engineering.pvmanager.storage.StorageBackend;
 import com.shackspacehosting.engineering.pvmanager.storage.StorageProvider;
 import feign.Feign;
 import feign.Param;
+import feign.Request;
 import feign.RequestLine;
 import feign.auth.BasicAuthRequestInterceptor;
 import feign.jackson.JacksonDecoder;
@@ -28,10 +31,12 @@ import java.math.BigDecimal;
 import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.ANNOTATION_ATIME;
 import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.ANNOTATION_BASE;
@@ -58,6 +63,8 @@ import static io.kubernetes.client.custom.Quantity.Format.BINARY_SI;
 public class FreeNasApiStorageProvider implements IStorageManagementProvider, AutoCloseable {
 	private static final Logger LOG = LoggerFactory.getLogger(FreeNasApiStorageProvider.class);
 
+	final private static long FEIGN_CONNECT_TIMEOUT_MS = 10000;
+
 
 	// We're creating our own object mapper here because we have special parameters to it that we dont' want to share with others at this time
 	// @TODO we should figure out a better method to share object mappers since they are slow to create
@@ -90,6 +97,7 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 	final public static String CONFIG_ZFS_QUOTAMODE_DEFAULT = "QUOTA";
 
 	final private StorageProvider provider;
+	final private String backend;
 
 	private boolean becomeRoot;
 	private QuotaMode quotaMode;
@@ -115,6 +123,7 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 	private String freenasApiClientSecret;
 
 	private String zfsRootPath;
+	private DatasetInventory inventory = null;
 
 	public boolean isBecomeRoot() {
 		return becomeRoot;
@@ -246,6 +255,33 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 		public String comments;
 	}
 
+	/**
+	 * A dataset as the v2.0 api returns it, with only what the inventory reads, its children nested in it.
+	 */
+	public static class ZfsDatasetTree {
+		public String name;
+		public ZfsDatasetProperty used;
+		public ZfsDatasetProperty available;
+		public ZfsDatasetProperty quota;
+		public ZfsDatasetProperty origin;
+		public List<ZfsDatasetTree> children;
+	}
+
+	/**
+	 * The v2.0 api gives every property as an object with its value parsed and where it was set.
+	 */
+	public static class ZfsDatasetProperty {
+		public Object parsed;
+		public String source;
+
+		/**
+		 * @return the value, or null if it's only the default
+		 */
+		Object getValue() {
+			return "DEFAULT".equals(source) ? null : parsed;
+		}
+	}
+
 	public class NfsCreateShareProperties {
 		public Long id;
 		public String[] paths;
@@ -289,11 +325,23 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 
 		@RequestLine(value = "DELETE /api/v2.0/pool/dataset/id/{id}", decodeSlash = false )
 		void destroyDataset(@Param("id") String id);
+
+		// Comes back with its children, and theirs, nested in it
+		@RequestLine(value = "GET /api/v2.0/pool/dataset/id/{id}", decodeSlash = false )
+		ZfsDatasetTree getDatasetTree(@Param("id") String id);
 	}
 	FreeNASAPI apiEndpoint = null;
 
 	public FreeNasApiStorageProvider(StorageProvider provider, JsonNode cfgNode) throws IOException {
+		this(provider, StorageBackend.DEFAULT_NAME, cfgNode);
+	}
+
+	/**
+	 * @param backend the name of the backend this provider manages within the storage class
+	 */
+	public FreeNasApiStorageProvider(StorageProvider provider, String backend, JsonNode cfgNode) throws IOException {
 		this.provider=provider;
+		this.backend=backend;
 		boolean hasError = false;
 
 		JsonNode nfsCfgNode = cfgNode.get(CONFIG_NFS);
@@ -377,6 +425,13 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 			.encoder(new JacksonEncoder(feignObjectMapper))
 			.decoder(new JacksonDecoder(feignObjectMapper));
 
+		// Each API call is one command as far as the storage class timeouts are concerned
+		long commandTimeoutMs = TimeUnit.SECONDS.toMillis(provider.getCommandTimeoutSeconds());
+		if(commandTimeoutMs > 0) {
+			int readTimeoutMs = (int) Math.min(commandTimeoutMs, Integer.MAX_VALUE);
+			feignBuilder = feignBuilder.options(new Request.Options((int) Math.min(readTimeoutMs, FEIGN_CONNECT_TIMEOUT_MS), readTimeoutMs));
+		}
+
 
 
 
@@ -390,6 +445,52 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 
 				.logLevel(feign.Logger.Level.FULL);
 		apiEndpoint = feignBuilder.target(FreeNASAPI.class, freenasApiUrl);
+
+		if(provider.getInventoryRefreshSeconds() > 0) {
+			inventory = new DatasetInventory(provider.getStorageClass(), backend);
+			inventory.start(TimeUnit.SECONDS.toMillis(provider.getInventoryRefreshSeconds()), () -> {
+				loadInventory();
+				return null;
+			});
+		}
+	}
+
+	@Override
+	public DatasetInventory getInventory() {
+		return inventory;
+	}
+
+	/**
+	 * Loads the root dataset and the datasets directly below it with a single API call.  The api has no way to ask for
+	 * what changed, so every refresh is a full listing, which the inventory merges in as a diff against what it holds.
+	 */
+	private void loadInventory() {
+		long listedAt = System.currentTimeMillis();
+		ZfsDatasetTree root = apiEndpoint.getDatasetTree(zfsRootPath);
+		List<DatasetInventory.Dataset> listed = new ArrayList<>();
+		if(root.children != null) {
+			for(ZfsDatasetTree child : root.children) {
+				if(child == null || child.name == null) {
+					continue;
+				}
+				UUID uuid;
+				try {
+					uuid = UUID.fromString(child.name.substring(child.name.lastIndexOf('/') + 1));
+				} catch(IllegalArgumentException e) {
+					// Not one of ours
+					continue;
+				}
+				Object origin = child.origin == null ? null : child.origin.getValue();
+				listed.add(new DatasetInventory.Dataset(uuid, child.name, longOrUnknown(child.used), longOrUnknown(child.available),
+						longOrUnknown(child.quota), origin instanceof String && !((String) origin).isEmpty() ? (String) origin : null, null));
+			}
+		}
+		inventory.update(listed, listedAt, longOrUnknown(root.used), longOrUnknown(root.available));
+	}
+
+	private static long longOrUnknown(ZfsDatasetProperty property) {
+		Object value = property == null ? null : property.getValue();
+		return value instanceof Number ? ((Number) value).longValue() : -1;
 	}
 
 	Long parseZfsLongProperty(Map<String, Object> lookupMap, String propertyName) {
@@ -620,20 +721,28 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 				return null;
 			}
 			String nfsHost = parts[0];
-			String zfsFilesystem = parts[1];
 
 			if(!nfsHost.equals(getNfsHostname())) {
 				LOG.error("Management host for clone source is different than this provider: " + getNfsHostname() + " != " + nfsHost);
 				return null;
 			}
 
-			if(!zfsFilesystem.startsWith(getZfsRootPath()) && ((zfsFilesystem.length() - 36) == getZfsRootPath().length())) {
-				LOG.error("Management host for clone source is different than this provider: " + getZfsRootPath() + " != " + zfsFilesystem);
+			// The reference comes from another volume's annotations, so only a volume directly under our root will do,
+			// rebuilt from its uuid so nothing from the annotation itself reaches the api
+			String zfsFilesystem;
+			try {
+				UUID sourceUuid = UUID.fromString(parts[1].substring(parts[1].lastIndexOf('/') + 1));
+				zfsFilesystem = Paths.get(getZfsRootPath(), sourceUuid.toString()).toString();
+				if(!zfsFilesystem.equals(parts[1])) {
+					throw new IllegalArgumentException("not directly under " + getZfsRootPath());
+				}
+			} catch(IllegalArgumentException e) {
+				LOG.error("Clone source is not a volume of this provider: " + parts[1] + ": " + e.getMessage());
 				return null;
 			}
 
 			String zfsSnapshotName = "pvmanager-" + annotations.get(ANNOTATION_PVMANAGER_PVREF) + "-" + OffsetDateTime.now().format(snapshotTimestampFormatter);
-			String zfsFullSnapshotPath = zfsFilesystem + zfsSnapshotName;
+			String zfsFullSnapshotPath = zfsFilesystem + "@" + zfsSnapshotName;
 			annotations.put(ANNOTATION_CLONESNAPSHOT, zfsFullSnapshotPath);
 
 
@@ -864,6 +973,11 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 
 		}
 
+		if(inventory != null) {
+			inventory.put(new DatasetInventory.Dataset(UUID.fromString(volumeUuid), zfsVolumePath, -1, -1,
+					datasetProperties.quota == null ? -1 : datasetProperties.quota, datasetProperties.origin, annotations.get(ANNOTATION_PVMANAGER_PVREF)));
+		}
+
 		NfsCreateShareProperties shareProperties = shareDataset(datasetProperties);
 
 		// Write the id from freenas back into the PVC so it can be referenced later
@@ -928,6 +1042,9 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 		}
 
 		apiEndpoint.destroyDataset(datasetId);
+		if(inventory != null) {
+			inventory.remove(UUID.fromString(uuid));
+		}
 
 		// @TODO Handle snapshot deletion
 		String sourceSnapshot = annotations.get(ANNOTATION_CLONESNAPSHOT);
@@ -955,5 +1072,8 @@ public class FreeNasApiStorageProvider implements IStorageManagementProvider, Au
 
 	@Override
 	public void close() throws Exception {
+		if(inventory != null) {
+			inventory.close();
+		}
 	}
 }
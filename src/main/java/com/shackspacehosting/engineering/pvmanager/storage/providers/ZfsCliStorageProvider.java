@@ -2,9 +2,16 @@ package com.shackspacehosting.engineering.pvmanager.storage.providers;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Strings;
+import com.jcraft.jsch.JSchException;
+import com.shackspacehosting.engineering.pvmanager.SSHCommandTimeoutException;
 import com.shackspacehosting.engineering.pvmanager.SSHExecWrapper;
+import com.shackspacehosting.engineering.pvmanager.storage.DatasetInventory;
+import com.shackspacehosting.engineering.pvmanager.storage.DeferredDestroyReaper;
+import com.shackspacehosting.engineering.pvmanager.storage.IAsyncStorageManagementProvider;
 import com.shackspacehosting.engineering.pvmanager.storage.IStorageManagementProvider;
+import com.shackspacehosting.engineering.pvmanager.storage.StorageBackend;
 import com.shackspacehosting.engineering.pvmanager.storage.StorageProvider;
+import com.shackspacehosting.engineering.pvmanager.storage.WarmDatasetPool;
 import io.kubernetes.client.custom.Quantity;
 import io.kubernetes.client.models.V1NFSVolumeSource;
 import io.kubernetes.client.models.V1PersistentVolumeSpec;
@@ -16,16 +23,21 @@ import java.math.BigDecimal;
 import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.*;
 import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.PvVolumeBlockmode.Block;
 import static com.shackspacehosting.engineering.pvmanager.kubernetes.PVClaimManagerService.PvVolumeBlockmode.Filesystem;
 import static io.kubernetes.client.custom.Quantity.Format.BINARY_SI;
 
-public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCloseable {
+public class ZfsCliStorageProvider implements IStorageManagementProvider, IAsyncStorageManagementProvider, AutoCloseable {
 	private static final Logger LOG = LoggerFactory.getLogger(ZfsCliStorageProvider.class);
 
 	final public static String ANNOTATION_VOLUME_HOST = ANNOTATION_BASE + "nfs-host";
@@ -47,19 +59,68 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 	final public static String CONFIG_SSH_PRIVATEKEY = "privateKey";
 	final public static String CONFIG_SSH_TOKEN = "token";
 	final public static String CONFIG_SSH_BECOMEROOT = "becomeRoot";
+	final public static String CONFIG_SSH_SESSIONS = "sessions";
+	final public static String CONFIG_SSH_CHANNELSPERSESSION = "channelsPerSession";
+	final public static String CONFIG_SSH_AGENTMODE = "agentMode";
+	final public static String CONFIG_SSH_AGENTS = "agents";
+	final public static int CONFIG_SSH_AGENTS_DEFAULT = 2;
 	final public static String CONFIG_ZFS = "zfs";
 	final public static String CONFIG_ZFS_ROOTPATH = "rootPath";
 	final public static String CONFIG_ZFS_UNIXMODE = "unixMode";
 	final public static String CONFIG_ZFS_QUOTAMODE = "quotaMode";
 	final public static String CONFIG_ZFS_QUOTAMODE_DEFAULT = "QUOTA";
+	final public static String CONFIG_ZFS_COMPOUNDSCRIPTS = "compoundScripts";
+	final public static String CONFIG_ZFS_BATCHWINDOWMS = "batchWindowMs";
+	final public static String CONFIG_ZFS_BATCHMAXSIZE = "batchMaxSize";
+	final public static int CONFIG_ZFS_BATCHMAXSIZE_DEFAULT = 32;
+	final public static String CONFIG_ZFS_CHANNELPROGRAMS = "channelPrograms";
+	final public static String CONFIG_ZFS_DEFERREDDESTROY = "deferredDestroy";
+	final public static String CONFIG_ZFS_REAPBATCHSIZE = "reapBatchSize";
+	final public static int CONFIG_ZFS_REAPBATCHSIZE_DEFAULT = 10;
+	final public static String CONFIG_ZFS_REAPINTERVALSECONDS = "reapIntervalSeconds";
+	final public static long CONFIG_ZFS_REAPINTERVALSECONDS_DEFAULT = 60;
+
+	// Where the warm pool keeps its spares, below the root but never mistaken for a volume since it isn't a uuid
+	final public static String SPARES_DATASET = ".spares";
+	// Where removed volumes wait for the reaper when destroys are deferred
+	final public static String TRASH_DATASET = ".trash";
+	// Set on a trash entry whose origin snapshot was made for it, and goes once it does
+	final public static String PROPERTY_DESTROY_ORIGIN = "pvmanager:destroy-origin";
+
+	// What zfs says when asked to destroy or rename a dataset that isn't there, which for a remove is as good as done
+	final private static String DATASET_MISSING = "dataset does not exist";
+
+	// A claim with any of these needs properties a spare doesn't have, so it always gets a fresh dataset
+	final private static String[] SPARE_INCOMPATIBLE_ANNOTATIONS = {
+			ANNOTATION_CLONEREF, ANNOTATION_BLOCKSIZE, ANNOTATION_CHECKSUM_MODE, ANNOTATION_COMPRESSION_MODE,
+			ANNOTATION_LOGBIAS, ANNOTATION_SYNC, ANNOTATION_CASESENSITIVE, ANNOTATION_ATIME, ANNOTATION_EXEC,
+			ANNOTATION_SETUID, ANNOTATION_SNAPDIR
+	};
 
 	final private StorageProvider provider;
+	final private String backend;
 
 	private SSHExecWrapper sshWrapper;
 
 	private boolean becomeRoot;
 	private QuotaMode quotaMode;
 	private Long unixMode = null;
+	private boolean compoundScripts = false;
+	private long batchWindowMs = 0;
+	private int batchMaxSize = CONFIG_ZFS_BATCHMAXSIZE_DEFAULT;
+	private ZfsScriptBatcher batcher = null;
+	private DatasetInventory inventory = null;
+	private boolean channelPrograms = false;
+	// Whether the host runs channel programs, null until we've asked it
+	private volatile Boolean channelProgramsSupported = null;
+	private boolean deferredDestroy = false;
+	private int reapBatchSize = CONFIG_ZFS_REAPBATCHSIZE_DEFAULT;
+	private long reapIntervalSeconds = CONFIG_ZFS_REAPINTERVALSECONDS_DEFAULT;
+	private DeferredDestroyReaper reaper = null;
+	private volatile CompletableFuture<Void> trashReady = null;
+	// Origin snapshots of the trash entries found by the last listing, only the reaper thread touches it
+	final private Map<String, String> trashOrigins = new HashMap<>();
+	private WarmDatasetPool warmPool = null;
 
 	public enum QuotaMode {
 		IGNORE,
@@ -77,6 +138,10 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 	private String sshUsername;
 	private String sshPrivateKey;
 	private String sshToken;
+	private int sshSessions = SSHExecWrapper.SESSIONS_DEFAULT;
+	private int sshChannelsPerSession = SSHExecWrapper.CHANNELS_PER_SESSION_DEFAULT;
+	private boolean sshAgentMode = false;
+	private int sshAgents = CONFIG_SSH_AGENTS_DEFAULT;
 
 	private String zfsRootPath;
 
@@ -144,6 +209,94 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 		this.sshToken = sshToken;
 	}
 
+	public int getSshSessions() {
+		return sshSessions;
+	}
+
+	public void setSshSessions(int sshSessions) {
+		this.sshSessions = sshSessions;
+	}
+
+	public int getSshChannelsPerSession() {
+		return sshChannelsPerSession;
+	}
+
+	public void setSshChannelsPerSession(int sshChannelsPerSession) {
+		this.sshChannelsPerSession = sshChannelsPerSession;
+	}
+
+	public boolean isSshAgentMode() {
+		return sshAgentMode;
+	}
+
+	public void setSshAgentMode(boolean sshAgentMode) {
+		this.sshAgentMode = sshAgentMode;
+	}
+
+	public int getSshAgents() {
+		return sshAgents;
+	}
+
+	public void setSshAgents(int sshAgents) {
+		this.sshAgents = sshAgents;
+	}
+
+	public boolean isCompoundScripts() {
+		return compoundScripts;
+	}
+
+	public void setCompoundScripts(boolean compoundScripts) {
+		this.compoundScripts = compoundScripts;
+	}
+
+	public long getBatchWindowMs() {
+		return batchWindowMs;
+	}
+
+	public void setBatchWindowMs(long batchWindowMs) {
+		this.batchWindowMs = batchWindowMs;
+	}
+
+	public int getBatchMaxSize() {
+		return batchMaxSize;
+	}
+
+	public void setBatchMaxSize(int batchMaxSize) {
+		this.batchMaxSize = batchMaxSize;
+	}
+
+	public boolean isChannelPrograms() {
+		return channelPrograms;
+	}
+
+	public void setChannelPrograms(boolean channelPrograms) {
+		this.channelPrograms = channelPrograms;
+	}
+
+	public boolean isDeferredDestroy() {
+		return deferredDestroy;
+	}
+
+	public void setDeferredDestroy(boolean deferredDestroy) {
+		this.deferredDestroy = deferredDestroy;
+	}
+
+	public int getReapBatchSize() {
+		return reapBatchSize;
+	}
+
+	public void setReapBatchSize(int reapBatchSize) {
+		this.reapBatchSize = reapBatchSize;
+	}
+
+	public long getReapIntervalSeconds() {
+		return reapIntervalSeconds;
+	}
+
+	public void setReapIntervalSeconds(long reapIntervalSeconds) {
+		this.reapIntervalSeconds = reapIntervalSeconds;
+	}
+
 	public String getZfsRootPath() {
 		return zfsRootPath;
 	}
@@ -153,7 +306,15 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 	}
 
 	public ZfsCliStorageProvider(StorageProvider provider, JsonNode cfgNode) throws IOException {
+		this(provider, StorageBackend.DEFAULT_NAME, cfgNode);
+	}
+
+	/**
+	 * @param backend the name of the backend this provider manages within the storage class
+	 */
+	public ZfsCliStorageProvider(StorageProvider provider, String backend, JsonNode cfgNode) throws IOException {
 		this.provider=provider;
+		this.backend=backend;
 		boolean hasError = false;
 
 		JsonNode nfsCfgNode = cfgNode.get(CONFIG_NFS);
@@ -214,8 +375,23 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 				this.becomeRoot = false;
 				LOG.warn("No SSH become root configured, assuming false.");
 			}
+
+			// Storage classes on the same host share one pool, whichever opens it first decides its size
+			if(sshCfgNode.has(CONFIG_SSH_SESSIONS)) {
+				this.sshSessions = sshCfgNode.get(CONFIG_SSH_SESSIONS).asInt(SSHExecWrapper.SESSIONS_DEFAULT);
+			}
+			if(sshCfgNode.has(CONFIG_SSH_CHANNELSPERSESSION)) {
+				this.sshChannelsPerSession = sshCfgNode.get(CONFIG_SSH_CHANNELSPERSESSION).asInt(SSHExecWrapper.CHANNELS_PER_SESSION_DEFAULT);
 			}
 
+			if(sshCfgNode.has(CONFIG_SSH_AGENTMODE)) {
+				this.sshAgentMode = sshCfgNode.get(CONFIG_SSH_AGENTMODE).asBoolean(false);
+			}
+			if(sshCfgNode.has(CONFIG_SSH_AGENTS)) {
+				this.sshAgents = sshCfgNode.get(CONFIG_SSH_AGENTS).asInt(CONFIG_SSH_AGENTS_DEFAULT);
+			}
+		}
+
 		JsonNode zfsCfgNode = cfgNode.get(CONFIG_ZFS);
 		if(zfsCfgNode != null) {
 			if(zfsCfgNode.has(CONFIG_ZFS_ROOTPATH)) {
@@ -237,6 +413,37 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 			} else {
 				LOG.warn("No ZFS unix mode configured.");
 			}
+
+			// Run each create, clone or destroy as one script instead of one command per step
+			if(zfsCfgNode.has(CONFIG_ZFS_COMPOUNDSCRIPTS)) {
+				this.compoundScripts = zfsCfgNode.get(CONFIG_ZFS_COMPOUNDSCRIPTS).asBoolean(false);
+			}
+
+			if(zfsCfgNode.has(CONFIG_ZFS_BATCHWINDOWMS)) {
+				this.batchWindowMs = zfsCfgNode.get(CONFIG_ZFS_BATCHWINDOWMS).asLong(0);
+			}
+			if(zfsCfgNode.has(CONFIG_ZFS_BATCHMAXSIZE)) {
+				this.batchMaxSize = zfsCfgNode.get(CONFIG_ZFS_BATCHMAXSIZE).asInt(CONFIG_ZFS_BATCHMAXSIZE_DEFAULT);
+			}
+			// Snapshot clone sources with a channel program, where the host supports them
+			if(zfsCfgNode.has(CONFIG_ZFS_CHANNELPROGRAMS)) {
+				this.channelPrograms = zfsCfgNode.get(CONFIG_ZFS_CHANNELPROGRAMS).asBoolean(false);
+			}
+			// Move removed volumes into the trash and destroy them in the background
+			if(zfsCfgNode.has(CONFIG_ZFS_DEFERREDDESTROY)) {
+				this.deferredDestroy = zfsCfgNode.get(CONFIG_ZFS_DEFERREDDESTROY).asBoolean(false);
+			}
+			if(zfsCfgNode.has(CONFIG_ZFS_REAPBATCHSIZE)) {
+				this.reapBatchSize = zfsCfgNode.get(CONFIG_ZFS_REAPBATCHSIZE).asInt(CONFIG_ZFS_REAPBATCHSIZE_DEFAULT);
+			}
+			if(zfsCfgNode.has(CONFIG_ZFS_REAPINTERVALSECONDS)) {
+				this.reapIntervalSeconds = zfsCfgNode.get(CONFIG_ZFS_REAPINTERVALSECONDS).asLong(CONFIG_ZFS_REAPINTERVALSECONDS_DEFAULT);
+			}
+			if(this.batchWindowMs > 0 && !this.compoundScripts) {
+				// Batches are made of compound scripts
+				LOG.info("ZFS " + CONFIG_ZFS_BATCHWINDOWMS + " is set, enabling " + CONFIG_ZFS_COMPOUNDSCRIPTS);
+				this.compoundScripts = true;
+			}
 		}
 
 		if(hasError) {
@@ -246,13 +453,410 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 	}
 
 	public void init() {
-		sshWrapper = new SSHExecWrapper(sshHostname, sshPort, sshUsername, sshPrivateKey, sshToken);
+		sshWrapper = new SSHExecWrapper(sshHostname, sshPort, sshUsername, sshPrivateKey, sshToken, sshSessions, sshChannelsPerSession);
+		sshWrapper.setCommandTimeoutMs(TimeUnit.SECONDS.toMillis(provider.getCommandTimeoutSeconds()));
+		if(sshAgentMode) {
+			// The agent shells run as root themselves, so the commands sent to them don't each pay for sudo
+			sshWrapper.setAgentMode(sshAgents, becomeRoot ? "sudo " : "");
+		}
+		sshWrapper.connect();
+		if(batchWindowMs > 0) {
+			batcher = new ZfsScriptBatcher(zfsRootPath, batchWindowMs, batchMaxSize, sudo(), sshWrapper::execAsync);
+		}
+		if(provider.getInventoryRefreshSeconds() > 0) {
+			inventory = new DatasetInventory(provider.getStorageClass(), backend);
+			inventory.start(TimeUnit.SECONDS.toMillis(provider.getInventoryRefreshSeconds()), () -> {
+				loadInventory();
+				return null;
+			});
+		}
+		if(provider.getWarmPoolSize() > 0) {
+			warmPool = new WarmDatasetPool(provider.getStorageClass(), backend, provider.getWarmPoolSize(), new WarmDatasetPool.Filler() {
+				@Override
+				public List<String> list() throws Exception {
+					return listSpares();
+				}
+
+				@Override
+				public CompletableFuture<String> create() {
+					return createSpare();
+				}
+			});
+			warmPool.start();
+		}
+		if(deferredDestroy) {
+			reaper = new DeferredDestroyReaper(provider.getStorageClass(), backend, reapBatchSize, TimeUnit.SECONDS.toMillis(reapIntervalSeconds), new DeferredDestroyReaper.Trash() {
+				@Override
+				public List<String> list() throws Exception {
+					return listTrash();
+				}
+
+				@Override
+				public boolean destroy(String entry) throws Exception {
+					return destroyTrash(entry);
+				}
+			});
+			reaper.start();
+		}
+	}
+
+	public DeferredDestroyReaper getReaper() {
+		return reaper;
+	}
+
+	private String getTrashPath() {
+		return Paths.get(zfsRootPath, TRASH_DATASET).toString();
+	}
+
+	/**
+	 * Makes the trash dataset the first time it's needed.  Nothing in it is shared, whatever the root's sharing is.
+	 */
+	private CompletableFuture<Void> ensureTrash(long deadline) {
+		CompletableFuture<Void> ready = trashReady;
+		if(ready == null) {
+			ready = exec(sudo() + "zfs create -p -o sharenfs=off " + getTrashPath(), deadline).thenAccept(result -> {
+				if(result.getExitStatus() != 0) {
+					trashReady = null;
+					throw new CompletionException(new IOException("zfs create trash dataset failed: exit status: " + result.getExitStatus() + ": " + result.getOutput()));
+				}
+			});
+			trashReady = ready;
+		}
+		return ready;
+	}
+
+	private List<String> listTrash() throws Exception {
+		IAsyncStorageManagementProvider.await(ensureTrash(Long.MAX_VALUE));
+		String trashPath = getTrashPath();
+		List<String> entries = new ArrayList<>();
+		trashOrigins.clear();
+		StringBuilder errorBuffer = new StringBuilder();
+		int exitStatus = sshWrapper.execLines((becomeRoot ? "sudo " : "") + "zfs list -H -o name,origin," + PROPERTY_DESTROY_ORIGIN +
+				" -d 1 -t filesystem " + trashPath, line -> {
+			String[] fields = line.split("\t");
+			if(fields.length != 3 || fields[0].equals(trashPath)) {
+				return;
+			}
+			entries.add(fields[0]);
+			String origin = parseZfsString(fields[1]);
+			if("on".equals(fields[2]) && origin != null) {
+				trashOrigins.put(fields[0], origin);
+			}
+		}, errorBuffer, sshWrapper.getCommandTimeoutMs());
+		if(exitStatus != 0) {
+			throw new IOException("zfs list trash failed: exit status: " + exitStatus + ": " + errorBuffer);
+		}
+		return entries;
+	}
+
+	/**
+	 * Destroys a trash entry, and the snapshot it was cloned from if that was made for it.
+	 */
+	private boolean destroyTrash(String entry) throws Exception {
+		ZfsCompoundScript script = new ZfsCompoundScript()
+				.step("destroy", "zfs destroy " + entry, null);
+		String origin = trashOrigins.get(entry);
+		if(origin != null) {
+			if(!origin.startsWith(getZfsRootPath()) || !origin.contains("@")) {
+				LOG.error("Could not destroy snapshot, snapshot does not start with zfsRootPath: " + getZfsRootPath() + " != " + origin);
+			} else {
+				script.step("destroy-snapshot", "zfs destroy " + origin, null);
+			}
+		}
+
+		ZfsCompoundScript.Result result = IAsyncStorageManagementProvider.await(runScript(script, provider.getOperationDeadline()));
+		ZfsCompoundScript.StepResult failedStep = result.getFailedStep();
+		if(failedStep != null) {
+			if("destroy".equals(failedStep.getName())) {
+				LOG.warn("zfs destroy trash entry failed: exit status: " + failedStep.getExitStatus() + ": " + entry + ": " + failedStep.getOutput().trim());
+				return false;
+			}
+			LOG.error("zfs destroy snapshot failed: exit status: " + failedStep.getExitStatus() + ": snapshot orphan: " + origin);
+			LOG.error(failedStep.getOutput());
+		} else if(!result.isSuccess()) {
+			LOG.warn("zfs destroy trash script failed before running any steps: exit status: " + result.getExitStatus() + ": " + entry);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Renames a volume into the trash for the reaper, marking it if its origin snapshot should go with it.
+	 */
+	private CompletableFuture<Void> removePersistentVolumeDeferred(Map<String, String> annotations, UUID u, long deadline) {
+		String zfsVolumePath = Paths.get(zfsRootPath, u.toString()).toString();
+		String trashEntryPath = Paths.get(getTrashPath(), u.toString()).toString();
+		ZfsCompoundScript script = new ZfsCompoundScript()
+				.step("trash", "zfs rename " + zfsVolumePath + " " + trashEntryPath, "zfs rename " + trashEntryPath + " " + zfsVolumePath);
+
+		String sourceSnapshot = annotations.get(ANNOTATION_CLONESNAPSHOT);
+		if(sourceSnapshot != null && !sourceSnapshot.isEmpty()) {
+			if(!sourceSnapshot.startsWith(getZfsRootPath()) || !sourceSnapshot.contains("@")) {
+				LOG.error("Could not destroy snapshot, snapshot does not start with zfsRootPath: " + getZfsRootPath() + " != " + sourceSnapshot);
+			} else {
+				// The reaper uses the origin the clone has then, the snapshot moves if its own volume is trashed first
+				script.step("mark", "zfs set " + PROPERTY_DESTROY_ORIGIN + "=on " + trashEntryPath, null);
+			}
+		}
+
+		return ensureTrash(deadline).thenCompose(ready -> runScript(script, deadline)).thenAccept(result -> {
+			ZfsCompoundScript.StepResult failedStep = result.getFailedStep();
+			boolean missing = failedStep != null && "trash".equals(failedStep.getName()) && failedStep.getOutput().contains(DATASET_MISSING);
+			if(result.isSuccess() || missing) {
+				if(missing) {
+					LOG.info("zfs volume is already gone, nothing to trash: " + zfsVolumePath);
+				}
+				if(inventory != null) {
+					inventory.remove(u);
+				}
+				return;
+			}
+			if(failedStep != null) {
+				LOG.error("zfs trash volume failed at " + failedStep.getName() + " step: exit status: " + failedStep.getExitStatus() + ": filesytem orphan: " + zfsVolumePath);
+				LOG.error(failedStep.getOutput());
+			} else {
+				LOG.error("zfs trash script failed before running any steps: exit status: " + result.getExitStatus() + ": filesytem orphan: " + zfsVolumePath);
+				LOG.error(result.getOutput());
+			}
+		});
+	}
+
+	@Override
+	public DatasetInventory getInventory() {
+		return inventory;
+	}
+
+	public WarmDatasetPool getWarmPool() {
+		return warmPool;
+	}
+
+	private String getSparesPath() {
+		return Paths.get(zfsRootPath, SPARES_DATASET).toString();
+	}
+
+	/**
+	 * Makes sure the spares dataset is there and lists the spares already in it.
+	 */
+	private List<String> listSpares() throws Exception {
+		String sparesPath = getSparesPath();
+		SSHExecWrapper.Result result = IAsyncStorageManagementProvider.await(exec(sudo() + "zfs create -p " + sparesPath, Long.MAX_VALUE));
+		if(result.getExitStatus() != 0) {
+			throw new IOException("zfs create spares dataset failed: exit status: " + result.getExitStatus() + ": " + result.getOutput());
+		}
+
+		List<String> spares = new ArrayList<>();
+		StringBuilder errorBuffer = new StringBuilder();
+		int exitStatus = sshWrapper.execLines((becomeRoot ? "sudo " : "") + "zfs list -H -o name -d 1 -t filesystem " + sparesPath, line -> {
+			try {
+				UUID.fromString(line.substring(line.lastIndexOf('/') + 1));
+				spares.add(line);
+			} catch(IllegalArgumentException e) {
+				// The spares dataset itself
+			}
+		}, errorBuffer, sshWrapper.getCommandTimeoutMs());
+		if(exitStatus != 0) {
+			throw new IOException("zfs list spares failed: exit status: " + exitStatus + ": " + errorBuffer);
+		}
+		return spares;
+	}
+
+	/**
+	 * Makes a spare with the properties every volume gets, exported below the spares directory and with its mode set.
+	 */
+	private CompletableFuture<String> createSpare() {
+		String spareUuid = UUID.randomUUID().toString();
+		String sparePath = Paths.get(getSparesPath(), spareUuid).toString();
+		ZfsCompoundScript script = new ZfsCompoundScript()
+				.step("create", "zfs create " + sparePath, "zfs destroy " + sparePath);
+		if(unixMode != null) {
+			script.step("chmod", String.format("chmod %04d %s", unixMode, Paths.get(nfsRootPath, SPARES_DATASET, spareUuid)), null);
+		}
+		return runScript(script, provider.getOperationDeadline()).thenApply(result -> {
+			if(!reportCompoundScript(result, "spare")) {
+				throw new CompletionException(new IOException("zfs spare dataset could not be made: " + sparePath));
+			}
+			return sparePath;
+		});
+	}
+
+	/**
+	 * @return true if a claim only needs what a spare already has
+	 */
+	private static boolean usesDefaultProperties(Map<String, String> annotations) {
+		for(String annotation : SPARE_INCOMPATIBLE_ANNOTATIONS) {
+			if(annotations.get(annotation) != null) {
+				return false;
+			}
+		}
+		String volumeModeString = annotations.get(ANNOTATION_STORAGE_VOLUMEMODE);
+		if(!Strings.isNullOrEmpty(volumeModeString) && !Filesystem.name().equals(volumeModeString)) {
+			return false;
+		}
+		String mountProtocolString = annotations.get(ANNOTATION_STORAGE_MOUNTPROTOCOL);
+		return mountProtocolString == null || "nfs".equalsIgnoreCase(mountProtocolString);
+	}
+
+	/**
+	 * Renames a spare into place as the claim's volume and gives it the claim's quota and reference, in one script.
+	 *
+	 * @return a future that completes with null if the spare couldn't be used
+	 */
+	private CompletableFuture<V1PersistentVolumeSpec> createFromSpare(String sparePath, Map<String, String> annotations, long sizeInBytes) {
+		String volumeUuid = UUID.fromString(annotations.get(ANNOTATION_VOLUME_UUID)).toString();
+		String zfsVolumePath = Paths.get(zfsRootPath, volumeUuid).toString();
+		String exportPath = Paths.get(nfsRootPath, volumeUuid).toString();
+		String pvRef = annotations.get(ANNOTATION_PVMANAGER_PVREF);
+
+		ZfsCompoundScript script = new ZfsCompoundScript()
+				.step("rename", "zfs rename " + sparePath + " " + zfsVolumePath, "zfs rename " + zfsVolumePath + " " + sparePath);
+		String properties = "";
+		if(quotaMode == QuotaMode.QUOTA || quotaMode == QuotaMode.BOTH) {
+			properties += " quota=" + sizeInBytes;
+		}
+		if(quotaMode == QuotaMode.RESERVE || quotaMode == QuotaMode.BOTH) {
+			properties += " reservation=" + sizeInBytes;
+		}
+		script.step("set", "zfs set" + properties + " " + ANNOTATION_PVMANAGER_PVREF + "=" + pvRef + " " + zfsVolumePath, null);
+
+		return runScript(script, provider.getOperationDeadline()).thenApply(result -> {
+			if(!reportCompoundScript(result, "spare")) {
+				for(ZfsCompoundScript.StepResult rollback : result.getRollbacks()) {
+					if("rename".equals(rollback.getName()) && rollback.getExitStatus() == 0) {
+						warmPool.offer(sparePath);
+					}
+				}
+				return null;
+			}
+			if(annotations.get(ANNOTATION_STORAGE_MOUNTPROTOCOL) == null) {
+				annotations.put(ANNOTATION_STORAGE_MOUNTPROTOCOL, "nfs");
+			}
+			annotations.put(ANNOTATION_VOLUME_HOST, nfsHostname);
+			annotations.put(ANNOTATION_VOLUME_PATH, zfsVolumePath);
+			annotations.put(ANNOTATION_VOLUME_EXPORT, exportPath);
+			annotations.put(ANNOTATION_PROVIDER_TYPE, ANNOTATION_PROVIDER_TYPE_NAME);
+			LOG.debug("zfs volume made from spare " + sparePath + ": " + zfsVolumePath);
+			return created(volumeUuid, zfsVolumePath, null, pvRef, sizeInBytes, exportPath);
+		});
+	}
+
+	/**
+	 * Lists the root and every dataset directly below it in one command, streaming the lines so a large pool doesn't
+	 * have to fit in one buffer.
+	 */
+	private void loadInventory() throws JSchException, IOException {
+		// The agents only run single commands with buffered output, listings always get their own channel
+		String command = (becomeRoot ? "sudo " : "") + "zfs list -H -p -r -d 1 -t filesystem -o name,used,avail,quota,origin," +
+				ANNOTATION_PVMANAGER_PVREF + " " + zfsRootPath;
+		long listedAt = System.currentTimeMillis();
+		List<DatasetInventory.Dataset> listed = new ArrayList<>();
+		long[] root = { -1, -1 };
+		StringBuilder errorBuffer = new StringBuilder();
+		int exitStatus = sshWrapper.execLines(command, line -> {
+			String[] fields = line.split("\t");
+			if(fields.length != 6) {
+				return;
+			}
+			if(fields[0].equals(zfsRootPath)) {
+				root[0] = parseZfsLong(fields[1]);
+				root[1] = parseZfsLong(fields[2]);
+				return;
+			}
+			UUID uuid;
+			try {
+				uuid = UUID.fromString(fields[0].substring(fields[0].lastIndexOf('/') + 1));
+			} catch(IllegalArgumentException e) {
+				// Not one of ours
+				return;
+			}
+			listed.add(new DatasetInventory.Dataset(uuid, fields[0], parseZfsLong(fields[1]), parseZfsLong(fields[2]),
+					parseZfsLong(fields[3]), parseZfsString(fields[4]), parseZfsString(fields[5])));
+		}, errorBuffer, sshWrapper.getCommandTimeoutMs());
+		if(exitStatus != 0) {
+			throw new IOException("zfs list failed: exit status: " + exitStatus + ": " + errorBuffer);
+		}
+		inventory.update(listed, listedAt, root[0], root[1]);
+	}
+
+	private static long parseZfsLong(String value) {
+		try {
+			return "-".equals(value) ? -1 : Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static String parseZfsString(String value) {
+		return "-".equals(value) || value.isEmpty() ? null : value;
+	}
+
+	/**
+	 * Records a volume we just made in the inventory and builds its spec.
+	 */
+	private V1PersistentVolumeSpec created(String volumeUuid, String zfsVolumePath, String origin, String pvRef, long sizeInBytes, String exportPath) {
+		if(inventory != null) {
+			long quota = quotaMode == QuotaMode.QUOTA || quotaMode == QuotaMode.BOTH ? sizeInBytes : -1;
+			inventory.put(new DatasetInventory.Dataset(UUID.fromString(volumeUuid), zfsVolumePath, -1, -1, quota, origin, pvRef));
+		}
+		return buildPersistentVolumeSpec(sizeInBytes, exportPath);
+	}
+
+	private String sudo() {
+		return becomeRoot && !sshAgentMode ? "sudo " : "";
+	}
+
+	/**
+	 * Runs one command of an operation that has to be finished by deadline, giving it whatever is left of the
+	 * operation if that's less than the command timeout.
+	 */
+	private CompletableFuture<SSHExecWrapper.Result> exec(String command, long deadline) {
+		long timeout = sshWrapper.getCommandTimeoutMs();
+		if(deadline != Long.MAX_VALUE) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				return failed(new SSHCommandTimeoutException("Operation timed out before it could run: " + command, command, 0, null));
+			}
+			timeout = timeout > 0 ? Math.min(timeout, remaining) : remaining;
+		}
+		return sshWrapper.execAsync(command, timeout);
 	}
 
-	final private static DateTimeFormatter snapshotTimestampFormatter = DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSS");
 	public V1PersistentVolumeSpec createPersistentVolume(Map<String, String> annotations, long sizeInBytes) throws Exception {
-		String command;
-		int cmdReturnValue = 0;
+		return IAsyncStorageManagementProvider.await(createPersistentVolumeAsync(annotations, sizeInBytes));
+	}
+
+	@Override
+	public CompletableFuture<V1PersistentVolumeSpec> createPersistentVolumeAsync(Map<String, String> annotations, long sizeInBytes) {
+		if(warmPool != null && usesDefaultProperties(annotations)) {
+			String sparePath = warmPool.take();
+			if(sparePath != null) {
+				// If the spare couldn't be used make the volume the slow way instead
+				return createFromSpare(sparePath, annotations, sizeInBytes).thenCompose(spec ->
+						spec != null ? CompletableFuture.completedFuture(spec) : createFresh(annotations, sizeInBytes));
+			}
+		}
+		return createFresh(annotations, sizeInBytes);
+	}
+
+	private CompletableFuture<V1PersistentVolumeSpec> createFresh(Map<String, String> annotations, long sizeInBytes) {
+		try {
+			return startCreatePersistentVolume(annotations, sizeInBytes);
+		} catch(Exception e) {
+			return failed(e);
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(e);
+		return future;
+	}
+
+	final private static DateTimeFormatter snapshotTimestampFormatter = DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSS");
+	/**
+	 * Works out what to run from the annotations and starts running it, the returned future completes once it's done.
+	 */
+	private CompletableFuture<V1PersistentVolumeSpec> startCreatePersistentVolume(Map<String, String> annotations, long sizeInBytes) {
+		final long deadline = provider.getOperationDeadline();
 
 		PvVolumeBlockmode volumeMode = PvVolumeBlockmode.Filesystem;
 		String volumeModeString = annotations.get(ANNOTATION_STORAGE_VOLUMEMODE);
@@ -453,67 +1057,230 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 		extraArgs = extraArgs + " -o " + ANNOTATION_PVMANAGER_PVREF + "=" +
 				annotations.get(ANNOTATION_PVMANAGER_PVREF);
 
-		StringBuilder outputBuffer;
 		String zfsCloneRef = annotations.get(ANNOTATION_CLONEREF);
+		String pvRef = annotations.get(ANNOTATION_PVMANAGER_PVREF);
 		if(zfsCloneRef != null) {
 
 			String[] parts = zfsCloneRef.split(":");
 			if(parts.length != 2) {
 				LOG.error("Could not parse clone reference, expected 2 parts got " + parts.length + ": " + zfsCloneRef);
-				return null;
+				return CompletableFuture.completedFuture(null);
 			}
 			String nfsHost = parts[0];
-			String zfsFilesystem = parts[1];
 
 			if(!nfsHost.equals(getNfsHostname())) {
 				LOG.error("Management host for clone source is different than this provider: " + getNfsHostname() + " != " + nfsHost);
-				return null;
+				return CompletableFuture.completedFuture(null);
 			}
 
-			if(!zfsFilesystem.startsWith(getZfsRootPath()) && ((zfsFilesystem.length() - 36) == getZfsRootPath().length())) {
-				LOG.error("Management host for clone source is different than this provider: " + getZfsRootPath() + " != " + zfsFilesystem);
-				return null;
+			// The reference comes from another volume's annotations, so only a volume directly under our root will do,
+			// rebuilt from its uuid so nothing from the annotation itself reaches the shell
+			String zfsFilesystem;
+			try {
+				UUID sourceUuid = UUID.fromString(parts[1].substring(parts[1].lastIndexOf('/') + 1));
+				zfsFilesystem = Paths.get(getZfsRootPath(), sourceUuid.toString()).toString();
+				if(!zfsFilesystem.equals(parts[1])) {
+					throw new IllegalArgumentException("not directly under " + getZfsRootPath());
+				}
+			} catch(IllegalArgumentException e) {
+				LOG.error("Clone source is not a volume of this provider: " + parts[1] + ": " + e.getMessage());
+				return CompletableFuture.completedFuture(null);
 			}
 
-			String zfsSnapshotName = zfsFilesystem + "@pvmanager-" + annotations.get(ANNOTATION_PVMANAGER_PVREF) + "-" + OffsetDateTime.now().format(snapshotTimestampFormatter);
+			String zfsSnapshotName = zfsFilesystem + "@pvmanager-" + pvRef + "-" + OffsetDateTime.now().format(snapshotTimestampFormatter);
 			annotations.put(ANNOTATION_CLONESNAPSHOT, zfsSnapshotName);
-			command = (becomeRoot ? "sudo " : "") + "zfs snapshot -o " + ANNOTATION_PVMANAGER_PVREF + "=" +
-					annotations.get(ANNOTATION_PVMANAGER_PVREF) + " " + zfsSnapshotName;
-			outputBuffer = new StringBuilder();
-
-			cmdReturnValue = sshWrapper.exec(command, outputBuffer);
-			if (cmdReturnValue != 0) {
-				LOG.error("zfs snapshot volume failed: exit status: " + cmdReturnValue);
-				LOG.error(outputBuffer.toString());
-				return null;
+
+			if(channelPrograms) {
+				final String cloneArgs = extraArgs;
+				return supportsChannelPrograms(deadline).thenCompose(supported -> supported ?
+						cloneWithChannelProgram(zfsSnapshotName, zfsVolumePath, exportPath, cloneArgs, volumeUuid, pvRef, sizeInBytes, deadline) :
+						cloneWithCommands(zfsSnapshotName, zfsVolumePath, exportPath, cloneArgs, volumeUuid, pvRef, sizeInBytes, deadline));
 			}
+			return cloneWithCommands(zfsSnapshotName, zfsVolumePath, exportPath, extraArgs, volumeUuid, pvRef, sizeInBytes, deadline);
+		}
 
-			command = (becomeRoot ? "sudo " : "") + "zfs clone " + extraArgs + " " + zfsSnapshotName + " " + zfsVolumePath;
+		if(compoundScripts) {
+			ZfsCompoundScript script = new ZfsCompoundScript()
+					.step("create", "zfs create " + extraArgs + " " + zfsVolumePath, "zfs destroy " + zfsVolumePath);
+			if(unixMode != null) {
+				script.step("chmod", String.format("chmod %04d %s", unixMode, exportPath), null);
+			}
+			return runScript(script, deadline).thenApply(result -> reportCompoundScript(result, "create") ?
+					created(volumeUuid, zfsVolumePath, null, pvRef, sizeInBytes, exportPath) : null);
+		}
 
-		} else {
-			command = (becomeRoot ? "sudo " : "") + "zfs create " + extraArgs + " " + zfsVolumePath;
+		CompletableFuture<Boolean> done = runCommand(sudo() + "zfs create " + extraArgs + " " + zfsVolumePath, "zfs create volume failed: ", deadline);
+		if(unixMode != null) {
+			done = then(done, String.format("%schmod %04d %s", sudo(), unixMode, exportPath), "zfs chmod ", deadline);
 		}
+		return done.thenApply(ok -> ok ? created(volumeUuid, zfsVolumePath, null, pvRef, sizeInBytes, exportPath) : null);
+	}
 
-		outputBuffer = new StringBuilder();
-		cmdReturnValue = sshWrapper.exec(command, outputBuffer);
-		if (cmdReturnValue != 0) {
-			LOG.error("zfs " + ((zfsCloneRef != null) ? "clone" : "create") + " volume failed: exit status: " + cmdReturnValue);
-			LOG.error(outputBuffer.toString());
-			return null;
+	/**
+	 * Snapshots the source and clones the snapshot, one command at a time or as one compound script.
+	 */
+	private CompletableFuture<V1PersistentVolumeSpec> cloneWithCommands(String zfsSnapshotName, String zfsVolumePath, String exportPath, String extraArgs,
+			String volumeUuid, String pvRef, long sizeInBytes, long deadline) {
+		if(compoundScripts) {
+			ZfsCompoundScript script = new ZfsCompoundScript()
+					.step("snapshot", "zfs snapshot -o " + ANNOTATION_PVMANAGER_PVREF + "=" + pvRef + " " + zfsSnapshotName,
+							"zfs destroy " + zfsSnapshotName)
+					.step("clone", "zfs clone " + extraArgs + " " + zfsSnapshotName + " " + zfsVolumePath,
+							"zfs destroy " + zfsVolumePath);
+			if(unixMode != null) {
+				script.step("chmod", String.format("chmod %04d %s", unixMode, exportPath), null);
+			}
+			return runScript(script, deadline).thenApply(result -> reportCompoundScript(result, "clone") ?
+					created(volumeUuid, zfsVolumePath, zfsSnapshotName, pvRef, sizeInBytes, exportPath) : null);
 		}
 
+		CompletableFuture<Boolean> done = runCommand(sudo() + "zfs snapshot -o " + ANNOTATION_PVMANAGER_PVREF + "=" + pvRef + " " + zfsSnapshotName,
+				"zfs snapshot volume failed: ", deadline);
+		done = then(done, sudo() + "zfs clone " + extraArgs + " " + zfsSnapshotName + " " + zfsVolumePath,
+				"zfs clone volume failed: ", deadline);
 		if(unixMode != null) {
-			command = String.format("%schmod %04d %s", (becomeRoot ? "sudo " : ""), unixMode, exportPath);
-			outputBuffer = new StringBuilder();
-			cmdReturnValue = sshWrapper.exec(command, outputBuffer);
-			if (cmdReturnValue != 0) {
-				LOG.error("zfs chmod exit status: " + cmdReturnValue);
-				LOG.error(outputBuffer.toString());
-				return null;
+			done = then(done, String.format("%schmod %04d %s", sudo(), unixMode, exportPath), "zfs chmod ", deadline);
+		}
+		return done.thenApply(ok -> ok ? created(volumeUuid, zfsVolumePath, zfsSnapshotName, pvRef, sizeInBytes, exportPath) : null);
+	}
+
+	// Takes a snapshot and tags it with its pvref in the same transaction group, failing without doing anything if the
+	// snapshot can't be taken.  Lua long strings stand in for quotes, the program goes inside a double quoted shell
+	// string inside a single quoted compound script.
+	final private static String SNAPSHOT_PROGRAM = "local a = ... local s = a.argv[1] local r = a.argv[2] " +
+			"local e = zfs.check.snapshot(s) if e ~= 0 then error([[cannot snapshot ]] .. s .. [[: error ]] .. e) end " +
+			"e = zfs.sync.snapshot(s) if e ~= 0 then error([[cannot snapshot ]] .. s .. [[: error ]] .. e) end " +
+			"if zfs.sync.set_prop then zfs.sync.set_prop(s, [[" + ANNOTATION_PVMANAGER_PVREF + "]], r) end";
+
+	/**
+	 * @return a command that runs program as a channel program in the pool the root is in
+	 */
+	private String channelProgram(String program, String... args) {
+		StringBuilder command = new StringBuilder("printf %s \"").append(program).append("\" | zfs program ")
+				.append(zfsRootPath.split("/")[0]).append(" /dev/stdin");
+		for(String arg : args) {
+			command.append(' ').append(arg);
+		}
+		return command.toString();
+	}
+
+	/**
+	 * Asks the host once whether it runs channel programs at all.
+	 */
+	private CompletableFuture<Boolean> supportsChannelPrograms(long deadline) {
+		Boolean supported = channelProgramsSupported;
+		if(supported != null) {
+			return CompletableFuture.completedFuture(supported);
+		}
+		ZfsCompoundScript probe = new ZfsCompoundScript().step("probe", channelProgram("return 0"), null);
+		return exec(probe.toCommand(sudo()), deadline).thenApply(output -> {
+			ZfsCompoundScript.Result result = probe.parse(output.getExitStatus(), output.getOutput());
+			boolean ok = result.isSuccess();
+			if(!ok) {
+				String reason = result.getFailedStep() != null ? result.getFailedStep().getOutput() : result.getOutput();
+				LOG.warn("zfs channel programs are not supported on " + sshHostname + ", cloning with separate commands: " + reason.trim());
+			}
+			channelProgramsSupported = ok;
+			return ok;
+		});
+	}
+
+	/**
+	 * Snapshots the source with a channel program and clones it in the same invocation, the snapshot is destroyed
+	 * again if the clone fails.  Channel programs can't make clones, so the clone itself is still a command.
+	 */
+	private CompletableFuture<V1PersistentVolumeSpec> cloneWithChannelProgram(String zfsSnapshotName, String zfsVolumePath, String exportPath, String extraArgs,
+			String volumeUuid, String pvRef, long sizeInBytes, long deadline) {
+		ZfsCompoundScript script = new ZfsCompoundScript()
+				.step("snapshot", channelProgram(SNAPSHOT_PROGRAM, zfsSnapshotName, pvRef), "zfs destroy " + zfsSnapshotName)
+				.step("clone", "zfs clone " + extraArgs + " " + zfsSnapshotName + " " + zfsVolumePath, "zfs destroy " + zfsVolumePath);
+		if(unixMode != null) {
+			script.step("chmod", String.format("chmod %04d %s", unixMode, exportPath), null);
+		}
+		return runScript(script, deadline).thenApply(result -> reportCompoundScript(result, "clone") ?
+				created(volumeUuid, zfsVolumePath, zfsSnapshotName, pvRef, sizeInBytes, exportPath) : null);
+	}
+
+	/**
+	 * Runs one command of an operation, logging its output if it fails.
+	 *
+	 * @return a future that completes with whether the command succeeded
+	 */
+	private CompletableFuture<Boolean> runCommand(String command, String failure, long deadline) {
+		return exec(command, deadline).thenApply(result -> {
+			if(result.getExitStatus() != 0) {
+				LOG.error(failure + "exit status: " + result.getExitStatus());
+				LOG.error(result.getOutput());
+				return false;
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Runs a command once the one before it has succeeded.
+	 */
+	private CompletableFuture<Boolean> then(CompletableFuture<Boolean> previous, String command, String failure, long deadline) {
+		return previous.thenCompose(ok -> ok ? runCommand(command, failure, deadline) : CompletableFuture.completedFuture(false));
+	}
+
+	/**
+	 * Runs a compound script by itself, or with those for other volumes when batching.
+	 */
+	private CompletableFuture<ZfsCompoundScript.Result> runScript(ZfsCompoundScript script, long deadline) {
+		// The script stops its own steps at the deadline, so it can still roll back the ones that got done
+		long commandTimeout = sshWrapper.getCommandTimeoutMs();
+		if(commandTimeout > 0) {
+			deadline = Math.min(deadline, System.currentTimeMillis() + commandTimeout);
+		}
+		if(batcher != null) {
+			return batcher.submit(script, deadline);
+		}
+		String command = script.toCommand(sudo(), deadline);
+		long timeout = 0;
+		if(deadline != Long.MAX_VALUE) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				return failed(new SSHCommandTimeoutException("Operation timed out before it could run: " + command, command, 0, null));
 			}
+			timeout = remaining + ZfsCompoundScript.ROLLBACK_ALLOWANCE_MS;
 		}
+		return sshWrapper.execAsync(command, timeout).handle((result, e) -> {
+			if(e != null) {
+				Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				throw new CompletionException(new ZfsScriptOutcomeUnknownException("Lost track of a zfs script on " + zfsRootPath + ", it may or may not have run", cause));
+			}
+			return script.parse(result.getExitStatus(), result.getOutput());
+		});
+	}
 
+	/**
+	 * Logs the step that failed and what was rolled back if a compound script didn't succeed.
+	 */
+	private boolean reportCompoundScript(ZfsCompoundScript.Result result, String operation) {
+		if(result.isSuccess()) {
+			return true;
+		}
 
+		ZfsCompoundScript.StepResult failedStep = result.getFailedStep();
+		if(failedStep == null) {
+			LOG.error("zfs " + operation + " script failed before running any steps: exit status: " + result.getExitStatus());
+			LOG.error(result.getOutput());
+			return false;
+		}
+		LOG.error("zfs " + operation + " failed at " + failedStep.getName() + " step: exit status: " + failedStep.getExitStatus());
+		LOG.error(failedStep.getOutput());
+		for(ZfsCompoundScript.StepResult rollback : result.getRollbacks()) {
+			if(rollback.getExitStatus() == 0) {
+				LOG.info("zfs " + operation + " rolled back " + rollback.getName() + " step");
+			} else {
+				LOG.error("zfs " + operation + " could not roll back " + rollback.getName() + " step: exit status: " + rollback.getExitStatus() + ": " + rollback.getOutput());
+			}
+		}
+		return false;
+	}
+
+	private V1PersistentVolumeSpec buildPersistentVolumeSpec(long sizeInBytes, String exportPath) {
 		V1PersistentVolumeSpec spec = new V1PersistentVolumeSpec();
 		// Because pvmanager does not plugin to Kubernetes like the existing persistent volume engines, only the 'Retain'
 		// reclaimPolicy is set.  pvmanager emulates the 'Delete' policy be deleting release persistent volumes itself.
@@ -534,53 +1301,117 @@ public class ZfsCliStorageProvider implements IStorageManagementProvider, AutoCl
 
 	@Override
 	public void removePersistentVolume(Map<String, String> annotations) throws Exception {
-		String suffixChar = null;
+		IAsyncStorageManagementProvider.await(removePersistentVolumeAsync(annotations));
+	}
+
+	@Override
+	public CompletableFuture<Void> removePersistentVolumeAsync(Map<String, String> annotations) {
 		if(annotations == null) {
-			throw new IllegalArgumentException("No annotations provided for persistent volume, " + ANNOTATION_VOLUME_UUID + " is required to delete volumes");
+			return failed(new IllegalArgumentException("No annotations provided for persistent volume, " + ANNOTATION_VOLUME_UUID + " is required to delete volumes"));
 		}
 		String uuid = annotations.get(ANNOTATION_VOLUME_UUID);
 		if(uuid == null) {
-			throw new IllegalArgumentException(ANNOTATION_VOLUME_UUID + " annotation not found, " + ANNOTATION_VOLUME_UUID + " is required to delete volumes");
+			return failed(new IllegalArgumentException(ANNOTATION_VOLUME_UUID + " annotation not found, " + ANNOTATION_VOLUME_UUID + " is required to delete volumes"));
 		}
 		// Convert it to a UUID object and then u.toString() to ensure theres no funny business being crafted here to break out of the shell
-		UUID u = UUID.fromString(uuid);
-		String command;
-		StringBuilder outputBuffer;
-		int xs;
-
-		command = (becomeRoot ? "sudo " : "") + "zfs destroy " + Paths.get(zfsRootPath, u.toString()).toString();
+		final UUID u;
+		try {
+			u = UUID.fromString(uuid);
+		} catch(IllegalArgumentException e) {
+			return failed(e);
+		}
+		final long deadline = provider.getOperationDeadline();
+		final String zfsVolumePath = Paths.get(zfsRootPath, u.toString()).toString();
 
-		outputBuffer = new StringBuilder();
-		xs = sshWrapper.exec(command, outputBuffer);
-		if (xs != 0) {
-			LOG.error("zfs destroy volume failed: exit status: " + xs + ": filesytem orphan: " + Paths.get(zfsRootPath, u.toString()).toString());
-			LOG.error(outputBuffer.toString());
+		if(deferredDestroy) {
+			return removePersistentVolumeDeferred(annotations, u, deadline);
+		}
+		if(compoundScripts) {
+			return removePersistentVolumeCompound(annotations, u, deadline);
 		}
 
 		String sourceSnapshot = annotations.get(ANNOTATION_CLONESNAPSHOT);
+		// Always asked for, the inventory can be behind a volume someone created or destroyed since it was loaded
+		CompletableFuture<Boolean> destroyed = exec(sudo() + "zfs destroy " + zfsVolumePath, deadline).thenApply(result -> {
+			if(result.getExitStatus() != 0 && result.getOutput().contains(DATASET_MISSING)) {
+				LOG.info("zfs volume is already gone, nothing to destroy: " + zfsVolumePath);
+			} else if(result.getExitStatus() != 0) {
+				LOG.error("zfs destroy volume failed: exit status: " + result.getExitStatus() + ": filesytem orphan: " + zfsVolumePath);
+				LOG.error(result.getOutput());
+				return false;
+			}
+			if(inventory != null) {
+				inventory.remove(u);
+			}
+			return true;
+		});
+
 		if(sourceSnapshot != null && !sourceSnapshot.isEmpty()) {
 			if(!sourceSnapshot.startsWith(getZfsRootPath())) {
 				LOG.error("Could not destroy snapshot, snapshot does not start with zfsRootPath: " + getZfsRootPath() + " != " + sourceSnapshot);
-				return;
+				return destroyed.thenApply(ok -> null);
 			}
 			if(!sourceSnapshot.contains("@")) {
 				LOG.error("Could not destroy snapshot, snapshot does not start with zfsRootPath: " + getZfsRootPath() + " != " + sourceSnapshot);
-				return;
+				return destroyed.thenApply(ok -> null);
 			}
-			command = (becomeRoot ? "sudo " : "") + "zfs destroy " + sourceSnapshot;
+			// The snapshot goes whether or not the volume did, same as it always has
+			return destroyed.thenCompose(ok -> runCommand(sudo() + "zfs destroy " + sourceSnapshot,
+					"zfs destroy snapshot failed: snapshot orphan: " + sourceSnapshot + ": ", deadline)).thenApply(ok -> null);
+		}
+		return destroyed.thenApply(ok -> null);
+	}
+
+	private CompletableFuture<Void> removePersistentVolumeCompound(Map<String, String> annotations, UUID u, long deadline) {
+		String zfsVolumePath = Paths.get(zfsRootPath, u.toString()).toString();
+		// A destroy can't be undone, the snapshot is only destroyed once the clone made from it is gone.  A volume that's
+		// already gone counts as destroyed, any other failure is printed and fails the step
+		ZfsCompoundScript script = new ZfsCompoundScript()
+				.step("destroy", "o=$(zfs destroy " + zfsVolumePath + " 2>&1) || case \"$o\" in *\"" + DATASET_MISSING + "\"*) ;; " +
+						"*) echo \"$o\"; false ;; esac", null);
 
-			outputBuffer = new StringBuilder();
-			xs = sshWrapper.exec(command, outputBuffer);
-			if (xs != 0) {
-				LOG.error("zfs destroy snapshot failed: exit status: " + xs + ": snapshot orphan: " + sourceSnapshot);
-				LOG.error(outputBuffer.toString());
+		String sourceSnapshot = annotations.get(ANNOTATION_CLONESNAPSHOT);
+		if(sourceSnapshot != null && !sourceSnapshot.isEmpty()) {
+			if(!sourceSnapshot.startsWith(getZfsRootPath()) || !sourceSnapshot.contains("@")) {
+				LOG.error("Could not destroy snapshot, snapshot does not start with zfsRootPath: " + getZfsRootPath() + " != " + sourceSnapshot);
+			} else {
+				script.step("destroy-snapshot", "zfs destroy " + sourceSnapshot, null);
 			}
 		}
 
+		return runScript(script, deadline).thenAccept(result -> {
+			if(inventory != null && !result.getSteps().isEmpty() && result.getSteps().get(0).getExitStatus() == 0) {
+				inventory.remove(u);
+			}
+			ZfsCompoundScript.StepResult failedStep = result.getFailedStep();
+			if(failedStep != null) {
+				if("destroy".equals(failedStep.getName())) {
+					LOG.error("zfs destroy volume failed: exit status: " + failedStep.getExitStatus() + ": filesytem orphan: " + zfsVolumePath);
+				} else {
+					LOG.error("zfs destroy snapshot failed: exit status: " + failedStep.getExitStatus() + ": snapshot orphan: " + sourceSnapshot);
+				}
+				LOG.error(failedStep.getOutput());
+			} else if(!result.isSuccess()) {
+				LOG.error("zfs destroy script failed before running any steps: exit status: " + result.getExitStatus() + ": filesytem orphan: " + zfsVolumePath);
+				LOG.error(result.getOutput());
+			}
+		});
 	}
 
 	@Override
 	public void close() throws Exception {
+		if(reaper != null) {
+			reaper.close();
+		}
+		if(warmPool != null) {
+			warmPool.close();
+		}
+		if(inventory != null) {
+			inventory.close();
+		}
+		if(batcher != null) {
+			batcher.close();
+		}
 		sshWrapper.disconnect();
 	}
 }
@@ -0,0 +1,250 @@
+package com.shackspacehosting.engineering.pvmanager.storage.providers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Runs every step of a provisioning operation in one sh script, so the whole sequence costs a single round trip.  Steps
+ * run in order until one fails, then the rollback commands of the steps that succeeded run in reverse order.  After
+ * each step and rollback the script prints a marker line with its name and exit status, the output of the step is
+ * everything printed since the previous marker.  Markers carry a random tag so a command's output can't fake one.
+ *
+ * A script can be given a deadline, past which the step running is killed and no more are started, so a slow step
+ * fails like any other and the rollbacks still run.  Whatever runs the script should give it ROLLBACK_ALLOWANCE_MS
+ * past the deadline before giving up on it.
+ *
+ * The script is passed to sh -c in single quotes, so commands may not contain single quotes themselves.
+ */
+public class ZfsCompoundScript {
+	final private static String MARKER = "@@PVM";
+	final private static Pattern STEP_NAME = Pattern.compile("[a-z][a-z0-9-]*");
+	// Set by a script that runs several of these, so all their deadlines count from when it started
+	final static String START_VARIABLE = "PVM_START";
+	// What a step that was killed, or never started because time was up, exits with
+	final public static int TIMED_OUT = 124;
+
+	/**
+	 * How long past its deadline a script gets for the rollbacks of a step that didn't finish in time.
+	 */
+	final public static long ROLLBACK_ALLOWANCE_MS = 30000;
+
+	final private String tag = MARKER + "-" + UUID.randomUUID().toString().replace("-", "");
+	final private List<Step> steps = new ArrayList<>();
+
+	private static class Step {
+		final String name;
+		final String command;
+		final String rollbackCommand;
+
+		Step(String name, String command, String rollbackCommand) {
+			this.name = name;
+			this.command = command;
+			this.rollbackCommand = rollbackCommand;
+		}
+	}
+
+	/**
+	 * @param rollbackCommand undoes this step if a later one fails, null if there's nothing to undo
+	 */
+	public ZfsCompoundScript step(String name, String command, String rollbackCommand) {
+		if(!STEP_NAME.matcher(name).matches()) {
+			throw new IllegalArgumentException("Invalid compound script step name: " + name);
+		}
+		checkCommand(command);
+		if(rollbackCommand != null) {
+			checkCommand(rollbackCommand);
+		}
+		steps.add(new Step(name, command, rollbackCommand));
+		return this;
+	}
+
+	private static void checkCommand(String command) {
+		if(command.indexOf('\'') != -1 || command.indexOf('\n') != -1 || command.indexOf('\r') != -1) {
+			throw new IllegalArgumentException("Compound script commands can't contain quotes or newlines: " + command);
+		}
+	}
+
+	/**
+	 * @param shellPrefix what the script's shell is started with, the whole script runs as root under a single "sudo "
+	 * @return the script as a single line command
+	 */
+	public String toCommand(String shellPrefix) {
+		return toCommand(shellPrefix, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param deadline when the steps have to be done by, or Long.MAX_VALUE
+	 */
+	public String toCommand(String shellPrefix, long deadline) {
+		return (shellPrefix == null ? "" : shellPrefix) + "sh -c '" + toScript(deadline) + "'";
+	}
+
+	String toScript() {
+		return toScript(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return the body of the script, which exits with the number of the step that failed or 0
+	 */
+	String toScript(long deadline) {
+		StringBuilder script = new StringBuilder("f=0; ");
+		if(deadline != Long.MAX_VALUE) {
+			// Measured by the backend's clock from when the script starts, so ours doesn't have to agree with it
+			long seconds = Math.max(0, (deadline - System.currentTimeMillis() + 999) / 1000);
+			script.append("s=${").append(START_VARIABLE).append(":-$(date +%s)}; e=$((s+").append(seconds).append(")); ");
+		}
+		for(int i = 0; i < steps.size(); i++) {
+			Step step = steps.get(i);
+			script.append("if [ $f -eq 0 ]; then ");
+			if(deadline == Long.MAX_VALUE) {
+				script.append(step.command).append(" 2>&1; r=$?; ");
+			} else {
+				// A step that failed once time was up was killed.  The watchdog's output goes nowhere, so a sleep
+				// outliving the script doesn't hold the channel open
+				script.append("t=$((e-$(date +%s))); if [ $t -gt 0 ]; then ")
+						.append(step.command).append(" 2>&1 & p=$!; (sleep $t; kill $p) >/dev/null 2>&1 & w=$!; ")
+						.append("wait $p; r=$?; kill $w 2>/dev/null; [ $r -eq 0 ] || [ $(date +%s) -lt $e ] || r=").append(TIMED_OUT)
+						.append("; else r=").append(TIMED_OUT).append("; fi; ");
+			}
+			script.append(marker("step", step.name, "$r"))
+					.append("[ $r -eq 0 ] || f=").append(i + 1).append("; fi; ");
+		}
+		for(int i = steps.size() - 1; i >= 0; i--) {
+			Step step = steps.get(i);
+			if(step.rollbackCommand != null) {
+				script.append("if [ $f -gt ").append(i + 1).append(" ]; then ")
+						.append(step.rollbackCommand).append(" 2>&1; ")
+						.append(marker("rollback", step.name, "$?"))
+						.append("fi; ");
+			}
+		}
+		script.append("exit $f");
+		return script.toString();
+	}
+
+	private String marker(String type, String name, String status) {
+		// The leading newline keeps the marker on its own line whatever the command printed last
+		return "printf \"\\n" + tag + " " + type + " " + name + " %d\\n\" " + status + "; ";
+	}
+
+	public static class StepResult {
+		final private String name;
+		final private int exitStatus;
+		final private String output;
+
+		StepResult(String name, int exitStatus, String output) {
+			this.name = name;
+			this.exitStatus = exitStatus;
+			this.output = output;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getExitStatus() {
+			return exitStatus;
+		}
+
+		public String getOutput() {
+			return output;
+		}
+	}
+
+	public static class Result {
+		final private int exitStatus;
+		final private List<StepResult> steps;
+		final private List<StepResult> rollbacks;
+		final private String output;
+
+		Result(int exitStatus, List<StepResult> steps, List<StepResult> rollbacks, String output) {
+			this.exitStatus = exitStatus;
+			this.steps = Collections.unmodifiableList(steps);
+			this.rollbacks = Collections.unmodifiableList(rollbacks);
+			this.output = output;
+		}
+
+		public boolean isSuccess() {
+			return exitStatus == 0;
+		}
+
+		public int getExitStatus() {
+			return exitStatus;
+		}
+
+		/**
+		 * @return the steps that ran, in order
+		 */
+		public List<StepResult> getSteps() {
+			return steps;
+		}
+
+		/**
+		 * @return the rollbacks that ran, in the order they ran
+		 */
+		public List<StepResult> getRollbacks() {
+			return rollbacks;
+		}
+
+		/**
+		 * @return the step that failed, or null if none did or the script never got to run any
+		 */
+		public StepResult getFailedStep() {
+			for(StepResult step : steps) {
+				if(step.getExitStatus() != 0) {
+					return step;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return everything the script printed, markers included
+		 */
+		public String getOutput() {
+			return output;
+		}
+	}
+
+	/**
+	 * Splits the output of the script back up into the results of its steps.
+	 */
+	public Result parse(int exitStatus, String output) {
+		List<StepResult> stepResults = new ArrayList<>();
+		List<StepResult> rollbackResults = new ArrayList<>();
+		StringBuilder stepOutput = new StringBuilder();
+		boolean newlinePending = false;
+		for(String line : output.split("\n", -1)) {
+			if(line.startsWith(tag + " ")) {
+				String[] fields = line.substring(tag.length() + 1).trim().split(" ");
+				if(fields.length == 3) {
+					int status;
+					try {
+						status = Integer.parseInt(fields[2]);
+					} catch(NumberFormatException e) {
+						status = -1;
+					}
+					StepResult result = new StepResult(fields[1], status, stepOutput.toString());
+					if("rollback".equals(fields[0])) {
+						rollbackResults.add(result);
+					} else {
+						stepResults.add(result);
+					}
+					stepOutput.setLength(0);
+					newlinePending = false;
+					continue;
+				}
+			}
+			// Held back a line so the newline in front of each marker isn't counted as output
+			if(newlinePending) {
+				stepOutput.append('\n');
+			}
+			stepOutput.append(line);
+			newlinePending = true;
+		}
+		return new Result(exitStatus, stepResults, rollbackResults, output);
+	}
+}
@@ -0,0 +1,257 @@
+package com.shackspacehosting.engineering.pvmanager.storage.providers;
+
+import com.shackspacehosting.engineering.pvmanager.SSHCommandTimeoutException;
+import com.shackspacehosting.engineering.pvmanager.SSHExecWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the compound scripts for different volumes that arrive within a short window of each other and runs them
+ * in one remote invocation, so a burst of claims costs one round trip instead of one per volume.  Each script still
+ * runs in its own subshell with its own rollbacks, and each caller gets back only its own script's result.
+ *
+ * The first script to arrive opens the window, a timer closes it and sends the batch, unless the batch fills up first.
+ * Nobody waits for the batch, callers get a future for their own script.
+ *
+ * Every script keeps its own deadline inside the batch, so one slow volume fails and rolls back by itself instead of
+ * the batch being cut off under all of them.  If we lose the batch anyway, the scripts that had reported back keep
+ * their results and the others fail with ZfsScriptOutcomeUnknownException, since they may well have run.
+ */
+public class ZfsScriptBatcher implements AutoCloseable {
+	private static final Logger LOG = LoggerFactory.getLogger(ZfsScriptBatcher.class);
+
+	/**
+	 * Runs a command on the backend, giving up on it after timeoutMs, or never if that's 0.
+	 */
+	public interface Executor {
+		CompletableFuture<SSHExecWrapper.Result> exec(String command, long timeoutMs);
+	}
+
+	final private String name;
+	final private long windowMs;
+	final private int maxBatchSize;
+	final private String shellPrefix;
+	final private Executor executor;
+	final private ScheduledExecutorService timer;
+
+	private Batch open = null;
+
+	public ZfsScriptBatcher(String name, long windowMs, int maxBatchSize, String shellPrefix, Executor executor) {
+		if(maxBatchSize < 1) {
+			throw new IllegalArgumentException("Batches for " + name + " must hold at least one script: " + maxBatchSize);
+		}
+		this.name = name;
+		this.windowMs = windowMs;
+		this.maxBatchSize = maxBatchSize;
+		this.shellPrefix = shellPrefix == null ? "" : shellPrefix;
+		this.executor = executor;
+		this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "zfs-batch-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	static class Entry {
+		final ZfsCompoundScript script;
+		final long deadline;
+		final CompletableFuture<ZfsCompoundScript.Result> result = new CompletableFuture<>();
+
+		Entry(ZfsCompoundScript script, long deadline) {
+			this.script = script;
+			this.deadline = deadline;
+		}
+	}
+
+	private static class Batch {
+		final List<Entry> entries = new ArrayList<>();
+		ScheduledFuture<?> window = null;
+	}
+
+	/**
+	 * Adds a script to whatever batch is open.
+	 *
+	 * @return a future that completes with this script's result once the batch has run
+	 */
+	public CompletableFuture<ZfsCompoundScript.Result> submit(ZfsCompoundScript script, long deadline) {
+		Entry entry = new Entry(script, deadline);
+		Batch full = null;
+		synchronized (this) {
+			if(open == null) {
+				final Batch batch = new Batch();
+				open = batch;
+				if(maxBatchSize > 1) {
+					batch.window = timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							flush(batch);
+						}
+					}, windowMs, TimeUnit.MILLISECONDS);
+				}
+			}
+			open.entries.add(entry);
+			if(open.entries.size() >= maxBatchSize) {
+				full = open;
+				open = null;
+				if(full.window != null) {
+					full.window.cancel(false);
+				}
+			}
+		}
+		if(full != null) {
+			execute(full.entries);
+		}
+		return entry.result;
+	}
+
+	private void flush(Batch batch) {
+		synchronized (this) {
+			if(open != batch) {
+				// It filled up and went without us
+				return;
+			}
+			open = null;
+		}
+		execute(batch.entries);
+	}
+
+	private void execute(List<Entry> entries) {
+		// The scripts stop themselves at their deadlines, the batch only has to outlast the last of them
+		long deadline = Long.MIN_VALUE;
+		for(Entry entry : entries) {
+			deadline = Math.max(deadline, entry.deadline);
+		}
+		long timeoutMs = 0;
+		if(deadline != Long.MAX_VALUE) {
+			timeoutMs = Math.max(1, deadline - System.currentTimeMillis()) + ZfsCompoundScript.ROLLBACK_ALLOWANCE_MS * entries.size();
+		}
+
+		final String tag = "@@PVM-" + UUID.randomUUID().toString().replace("-", "");
+		CompletableFuture<Void> done;
+		if(entries.size() == 1) {
+			Entry entry = entries.get(0);
+			done = executor.exec(entry.script.toCommand(shellPrefix, entry.deadline), timeoutMs)
+					.thenAccept(result -> entry.result.complete(entry.script.parse(result.getExitStatus(), result.getOutput())));
+		} else {
+			LOG.debug("Running " + entries.size() + " zfs scripts in one batch on " + name);
+			done = executor.exec(shellPrefix + "sh -c '" + toScript(entries, tag) + "'", timeoutMs)
+					.thenAccept(result -> split(entries, tag, result.getOutput()));
+		}
+		done.whenComplete((ignored, e) -> {
+			Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+			if(cause instanceof SSHCommandTimeoutException && ((SSHCommandTimeoutException) cause).getOutput() != null && entries.size() > 1) {
+				// Whatever reported back before we gave up still counts
+				split(entries, tag, ((SSHCommandTimeoutException) cause).getOutput());
+			}
+			for(Entry entry : entries) {
+				if(!entry.result.isDone()) {
+					entry.result.completeExceptionally(new ZfsScriptOutcomeUnknownException("Lost track of a zfs script in a batch of " +
+							entries.size() + " on " + name + ", it may or may not have run", cause));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs each script in a subshell of its own, with their deadlines all counted from the start of the batch, and
+	 * prints a marker with its exit status after each.  The statuses are all printed again at the very end.
+	 */
+	static String toScript(List<Entry> entries, String tag) {
+		StringBuilder script = new StringBuilder(ZfsCompoundScript.START_VARIABLE + "=$(date +%s); ");
+		StringBuilder statusFormat = new StringBuilder();
+		StringBuilder statuses = new StringBuilder();
+		for(int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			script.append("(").append(entry.script.toScript(entry.deadline)).append("); s").append(i).append("=$?; ")
+					.append("printf \"\\n").append(tag).append(" done ").append(i).append(" %d\\n\" $s").append(i).append("; ");
+			statusFormat.append(" %d");
+			statuses.append(" $s").append(i);
+		}
+		script.append("printf \"\\n").append(tag).append(" statuses").append(statusFormat).append("\\n\"").append(statuses);
+		return script.toString();
+	}
+
+	/**
+	 * Hands each script in the batch its exit status and the output between its marker and the one before it.  The
+	 * output limit keeps the end of the output, so the statuses at the end survive when a big batch loses its start,
+	 * the scripts whose markers were cut off just get no output.  Scripts with neither are left alone.
+	 */
+	static void split(List<Entry> entries, String tag, String output) {
+		String[] segments = new String[entries.size()];
+		int[] exitStatuses = new int[entries.size()];
+		boolean[] reported = new boolean[entries.size()];
+		StringBuilder segment = new StringBuilder();
+		boolean newlinePending = false;
+		for(String line : output.split("\n", -1)) {
+			if(line.startsWith(tag + " ")) {
+				String[] fields = line.substring(tag.length() + 1).trim().split(" ");
+				if(fields.length == 3 && "done".equals(fields[0])) {
+					int index = parseStatus(fields[1]);
+					if(index >= 0 && index < entries.size()) {
+						segments[index] = segment.toString();
+						exitStatuses[index] = parseStatus(fields[2]);
+						reported[index] = true;
+					}
+					segment.setLength(0);
+					newlinePending = false;
+					continue;
+				}
+				if(fields.length == entries.size() + 1 && "statuses".equals(fields[0])) {
+					for(int i = 0; i < entries.size(); i++) {
+						exitStatuses[i] = parseStatus(fields[i + 1]);
+						reported[i] = true;
+					}
+					continue;
+				}
+			}
+			if(newlinePending) {
+				segment.append('\n');
+			}
+			segment.append(line);
+			newlinePending = true;
+		}
+		for(int i = 0; i < entries.size(); i++) {
+			if(reported[i]) {
+				Entry entry = entries.get(i);
+				entry.result.complete(entry.script.parse(exitStatuses[i], segments[i] == null ? "" : segments[i]));
+			}
+		}
+	}
+
+	private static int parseStatus(String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Sends whatever is waiting in the open batch and stops the timer.
+	 */
+	@Override
+	public void close() {
+		Batch batch;
+		synchronized (this) {
+			batch = open;
+			open = null;
+			if(batch != null && batch.window != null) {
+				batch.window.cancel(false);
+			}
+		}
+		if(batch != null) {
+			execute(batch.entries);
+		}
+		timer.shutdown();
+	}
+}
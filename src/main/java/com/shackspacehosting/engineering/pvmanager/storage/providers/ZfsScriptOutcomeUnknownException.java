@@ -0,0 +1,15 @@
+package com.shackspacehosting.engineering.pvmanager.storage.providers;
+
+import java.io.IOException;
+
+/**
+ * A compound script was sent to the backend but we lost track of it before it reported back.  Any of its steps may or
+ * may not have run, so whatever they make may be there or not.
+ */
+public class ZfsScriptOutcomeUnknownException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public ZfsScriptOutcomeUnknownException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,162 @@
+package com.shackspacehosting.engineering.pvmanager;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * The agent's channels run its shell locally instead of over ssh, so the framing is tested against a real sh.
+ */
+public class RemoteCommandAgentTest {
+	private ScheduledExecutorService watchdog;
+	private Session session;
+	private RemoteCommandAgent agent;
+
+	@Before
+	public void setUp() throws Exception {
+		watchdog = Executors.newSingleThreadScheduledExecutor();
+		session = mock(Session.class);
+		when(session.openChannel("exec")).thenAnswer(invocation -> localChannel());
+		SSHSessionPool.Lease lease = mock(SSHSessionPool.Lease.class);
+		when(lease.getSession()).thenReturn(session);
+		SSHSessionPool pool = mock(SSHSessionPool.class);
+		when(pool.borrow()).thenReturn(lease);
+		when(pool.getName()).thenReturn("test");
+		agent = new RemoteCommandAgent(pool, "", watchdog, 1 << 20);
+	}
+
+	@After
+	public void tearDown() {
+		agent.close();
+		watchdog.shutdownNow();
+	}
+
+	/**
+	 * A channel whose command runs in a local sh once it's set.  Disconnecting closes its stdout the way dropping a
+	 * real channel does, even if something the shell started still has it open.
+	 */
+	private static ChannelExec localChannel() throws IOException {
+		ChannelExec channel = mock(ChannelExec.class);
+		PipedInputStream stdout = new PipedInputStream(1 << 16);
+		PipedOutputStream pipe = new PipedOutputStream(stdout);
+		Process[] process = new Process[1];
+		doAnswer(invocation -> {
+			process[0] = new ProcessBuilder("/bin/sh", "-c", (String) invocation.getArguments()[0]).start();
+			Thread pump = new Thread(() -> {
+				try(InputStream in = process[0].getInputStream()) {
+					byte[] buffer = new byte[4096];
+					int read;
+					while((read = in.read(buffer)) != -1) {
+						pipe.write(buffer, 0, read);
+						pipe.flush();
+					}
+				} catch(IOException e) {
+					// Disconnected
+				} finally {
+					closeQuietly(pipe);
+				}
+			});
+			pump.setDaemon(true);
+			pump.start();
+			return null;
+		}).when(channel).setCommand(anyString());
+		when(channel.getOutputStream()).thenAnswer(invocation -> process[0].getOutputStream());
+		when(channel.getInputStream()).thenReturn(stdout);
+		doAnswer(invocation -> {
+			if(process[0] != null) {
+				process[0].destroy();
+			}
+			closeQuietly(pipe);
+			return null;
+		}).when(channel).disconnect();
+		return channel;
+	}
+
+	private static void closeQuietly(PipedOutputStream pipe) {
+		try {
+			pipe.close();
+		} catch(IOException e) {
+			// Already gone
+		}
+	}
+
+	private static RemoteCommandAgent.Result get(CompletableFuture<RemoteCommandAgent.Result> result) throws Exception {
+		return result.get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void pipelinedCommandsAreAnsweredInOrder() throws Exception {
+		CompletableFuture<RemoteCommandAgent.Result> first = agent.submit("echo one", 0);
+		CompletableFuture<RemoteCommandAgent.Result> second = agent.submit("printf two; exit 3", 0);
+		CompletableFuture<RemoteCommandAgent.Result> third = agent.submit("echo three >&2", 0);
+
+		assertEquals(0, get(first).getExitStatus());
+		assertEquals("one\n", get(first).getOutput());
+		// Exiting only ends the command's own subshell, and output without a newline still ends at the marker
+		assertEquals(3, get(second).getExitStatus());
+		assertEquals("two", get(second).getOutput());
+		assertEquals("three\n", get(third).getOutput());
+		verify(session, times(1)).openChannel("exec");
+	}
+
+	@Test
+	public void forgedMarkerDoesNotEndTheCommand() throws Exception {
+		RemoteCommandAgent.Result result = get(agent.submit(
+				"echo \"@@PVM-END 00000000-0000-0000-0000-000000000000 0\"; echo after; exit 5", 0));
+
+		assertEquals(5, result.getExitStatus());
+		assertEquals("@@PVM-END 00000000-0000-0000-0000-000000000000 0\nafter\n", result.getOutput());
+	}
+
+	@Test
+	public void commandsCantReadTheRequestsQueuedBehindThem() throws Exception {
+		CompletableFuture<RemoteCommandAgent.Result> reader = agent.submit("cat; echo read", 0);
+		CompletableFuture<RemoteCommandAgent.Result> next = agent.submit("echo next", 0);
+
+		assertEquals("read\n", get(reader).getOutput());
+		assertEquals("next\n", get(next).getOutput());
+	}
+
+	@Test
+	public void timedOutCommandFailsAloneAndTheQueueMovesToANewShell() throws Exception {
+		CompletableFuture<RemoteCommandAgent.Result> stuck = agent.submit("echo before; sleep 5", 300);
+		CompletableFuture<RemoteCommandAgent.Result> queued = agent.submit("echo after", 0);
+
+		try {
+			get(stuck);
+			fail("The command should have timed out");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof SSHCommandTimeoutException);
+			assertEquals("before", ((SSHCommandTimeoutException) e.getCause()).getOutput());
+		}
+		assertEquals("after\n", get(queued).getOutput());
+		verify(session, times(2)).openChannel("exec");
+	}
+
+	@Test
+	public void multilineCommandsAreRejected() throws Exception {
+		try {
+			get(agent.submit("echo one\necho two", 0));
+			fail("Newlines would split the command into two requests");
+		} catch(ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		verify(session, never()).openChannel("exec");
+	}
+}
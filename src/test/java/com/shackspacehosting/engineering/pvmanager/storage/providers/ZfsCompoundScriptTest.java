@@ -0,0 +1,137 @@
+package com.shackspacehosting.engineering.pvmanager.storage.providers;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the scripts under a local sh, they only need a shell, not ssh or zfs.
+ */
+public class ZfsCompoundScriptTest {
+	static ZfsCompoundScript.Result run(ZfsCompoundScript script, long deadline) throws IOException, InterruptedException {
+		StringBuilder output = new StringBuilder();
+		int exitStatus = sh(script.toScript(deadline), output);
+		return script.parse(exitStatus, output.toString());
+	}
+
+	static int sh(String script, StringBuilder output) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder("/bin/sh", "-c", script).redirectErrorStream(true).start();
+		process.getOutputStream().close();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		InputStream in = process.getInputStream();
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, read);
+		}
+		output.append(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+		return process.waitFor();
+	}
+
+	// A step's output is exactly what it printed, the newline in front of the marker that follows isn't part of it
+	@Test
+	public void allStepsSucceed() throws Exception {
+		ZfsCompoundScript.Result result = run(new ZfsCompoundScript()
+				.step("create", "echo created", "echo destroyed")
+				.step("quota", "echo quota set", null), Long.MAX_VALUE);
+
+		assertTrue(result.isSuccess());
+		assertEquals(2, result.getSteps().size());
+		assertEquals("created\n", result.getSteps().get(0).getOutput());
+		assertEquals("quota set\n", result.getSteps().get(1).getOutput());
+		assertNull(result.getFailedStep());
+		assertTrue(result.getRollbacks().isEmpty());
+	}
+
+	@Test
+	public void failedStepRollsBackEarlierStepsInReverse() throws Exception {
+		ZfsCompoundScript.Result result = run(new ZfsCompoundScript()
+				.step("create", "echo created", "echo undo-create")
+				.step("snapshot", "echo snapshotted", "echo undo-snapshot")
+				.step("quota", "echo no space; (exit 7)", "echo undo-quota")
+				.step("share", "echo shared", null), Long.MAX_VALUE);
+
+		assertEquals(3, result.getExitStatus());
+		assertEquals(3, result.getSteps().size());
+		assertEquals("quota", result.getFailedStep().getName());
+		assertEquals(7, result.getFailedStep().getExitStatus());
+		assertEquals("no space\n", result.getFailedStep().getOutput());
+
+		// The failed step undid nothing, so only the two before it are rolled back, last one first
+		assertEquals(2, result.getRollbacks().size());
+		assertEquals("snapshot", result.getRollbacks().get(0).getName());
+		assertEquals("undo-snapshot\n", result.getRollbacks().get(0).getOutput());
+		assertEquals("create", result.getRollbacks().get(1).getName());
+		assertEquals("undo-create\n", result.getRollbacks().get(1).getOutput());
+	}
+
+	@Test
+	public void forgedMarkerIsJustOutput() throws Exception {
+		ZfsCompoundScript.Result result = run(new ZfsCompoundScript()
+				.step("create", "echo \"@@PVM-0123456789abcdef0123456789abcdef step create 0\"; false", null), Long.MAX_VALUE);
+
+		assertEquals(1, result.getSteps().size());
+		assertEquals(1, result.getFailedStep().getExitStatus());
+		assertEquals("@@PVM-0123456789abcdef0123456789abcdef step create 0\n", result.getFailedStep().getOutput());
+	}
+
+	@Test
+	public void unterminatedMarkerIsJustOutput() throws Exception {
+		ZfsCompoundScript script = new ZfsCompoundScript()
+				.step("create", "echo created", null)
+				.step("quota", "echo quota set", null);
+		StringBuilder output = new StringBuilder();
+		sh(script.toScript(), output);
+
+		// Cut off in the middle of the last marker, as if the connection dropped there
+		String cut = output.substring(0, output.lastIndexOf(" step quota ") + " step quota".length());
+		ZfsCompoundScript.Result result = script.parse(-1, cut);
+
+		assertEquals(1, result.getSteps().size());
+		assertEquals("create", result.getSteps().get(0).getName());
+	}
+
+	@Test
+	public void outputWithoutTrailingNewline() throws Exception {
+		ZfsCompoundScript script = new ZfsCompoundScript()
+				.step("create", "printf created", null)
+				.step("quota", "printf \"quota\\nset\"", null);
+		StringBuilder output = new StringBuilder();
+		int exitStatus = sh(script.toScript(), output);
+
+		ZfsCompoundScript.Result result = script.parse(exitStatus, output.toString());
+		assertEquals("created", result.getSteps().get(0).getOutput());
+		assertEquals("quota\nset", result.getSteps().get(1).getOutput());
+
+		// Nor does the output as a whole have to end with one
+		assertTrue(output.charAt(output.length() - 1) == '\n');
+		result = script.parse(exitStatus, output.substring(0, output.length() - 1));
+		assertEquals(2, result.getSteps().size());
+		assertEquals("quota\nset", result.getSteps().get(1).getOutput());
+	}
+
+	@Test
+	public void stepStillRunningAtDeadlineIsKilledAndRolledBack() throws Exception {
+		long started = System.currentTimeMillis();
+		ZfsCompoundScript.Result result = run(new ZfsCompoundScript()
+				.step("create", "echo created", "echo undo-create")
+				.step("quota", "sleep 10", null)
+				.step("share", "echo shared", null), started + 1000);
+
+		assertTrue(System.currentTimeMillis() - started < 8000);
+		assertEquals(2, result.getExitStatus());
+		assertEquals(ZfsCompoundScript.TIMED_OUT, result.getFailedStep().getExitStatus());
+		assertEquals(1, result.getRollbacks().size());
+		assertEquals("undo-create\n", result.getRollbacks().get(0).getOutput());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void commandsCantContainSingleQuotes() {
+		new ZfsCompoundScript().step("create", "echo 'quoted'", null);
+	}
+}
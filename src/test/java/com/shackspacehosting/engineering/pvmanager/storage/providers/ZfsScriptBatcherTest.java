@@ -0,0 +1,127 @@
+package com.shackspacehosting.engineering.pvmanager.storage.providers;
+
+import com.shackspacehosting.engineering.pvmanager.SSHCommandTimeoutException;
+import com.shackspacehosting.engineering.pvmanager.SSHExecWrapper;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class ZfsScriptBatcherTest {
+	final private static String TAG = "@@PVM-batch";
+
+	private static List<ZfsScriptBatcher.Entry> entries() {
+		return Arrays.asList(
+				new ZfsScriptBatcher.Entry(new ZfsCompoundScript()
+						.step("create", "echo first", null), Long.MAX_VALUE),
+				new ZfsScriptBatcher.Entry(new ZfsCompoundScript()
+						.step("create", "echo second", "echo undo-second")
+						.step("quota", "false", null), Long.MAX_VALUE),
+				new ZfsScriptBatcher.Entry(new ZfsCompoundScript()
+						.step("create", "echo third", null), Long.MAX_VALUE));
+	}
+
+	private static String run(List<ZfsScriptBatcher.Entry> entries) throws Exception {
+		StringBuilder output = new StringBuilder();
+		assertEquals(0, ZfsCompoundScriptTest.sh(ZfsScriptBatcher.toScript(entries, TAG), output));
+		return output.toString();
+	}
+
+	@Test
+	public void splitsOutputPerScript() throws Exception {
+		List<ZfsScriptBatcher.Entry> entries = entries();
+		ZfsScriptBatcher.split(entries, TAG, run(entries));
+
+		ZfsCompoundScript.Result first = entries.get(0).result.getNow(null);
+		assertTrue(first.isSuccess());
+		assertEquals("first\n", first.getSteps().get(0).getOutput());
+
+		// A failed script doesn't stop the ones after it
+		ZfsCompoundScript.Result second = entries.get(1).result.getNow(null);
+		assertEquals(2, second.getExitStatus());
+		assertEquals("quota", second.getFailedStep().getName());
+		assertEquals("undo-second\n", second.getRollbacks().get(0).getOutput());
+
+		ZfsCompoundScript.Result third = entries.get(2).result.getNow(null);
+		assertTrue(third.isSuccess());
+		assertEquals("third\n", third.getSteps().get(0).getOutput());
+	}
+
+	@Test
+	public void statusesSurviveLosingTheStartOfTheOutput() throws Exception {
+		List<ZfsScriptBatcher.Entry> entries = entries();
+		String output = run(entries);
+
+		// The output limit keeps the end, cut it just after the first script's end marker
+		ZfsScriptBatcher.split(entries, TAG, output.substring(output.indexOf(TAG + " done 0") + TAG.length() + 2));
+
+		ZfsCompoundScript.Result first = entries.get(0).result.getNow(null);
+		assertTrue(first.isSuccess());
+		assertTrue(first.getSteps().isEmpty());
+		assertEquals(2, entries.get(1).result.getNow(null).getExitStatus());
+		assertEquals("third\n", entries.get(2).result.getNow(null).getSteps().get(0).getOutput());
+	}
+
+	@Test
+	public void scriptsThatNeverReportedAreLeftAlone() throws Exception {
+		List<ZfsScriptBatcher.Entry> entries = entries();
+		String output = run(entries);
+
+		ZfsScriptBatcher.split(entries, TAG, output.substring(0, output.indexOf(TAG + " done 1")));
+
+		assertTrue(entries.get(0).result.getNow(null).isSuccess());
+		assertFalse(entries.get(1).result.isDone());
+		assertFalse(entries.get(2).result.isDone());
+	}
+
+	@Test
+	public void lostBatchFailsUnreportedScriptsAsUnknown() throws Exception {
+		// Times out having only heard back from the first script
+		ZfsScriptBatcher.Executor executor = (command, timeoutMs) -> {
+			Matcher tag = Pattern.compile("(@@PVM-[0-9a-f]+) done 0 ").matcher(command);
+			assertTrue(tag.find());
+			CompletableFuture<SSHExecWrapper.Result> result = new CompletableFuture<>();
+			result.completeExceptionally(new SSHCommandTimeoutException(command, timeoutMs, "\n" + tag.group(1) + " done 0 0\n"));
+			return result;
+		};
+		try(ZfsScriptBatcher batcher = new ZfsScriptBatcher("test", 60000, 2, "", executor)) {
+			long deadline = System.currentTimeMillis() + 60000;
+			CompletableFuture<ZfsCompoundScript.Result> first = batcher.submit(new ZfsCompoundScript().step("create", "true", null), deadline);
+			CompletableFuture<ZfsCompoundScript.Result> second = batcher.submit(new ZfsCompoundScript().step("create", "true", null), deadline);
+
+			assertEquals(0, first.get(5, TimeUnit.SECONDS).getExitStatus());
+			try {
+				second.get(5, TimeUnit.SECONDS);
+				fail("The second script never reported back");
+			} catch(ExecutionException e) {
+				assertTrue(e.getCause() instanceof ZfsScriptOutcomeUnknownException);
+				assertTrue(e.getCause().getCause() instanceof SSHCommandTimeoutException);
+			}
+		}
+	}
+
+	@Test
+	public void eachScriptKeepsItsOwnDeadline() throws Exception {
+		long started = System.currentTimeMillis();
+		List<ZfsScriptBatcher.Entry> entries = Arrays.asList(
+				new ZfsScriptBatcher.Entry(new ZfsCompoundScript()
+						.step("create", "echo made", "echo undo-made")
+						.step("quota", "sleep 10", null), started + 1000),
+				new ZfsScriptBatcher.Entry(new ZfsCompoundScript()
+						.step("create", "sleep 2; echo slow but in time", null), started + 30000));
+		ZfsScriptBatcher.split(entries, TAG, run(entries));
+
+		assertTrue(System.currentTimeMillis() - started < 9000);
+		ZfsCompoundScript.Result first = entries.get(0).result.getNow(null);
+		assertEquals(ZfsCompoundScript.TIMED_OUT, first.getFailedStep().getExitStatus());
+		assertEquals("undo-made\n", first.getRollbacks().get(0).getOutput());
+		assertTrue(entries.get(1).result.getNow(null).isSuccess());
+	}
+}